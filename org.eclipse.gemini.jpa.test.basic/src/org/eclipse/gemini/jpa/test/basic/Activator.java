@@ -30,12 +30,18 @@ public class Activator extends TestActivator {
 
     String[] classNames = { 
             "TestEMFService",
+            "TestEMFFutureService",
             "TestEMFBuilderService",
             "TestEMFBuilderServiceProperties",
             "TestEMFBuilderExternalDataSource",
+            "TestEMFBuilderFailover",
+            "TestEMFBuilderReadReplicas",
+            "TestEMFBuilderStatementCache",
             "TestMultipleEMFCreation",
+            "TestParallelClassLoading",
             "TestStaticPersistence",
-            "TestUserClassLoaderProperty"
+            "TestUserClassLoaderProperty",
+            "TestUnitNameCollision"
     };
 
     public String getTestGroupName() { return "Basic"; }
@@ -43,11 +49,17 @@ public class Activator extends TestActivator {
     public String[] getTestClasses() { return classNames; }
     public void setBundleContext(BundleContext ctx) { 
         TestEMFService.ctx = ctx;
+        TestEMFFutureService.ctx = ctx;
         TestEMFBuilderService.ctx = ctx;
         TestEMFBuilderServiceProperties.ctx = ctx;
         TestEMFBuilderExternalDataSource.ctx = ctx;
+        TestEMFBuilderFailover.ctx = ctx;
+        TestEMFBuilderReadReplicas.ctx = ctx;
+        TestEMFBuilderStatementCache.ctx = ctx;
         TestMultipleEMFCreation.ctx = ctx;
+        TestParallelClassLoading.ctx = ctx;
         TestStaticPersistence.ctx = ctx;
         TestUserClassLoaderProperty.ctx = ctx;
+        TestUnitNameCollision.ctx = ctx;
     }
 }
\ No newline at end of file
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.test.basic;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.jpa.EntityManagerFactoryBuilder;
+
+import org.junit.*;
+
+/**
+ * Test class to test failing over from a database that is down (nothing is 
+ * listening on its port) to the test database, using the EMF Builder service
+ */
+public class TestEMFBuilderFailover extends AccountTest {
+
+    public static final String TEST_NAME = "TestEMFBuilderFailover";
+    public static final String PERSISTENCE_UNIT_UNDER_TEST = "AccountsNoDataSource";
+
+    // A Derby network server that is not running
+    public static final String JDBC_DOWN_URL = "jdbc:derby://localhost:1528/accountDB;create=true";
+
+    public static EntityManagerFactory emf;
+    public static BundleContext ctx;
+    
+    @BeforeClass
+    public static void classSetUp() {
+        sdebug(TEST_NAME, "In setup");
+        EntityManagerFactoryBuilder emfb = lookupEntityManagerFactoryBuilder(TEST_NAME, PERSISTENCE_UNIT_UNDER_TEST, ctx);
+        Map<String,Object> props = defaultProps();
+        props.put("javax.persistence.jdbc.url", JDBC_DOWN_URL);
+        props.put("gemini.jpa.jdbc.failoverUrls", JDBC_TEST_URL);
+        props.put("gemini.jpa.jdbc.healthCheckInterval", "60000");
+        emf = emfb.createEntityManagerFactory(props);
+        sdebug(TEST_NAME, "Got EMF - " + emf);
+    }
+
+    @AfterClass
+    public static void classCleanUp() {
+        if (emf != null) {
+            emf.close();
+            emf = null;
+        }
+    }
+
+    @Test
+    public void testRepeatedConnectsSkipDownDatabase() {
+        debug("testRepeatedConnectsSkipDownDatabase");
+        // The down database was found to be down when the EMF was deployed, 
+        // so new EMs are served from the failover database straight away
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            EntityManager em = emf.createEntityManager();
+            em.getTransaction().begin();
+            em.createQuery("SELECT COUNT(a) FROM Account a").getSingleResult();
+            em.getTransaction().commit();
+            em.close();
+        }
+        debug("10 transactions took " + (System.currentTimeMillis() - start) + "ms");
+        // The down database stays marked down (it is not checked again until the 
+        // health check interval is up) and the failover database stays up
+        List<?> availableUrls = availableUrls();
+        debug("Available databases: " + availableUrls);
+        Assert.assertFalse("Down database is still in use", availableUrls.contains(JDBC_DOWN_URL));
+        Assert.assertTrue("Failover database is not in use", availableUrls.contains(JDBC_TEST_URL));
+    }
+
+    // The urls that the failover data source passed to the provider considers to be up
+    // (its package is not exported, so it is called reflectively)
+    List<?> availableUrls() {
+        Object ds = getEmf().getProperties().get("javax.persistence.nonJtaDataSource");
+        Assert.assertNotNull("No data source was passed to the provider", ds);
+        try {
+            return (List<?>) ds.getClass().getMethod("getAvailableUrls").invoke(ds);
+        } catch (Exception ex) {
+            throw new AssertionError("Data source " + ds + " is not a failover data source: " + ex);
+        }
+    }
+
+    /* === Subclassed methods === */
+
+    public EntityManagerFactory getEmf() { return emf; }
+
+    public String getTestPersistenceUnitName() { return PERSISTENCE_UNIT_UNDER_TEST; }
+
+    public boolean needsEmfService() { return false; }
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.test.basic;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.jpa.EntityManagerFactoryBuilder;
+
+import org.junit.*;
+
+/**
+ * Test class to test routing reads to read replicas, using the EMF Builder service.
+ * The replicas are separate databases that have the tables of the p-unit but no
+ * rows, so a read that returns no rows was served by a replica. Also tests that
+ * reads go to the primary when none of the replicas are up (nothing is listening
+ * on their port).
+ */
+public class TestEMFBuilderReadReplicas extends AccountTest {
+
+    public static final String TEST_NAME = "TestEMFBuilderReadReplicas";
+    public static final String PERSISTENCE_UNIT_UNDER_TEST = "AccountsNoDataSource";
+
+    public static final String JDBC_REPLICA_URL_1 = "jdbc:derby://localhost:1527/accountReplica1DB;create=true";
+    public static final String JDBC_REPLICA_URL_2 = "jdbc:derby://localhost:1527/accountReplica2DB;create=true";
+
+    // Derby network servers that are not running
+    public static final String JDBC_DOWN_URL_1 = "jdbc:derby://localhost:1528/accountReplica1DB;create=true";
+    public static final String JDBC_DOWN_URL_2 = "jdbc:derby://localhost:1529/accountReplica2DB;create=true";
+
+    public static final String COUNT_QUERY = "SELECT COUNT(a) FROM Account a";
+
+    public static EntityManagerFactory emf;
+    public static BundleContext ctx;
+
+    @BeforeClass
+    public static void classSetUp() {
+        sdebug(TEST_NAME, "In setup");
+        // Create the (empty) tables in the replicas
+        for (String url : new String[] { JDBC_REPLICA_URL_1, JDBC_REPLICA_URL_2 }) {
+            Map<String,Object> props = defaultProps();
+            props.put("javax.persistence.jdbc.url", url);
+            EntityManagerFactory replicaEmf = createEmf(props);
+            replicaEmf.createEntityManager().close();
+            replicaEmf.close();
+        }
+        emf = createEmf(replicaProps(JDBC_REPLICA_URL_1 + "," + JDBC_REPLICA_URL_2));
+        sdebug(TEST_NAME, "Got EMF - " + emf);
+    }
+
+    @AfterClass
+    public static void classCleanUp() {
+        if (emf != null) {
+            emf.close();
+            emf = null;
+        }
+    }
+
+    @Test
+    public void testReadsGoToReplicas() {
+        debug("testReadsGoToReplicas");
+        EntityManager em = emf.createEntityManager();
+        try {
+            // Written to the primary, and read back in the transaction once flushed
+            em.getTransaction().begin();
+            em.persist(newObject());
+            em.flush();
+            long written = count(em);
+            em.getTransaction().commit();
+            Assert.assertTrue("Write was not read back from the primary", written > 0);
+            // Reads outside of a transaction go to the empty replicas
+            for (int i = 0; i < 4; i++)
+                Assert.assertEquals("Read did not go to a replica", 0, count(em));
+        } finally {
+            em.close();
+        }
+        List<?> availableUrls = availableReadUrls(emf);
+        debug("Available replicas: " + availableUrls);
+        Assert.assertTrue("Replica 1 is not in use", availableUrls.contains(JDBC_REPLICA_URL_1));
+        Assert.assertTrue("Replica 2 is not in use", availableUrls.contains(JDBC_REPLICA_URL_2));
+    }
+
+    @Test
+    public void testReadsGoToPrimaryWhenReplicasDown() {
+        debug("testReadsGoToPrimaryWhenReplicasDown");
+        // The builder returns the existing EMF while it is open, so replace it for this test
+        emf.close();
+        emf = createEmf(replicaProps(JDBC_DOWN_URL_1 + "," + JDBC_DOWN_URL_2));
+        try {
+            EntityManager em = emf.createEntityManager();
+            try {
+                em.getTransaction().begin();
+                em.persist(newObject());
+                em.getTransaction().commit();
+                // Reads outside of a transaction fall back to the primary
+                for (int i = 0; i < 4; i++)
+                    Assert.assertTrue("Read did not go to the primary", count(em) > 0);
+            } finally {
+                em.close();
+            }
+            // The replicas were marked down, and are skipped until the retry interval is up
+            List<?> availableUrls = availableReadUrls(emf);
+            debug("Available replicas: " + availableUrls);
+            Assert.assertTrue("Down replicas are still in use", availableUrls.isEmpty());
+        } finally {
+            emf.close();
+            emf = createEmf(replicaProps(JDBC_REPLICA_URL_1 + "," + JDBC_REPLICA_URL_2));
+        }
+    }
+
+    /* === Helper methods === */
+
+    static EntityManagerFactory createEmf(Map<String,Object> props) {
+        EntityManagerFactoryBuilder emfb = lookupEntityManagerFactoryBuilder(TEST_NAME, PERSISTENCE_UNIT_UNDER_TEST, ctx);
+        return emfb.createEntityManagerFactory(props);
+    }
+
+    static Map<String,Object> replicaProps(String readUrls) {
+        Map<String,Object> props = defaultProps();
+        props.put("gemini.jpa.jdbc.readUrls", readUrls);
+        props.put("gemini.jpa.jdbc.healthCheckInterval", "60000");
+        return props;
+    }
+
+    static long count(EntityManager em) {
+        return ((Number) em.createQuery(COUNT_QUERY).getSingleResult()).longValue();
+    }
+
+    // The urls of the replicas that the data source passed to the provider considers
+    // to be up (its package is not exported, so it is called reflectively)
+    static List<?> availableReadUrls(EntityManagerFactory factory) {
+        Object ds = factory.getProperties().get("javax.persistence.nonJtaDataSource");
+        Assert.assertNotNull("No data source was passed to the provider", ds);
+        try {
+            return (List<?>) ds.getClass().getMethod("getAvailableReadUrls").invoke(ds);
+        } catch (Exception ex) {
+            throw new AssertionError("Data source " + ds + " does not route to read replicas: " + ex);
+        }
+    }
+
+    /* === Subclassed methods === */
+
+    public EntityManagerFactory getEmf() { return emf; }
+
+    public String getTestPersistenceUnitName() { return PERSISTENCE_UNIT_UNDER_TEST; }
+
+    public boolean needsEmfService() { return false; }
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.test.basic;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.jpa.EntityManagerFactoryBuilder;
+
+import org.eclipse.gemini.jpa.metrics.ConnectionMetricsMXBean;
+
+import org.junit.*;
+
+/**
+ * Test class to test the prepared statement cache of the data source of an EMF
+ * created by the EMF Builder service, through the JDBC connection of an EM and
+ * the statement cache counts of the connection metrics of the p-unit
+ */
+public class TestEMFBuilderStatementCache extends AccountTest {
+
+    public static final String TEST_NAME = "TestEMFBuilderStatementCache";
+    public static final String PERSISTENCE_UNIT_UNDER_TEST = "AccountsStatementCache";
+
+    public static final String QUERY_SQL = "SELECT COUNT(*) FROM ACCOUNT";
+    public static final String UPDATE_SQL = "UPDATE ACCOUNT SET BALANCE = BALANCE WHERE ID = ?";
+
+    public static EntityManagerFactory emf;
+    public static ConnectionMetricsMXBean metrics;
+    public static BundleContext ctx;
+
+    @BeforeClass
+    public static void classSetUp() throws Exception {
+        sdebug(TEST_NAME, "In setup");
+        EntityManagerFactoryBuilder emfb = lookupEntityManagerFactoryBuilder(TEST_NAME, PERSISTENCE_UNIT_UNDER_TEST, ctx);
+        Map<String,Object> props = defaultProps();
+        props.put("gemini.jpa.statementCacheSize", "10");
+        emf = emfb.createEntityManagerFactory(props);
+        sdebug(TEST_NAME, "Got EMF - " + emf);
+        ServiceReference<?>[] refs = ctx.getServiceReferences(ConnectionMetricsMXBean.class.getName(),
+                "(osgi.unit.name=" + PERSISTENCE_UNIT_UNDER_TEST + ")");
+        if (refs != null)
+            metrics = (ConnectionMetricsMXBean) ctx.getService(refs[0]);
+        sdebug(TEST_NAME, "Got connection metrics - " + metrics);
+    }
+
+    @AfterClass
+    public static void classCleanUp() {
+        if (emf != null) {
+            emf.close();
+            emf = null;
+        }
+        metrics = null;
+    }
+
+    @Test
+    public void testPreparingAgainHitsCache() throws Exception {
+        debug("testPreparingAgainHitsCache");
+        Assert.assertNotNull("No connection metrics service", metrics);
+        EntityManager em = emf.createEntityManager();
+        em.getTransaction().begin();
+        try {
+            Connection conn = em.unwrap(Connection.class);
+            long hits = metrics.getStatementCacheHits();
+            long misses = metrics.getStatementCacheMisses();
+            for (int i = 0; i < 3; i++) {
+                PreparedStatement stmt = conn.prepareStatement(QUERY_SQL);
+                stmt.executeQuery().close();
+                stmt.close();
+            }
+            Assert.assertEquals("Statement not prepared once", misses + 1, metrics.getStatementCacheMisses());
+            Assert.assertEquals("Cached statement not reused", hits + 2, metrics.getStatementCacheHits());
+        } finally {
+            em.getTransaction().rollback();
+            em.close();
+        }
+    }
+
+    @Test
+    public void testPendingBatchIsCleared() throws Exception {
+        debug("testPendingBatchIsCleared");
+        EntityManager em = emf.createEntityManager();
+        em.getTransaction().begin();
+        try {
+            Connection conn = em.unwrap(Connection.class);
+            // A user that adds to a batch and then closes the statement without running it
+            PreparedStatement stmt = conn.prepareStatement(UPDATE_SQL);
+            stmt.setInt(1, -1);
+            stmt.addBatch();
+            stmt.close();
+            // The next user of the same SQL must not run that batch
+            stmt = conn.prepareStatement(UPDATE_SQL);
+            int[] counts = stmt.executeBatch();
+            stmt.close();
+            Assert.assertEquals("Batch of the previous user was run", 0, counts.length);
+        } finally {
+            em.getTransaction().rollback();
+            em.close();
+        }
+    }
+
+    @Test
+    public void testNonPoolableStatementNotCached() throws Exception {
+        debug("testNonPoolableStatementNotCached");
+        Assert.assertNotNull("No connection metrics service", metrics);
+        EntityManager em = emf.createEntityManager();
+        em.getTransaction().begin();
+        try {
+            Connection conn = em.unwrap(Connection.class);
+            String sql = QUERY_SQL + " WHERE BALANCE >= 0";
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            stmt.setPoolable(false);
+            stmt.close();
+            long hits = metrics.getStatementCacheHits();
+            stmt = conn.prepareStatement(sql);
+            stmt.close();
+            Assert.assertEquals("Statement that asked not to be pooled was cached", hits, metrics.getStatementCacheHits());
+        } finally {
+            em.getTransaction().rollback();
+            em.close();
+        }
+    }
+
+    /* === Subclassed methods === */
+
+    public EntityManagerFactory getEmf() { return emf; }
+
+    public String getTestPersistenceUnitName() { return PERSISTENCE_UNIT_UNDER_TEST; }
+
+    public boolean needsEmfService() { return false; }
+}
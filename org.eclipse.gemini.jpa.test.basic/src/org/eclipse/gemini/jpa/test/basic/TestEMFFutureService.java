@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.test.basic;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.*;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Test class to test getting the EMF through the EMF future service
+ */
+public class TestEMFFutureService extends AccountTest {
+
+    public static final String TEST_NAME = "TestEMFFutureService";
+    public static final String PERSISTENCE_UNIT_UNDER_TEST = "Accounts";
+
+    // Max time to wait for the EMF to be deployed
+    public static final long MAX_DEPLOY_WAIT = 60000;
+
+    protected static EntityManagerFactory emf;
+    public static BundleContext ctx;
+
+    /* === Test Methods === */
+
+    @BeforeClass
+    public static void classSetUp() throws Exception {
+        sdebug(TEST_NAME, "In setup");
+        CompletionStage<?> stage = lookupEMFFuture(PERSISTENCE_UNIT_UNDER_TEST);
+        sdebug(TEST_NAME, "Got EMF future - " + stage);
+        if (stage != null) {
+            emf = (EntityManagerFactory) stage.toCompletableFuture().get(MAX_DEPLOY_WAIT, TimeUnit.MILLISECONDS);
+        }
+        sdebug(TEST_NAME, "Got EMF - " + emf);
+    }
+
+    @AfterClass
+    public static void classCleanUp() {
+        if (emf != null) {
+            emf.close();
+            emf = null;
+        }
+    }
+
+    @Test
+    public void testFutureCompletesWithEMFService() {
+        debug("testFutureCompletesWithEMFService");
+        Assert.assertNotNull("EMF future did not complete with an EMF", emf);
+        EntityManagerFactory emfService = lookupEntityManagerFactory(TEST_NAME, PERSISTENCE_UNIT_UNDER_TEST, ctx);
+        Assert.assertSame("EMF future did not complete with the EMF service", emfService, emf);
+    }
+
+    /* === Helper methods === */
+
+    protected static CompletionStage<?> lookupEMFFuture(String puName) throws InvalidSyntaxException {
+        String filter = "(&(osgi.unit.name="+puName+")(gemini.jpa.emf.future=true))";
+        ServiceReference<?>[] refs = ctx.getServiceReferences(CompletionStage.class.getName(), filter);
+        sdebug(TEST_NAME, "EMF future service refs looked up from registry: " + refs);
+        return (refs == null)
+            ? null
+            : (CompletionStage<?>) ctx.getService(refs[0]);
+    }
+
+    /* === Subclassed methods === */
+
+    public EntityManagerFactory getEmf() { return emf; }
+
+    public String getTestPersistenceUnitName() { return PERSISTENCE_UNIT_UNDER_TEST; }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.test.basic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import model.basic.Account;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.jpa.EntityManagerFactoryBuilder;
+
+import org.junit.*;
+
+/**
+ * Test class to test deploying EMFs for the same p-unit, and so loading its
+ * entity classes through the same composite loader, from many threads at once
+ */
+public class TestParallelClassLoading extends AccountTest {
+
+    public static final String TEST_NAME = "TestParallelClassLoading";
+    public static final String PERSISTENCE_UNIT_UNDER_TEST = "AccountsNoDataSource";
+
+    public static final int THREADS = 8;
+
+    public static List<EntityManagerFactory> emfs = new ArrayList<EntityManagerFactory>();
+    public static BundleContext ctx;
+
+    @BeforeClass
+    public static void classSetUp() throws Exception {
+        sdebug(TEST_NAME, "In setup");
+        final EntityManagerFactoryBuilder emfb = lookupEntityManagerFactoryBuilder(TEST_NAME, PERSISTENCE_UNIT_UNDER_TEST, ctx);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<EntityManagerFactory>> futures = new ArrayList<Future<EntityManagerFactory>>();
+            for (int i = 0; i < THREADS; i++) {
+                final int n = i;
+                futures.add(executor.submit(new Callable<EntityManagerFactory>() {
+                    public EntityManagerFactory call() throws Exception {
+                        Map<String,Object> props = defaultProps();
+                        props.put("eclipselink.session-name", TEST_NAME + n);
+                        start.await();
+                        EntityManagerFactory emf = emfb.createEntityManagerFactory(props);
+                        // Deploy it now, on this thread
+                        emf.createEntityManager().close();
+                        return emf;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<EntityManagerFactory> future : futures) {
+                emfs.add(future.get(120, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        sdebug(TEST_NAME, "Got " + emfs.size() + " EMFs");
+    }
+
+    @AfterClass
+    public static void classCleanUp() {
+        for (EntityManagerFactory emf : emfs) {
+            emf.close();
+        }
+        emfs.clear();
+    }
+
+    @Test
+    public void testSameEntityClassFromAllThreads() {
+        debug("testSameEntityClassFromAllThreads");
+        Assert.assertEquals(THREADS, emfs.size());
+        for (EntityManagerFactory emf : emfs) {
+            Assert.assertSame(Account.class, emf.getMetamodel().entity(Account.class).getJavaType());
+        }
+    }
+
+    @Test
+    public void testParallelQueries() throws Exception {
+        debug("testParallelQueries");
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (final EntityManagerFactory emf : emfs) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() {
+                        EntityManager em = emf.createEntityManager();
+                        try {
+                            return em.createQuery("SELECT a FROM Account a").getResultList().size();
+                        } finally {
+                            em.close();
+                        }
+                    }
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                Assert.assertNotNull(future.get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /* === Subclassed methods === */
+
+    public EntityManagerFactory getEmf() { return emfs.get(0); }
+
+    public String getTestPersistenceUnitName() { return PERSISTENCE_UNIT_UNDER_TEST; }
+
+    public boolean needsEmfService() { return false; }
+}
@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.test.basic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.jpa.EntityManagerFactoryBuilder;
+
+import org.junit.*;
+
+/**
+ * Test class to test a p-unit bundle registering a unit name that is still
+ * held by a p-unit of another bundle that is being unregistered. The unregister
+ * of the first bundle is held up by a service listener on its EMF Builder service.
+ * The second bundle must wait for the first to be unregistered and be woken up
+ * as soon as it is, or take the name over after the collision wait, in which case
+ * the late unregister of the first bundle must leave the second one registered.
+ */
+@SuppressWarnings({"rawtypes"})
+public class TestUnitNameCollision extends AccountTest {
+
+    public static final String TEST_NAME = "TestUnitNameCollision";
+    public static final String PERSISTENCE_UNIT_UNDER_TEST = "Accounts";
+
+    // Name of the p-unit in the two generated bundles
+    public static final String COLLIDING_UNIT_NAME = "TestUnitNameCollision";
+    public static final String COLLIDING_BUNDLE_NAME = "org.eclipse.gemini.jpa.test.collision.pu";
+
+    // Max time (ms) Gemini waits for a colliding p-unit (GeminiManager.MAX_EVENT_COLLISION_WAIT)
+    public static final long MAX_EVENT_COLLISION_WAIT = 3000;
+
+    // Time (ms) the unregister of the first bundle is held up for when it is to be woken up
+    public static final long UNREGISTER_DELAY = 500;
+
+    protected static EntityManagerFactory emf;
+    public static BundleContext ctx;
+
+    Bundle first;
+    Bundle second;
+    ExecutorService executor;
+
+    @BeforeClass
+    public static void classSetUp() {
+        sdebug(TEST_NAME, "In setup");
+        emf = lookupEntityManagerFactory(TEST_NAME, PERSISTENCE_UNIT_UNDER_TEST, ctx);
+        sdebug(TEST_NAME, "Got EMF - " + emf);
+    }
+
+    @AfterClass
+    public static void classCleanUp() {
+        if (emf != null) {
+            emf.close();
+            emf = null;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(2);
+        first = installCollidingBundle("1.0.0");
+        second = installCollidingBundle("2.0.0");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        for (Bundle b : new Bundle[] { first, second }) {
+            if (b != null)
+                b.uninstall();
+        }
+    }
+
+    @Test
+    public void testWaitingUnitWokenWhenNameReleased() throws Exception {
+        debug("testWaitingUnitWokenWhenNameReleased");
+        long waited = startSecondWhileFirstUnregistering(UNREGISTER_DELAY);
+        debug("Second bundle was registered after " + waited + "ms");
+        Assert.assertTrue("Second bundle was not woken up when the first was unregistered (took "
+                + waited + "ms)", waited < MAX_EVENT_COLLISION_WAIT);
+        assertRegisteredBy(second);
+    }
+
+    @Test
+    public void testLateUnregisterLeavesNewUnit() throws Exception {
+        debug("testLateUnregisterLeavesNewUnit");
+        startSecondWhileFirstUnregistering(MAX_EVENT_COLLISION_WAIT * 2);
+        // The first bundle has now finished its own unregister
+        assertRegisteredBy(second);
+        // The name must still be held by the second bundle, so starting the first bundle
+        // again has to wait for it instead of registering a second unit with the same name
+        first.start();
+        ServiceReference[] refs = builderRefs();
+        Assert.assertNotNull("No EMF Builder service for " + COLLIDING_UNIT_NAME, refs);
+        Assert.assertEquals("Unit name registered twice", 1, refs.length);
+    }
+
+    /* === Helper methods === */
+
+    /*
+     * Start the first bundle, then stop it and start the second bundle while the
+     * unregister of the first is held up for the given time. Return the time (ms)
+     * that the second bundle took to start, after the first was held up.
+     */
+    protected long startSecondWhileFirstUnregistering(final long delay) throws Exception {
+        first.start();
+        final ServiceReference firstRef = builderRef(first);
+        Assert.assertNotNull("First bundle did not register its EMF Builder service", firstRef);
+
+        final CountDownLatch unregistering = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ServiceListener blocker = new ServiceListener() {
+            public void serviceChanged(ServiceEvent event) {
+                if ((event.getType() == ServiceEvent.UNREGISTERING) && firstRef.equals(event.getServiceReference())) {
+                    unregistering.countDown();
+                    try {
+                        release.await(delay, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException iEx) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        ctx.addServiceListener(blocker, "(objectClass=" + EntityManagerFactoryBuilder.class.getName() + ")");
+        try {
+            Future<Object> stopping = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    first.stop();
+                    return null;
+                }
+            });
+            Assert.assertTrue("First bundle was not unregistered", unregistering.await(30, TimeUnit.SECONDS));
+
+            long start = System.currentTimeMillis();
+            Future<Object> starting = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    second.start();
+                    return null;
+                }
+            });
+            starting.get(delay + MAX_EVENT_COLLISION_WAIT * 2, TimeUnit.MILLISECONDS);
+            long waited = System.currentTimeMillis() - start;
+            release.countDown();
+            stopping.get(30, TimeUnit.SECONDS);
+            return waited;
+        } finally {
+            release.countDown();
+            ctx.removeServiceListener(blocker);
+        }
+    }
+
+    // Assert that the colliding unit is registered once, by the given bundle
+    protected void assertRegisteredBy(Bundle b) throws Exception {
+        ServiceReference[] refs = builderRefs();
+        Assert.assertNotNull("No EMF Builder service for " + COLLIDING_UNIT_NAME, refs);
+        Assert.assertEquals("Unit name registered twice", 1, refs.length);
+        Assert.assertEquals("Unit registered by the wrong bundle",
+                managedBundles(b), refs[0].getProperty("osgi.managed.bundles"));
+    }
+
+    protected ServiceReference builderRef(Bundle b) throws Exception {
+        ServiceReference[] refs = ctx.getServiceReferences(EntityManagerFactoryBuilder.class.getName(),
+                "(&(osgi.unit.name=" + COLLIDING_UNIT_NAME + ")(osgi.managed.bundles=" + managedBundles(b) + "))");
+        return (refs == null) ? null : refs[0];
+    }
+
+    // Value of the osgi.managed.bundles property of the services of the p-unit in the bundle
+    protected static String managedBundles(Bundle b) {
+        return b.getSymbolicName() + "_" + b.getVersion();
+    }
+
+    protected ServiceReference[] builderRefs() throws Exception {
+        return ctx.getServiceReferences(EntityManagerFactoryBuilder.class.getName(),
+                "(osgi.unit.name=" + COLLIDING_UNIT_NAME + ")");
+    }
+
+    // Install a bundle that has only a persistence descriptor, defining the colliding unit
+    protected static Bundle installCollidingBundle(String version) throws Exception {
+        String location = COLLIDING_BUNDLE_NAME + "_" + version;
+        return ctx.installBundle(location, new ByteArrayInputStream(collidingBundle(version)));
+    }
+
+    protected static byte[] collidingBundle(String version) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Bundle-ManifestVersion", "2");
+        attributes.putValue("Bundle-SymbolicName", COLLIDING_BUNDLE_NAME + "." + version.charAt(0));
+        attributes.putValue("Bundle-Version", version);
+        attributes.putValue("Meta-Persistence", "META-INF/persistence.xml");
+        String descriptor =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<persistence version=\"1.0\" xmlns=\"http://java.sun.com/xml/ns/persistence\">\n" +
+            "    <persistence-unit name=\"" + COLLIDING_UNIT_NAME + "\" transaction-type=\"RESOURCE_LOCAL\">\n" +
+            "        <provider>org.eclipse.persistence.jpa.PersistenceProvider</provider>\n" +
+            "        <exclude-unlisted-classes>true</exclude-unlisted-classes>\n" +
+            "    </persistence-unit>\n" +
+            "</persistence>\n";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JarOutputStream jar = new JarOutputStream(bytes, manifest);
+        try {
+            jar.putNextEntry(new ZipEntry("META-INF/persistence.xml"));
+            jar.write(descriptor.getBytes("UTF-8"));
+            jar.closeEntry();
+        } finally {
+            jar.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /* === Subclassed methods === */
+
+    public EntityManagerFactory getEmf() { return emf; }
+
+    public String getTestPersistenceUnitName() { return PERSISTENCE_UNIT_UNDER_TEST; }
+}
@@ -29,7 +29,8 @@ public class Activator extends TestActivator {
     /*====================*/
 
     String[] classNames = { 
-            "TestNativeEMF"
+            "TestNativeEMF",
+            "TestEMFServiceProperties"
     };
 
     public String getTestGroupName() { return "Native"; }
@@ -37,5 +38,6 @@ public class Activator extends TestActivator {
     public String[] getTestClasses() { return classNames; }
     public void setBundleContext(BundleContext ctx) { 
         TestNativeEMF.ctx = ctx;
+        TestEMFServiceProperties.ctx = ctx;
     }
 }
\ No newline at end of file
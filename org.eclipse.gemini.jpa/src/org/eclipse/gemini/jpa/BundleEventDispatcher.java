@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.threadFactory;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.BundleEvent;
+
+/**
+ * Hands bundle events off to a pool of worker threads so that the extender
+ * does not do its (potentially long-running) work on the thread that fired
+ * the event.
+ *
+ * Events for the same bundle are queued and processed strictly in the order
+ * in which they were fired, and never concurrently with each other. Events
+ * for different bundles may be processed in parallel.
+ *
+ * NOTE: When events are processed asynchronously a bundle may get resolved
+ * (and have classes loaded from it) before it has been assigned to us and
+ * its transformers registered, so entities may not always be woven.
+ *
+ * @see PersistenceBundleExtender
+ */
+public class BundleEventDispatcher {
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // Extender that will process the events
+    PersistenceBundleExtender extender;
+
+    // Worker threads
+    ExecutorService executor;
+
+    // Pending events, queued by bundle id. A bundle has an entry
+    // only while a worker is draining its queue.
+    // (Also acts as the lock for the dispatcher state.)
+    Map<Long, Deque<BundleEvent>> queues = new HashMap<Long, Deque<BundleEvent>>();
+
+    // Set once we are shut down
+    boolean closed;
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public BundleEventDispatcher(PersistenceBundleExtender extender, int threads) {
+        this.extender = extender;
+        this.executor = Executors.newFixedThreadPool(threads, threadFactory("Gemini JPA extender"));
+    }
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Queue an event for processing. If no events are pending for the
+     * bundle then a worker is started to process the bundle queue.
+     *
+     * @param event the bundle event to process
+     */
+    public void dispatch(BundleEvent event) {
+        Long bundleId = event.getBundle().getBundleId();
+        synchronized (queues) {
+            if (closed) {
+                warning("Extender dispatcher closed - ignoring event ",
+                        GeminiUtil.stringBundleEventFromInt(event.getType()));
+                return;
+            }
+            Deque<BundleEvent> queue = queues.get(bundleId);
+            if (queue != null) {
+                // A worker is already on this bundle, it will get to the event
+                queue.add(event);
+                return;
+            }
+            queue = new ArrayDeque<BundleEvent>();
+            queue.add(event);
+            queues.put(bundleId, queue);
+        }
+        executor.execute(new BundleQueueWorker(bundleId));
+    }
+
+    /**
+     * Stop accepting new events and wait for the pending ones to be processed.
+     *
+     * @param timeoutMillis how long to wait for pending events
+     */
+    public void shutdown(long timeoutMillis) {
+        debug("BundleEventDispatcher.shutdown");
+        synchronized (queues) {
+            closed = true;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                warning("Extender dispatcher timed out waiting for pending bundle events");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException iEx) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    // Drains the queue of a single bundle. Removes the queue when it is empty
+    // so the next event for the bundle will start a new worker.
+    class BundleQueueWorker implements Runnable {
+        Long bundleId;
+        BundleQueueWorker(Long bundleId) { this.bundleId = bundleId; }
+
+        public void run() {
+            while (true) {
+                BundleEvent event;
+                synchronized (queues) {
+                    event = queues.get(bundleId).poll();
+                    if (event == null) {
+                        queues.remove(bundleId);
+                        return;
+                    }
+                }
+                try {
+                    extender.processBundleEvent(event);
+                } catch (Throwable t) {
+                    // Keep going, subsequent events for the bundle must still be processed
+                    warning("Extender failed to process event " +
+                            GeminiUtil.stringBundleEventFromInt(event.getType()) +
+                            " for bundle " + event.getBundle().getSymbolicName(), t);
+                }
+            }
+        }
+    }
+}
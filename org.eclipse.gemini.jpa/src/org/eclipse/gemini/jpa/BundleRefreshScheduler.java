@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.getPackageAdmin;
+import static org.eclipse.gemini.jpa.GeminiUtil.threadFactory;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.osgi.service.packageadmin.PackageAdmin;
+
+/**
+ * Collects requests to refresh persistence bundles and refreshes them in batches.
+ *
+ * Each refresh causes the framework to stop, unresolve and re-resolve the bundle
+ * and all of its dependents, so refreshing bundles one at a time is expensive.
+ * Requests that arrive within the refresh window (see
+ * {@link GeminiSystemProperties#refreshDebounce()}) of the first pending request
+ * are coalesced into a single FrameworkWiring.refreshBundles() call.
+ *
+ * @see PersistenceBundleExtender#refreshBundle(Bundle)
+ */
+@SuppressWarnings({"deprecation"})
+public class BundleRefreshScheduler {
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // Context used to get at the framework wiring
+    BundleContext ctx;
+
+    // Time (in ms) to wait for more refresh requests before refreshing
+    long debounceMillis;
+
+    // Thread that issues the batched refresh calls
+    ScheduledExecutorService timer;
+
+    // Bundles waiting to be refreshed (also used as the lock for the pending state)
+    Set<Bundle> pendingBundles = new LinkedHashSet<Bundle>();
+
+    // Whether a batch refresh is already scheduled to pick up the pending bundles
+    boolean refreshScheduled;
+
+    // Number of batch refreshes issued that the framework has not finished yet
+    AtomicInteger refreshesInProgress = new AtomicInteger();
+
+    // Set once we are shut down
+    volatile boolean closed;
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public BundleRefreshScheduler(BundleContext ctx, long debounceMillis) {
+        this.ctx = ctx;
+        this.debounceMillis = debounceMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor(threadFactory("Gemini JPA refresh"));
+    }
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Request that a bundle be refreshed. The bundle will be refreshed
+     * along with any other bundles that are requested within the refresh window.
+     *
+     * @param b the bundle to refresh
+     */
+    public void scheduleRefresh(Bundle b) {
+        debug("BundleRefreshScheduler.scheduleRefresh: ", b);
+        synchronized (pendingBundles) {
+            if (closed) {
+                warning("Refresh scheduler closed - not refreshing bundle ", b.getSymbolicName());
+                return;
+            }
+            pendingBundles.add(b);
+            if (refreshScheduled) {
+                // Will go out with the refresh that is already scheduled
+                return;
+            }
+            refreshScheduled = true;
+        }
+        timer.schedule(new Runnable() {
+            public void run() { refreshPendingBundles(); }
+        }, debounceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the number of batch refreshes that have been issued
+     * but that the framework has not yet finished.
+     */
+    public int getRefreshesInProgress() {
+        return refreshesInProgress.get();
+    }
+
+    /**
+     * Stop refreshing bundles. Refreshes that were requested but not yet
+     * issued are dropped.
+     * 
+     * @return the bundles whose refresh was dropped
+     */
+    public Set<Bundle> shutdown() {
+        debug("BundleRefreshScheduler.shutdown - batch refreshes still in progress: ", getRefreshesInProgress());
+        Set<Bundle> dropped;
+        synchronized (pendingBundles) {
+            closed = true;
+            dropped = new LinkedHashSet<Bundle>(pendingBundles);
+            if (!pendingBundles.isEmpty()) {
+                debug("BundleRefreshScheduler dropping pending refreshes: ", pendingBundles);
+                pendingBundles.clear();
+            }
+        }
+        timer.shutdownNow();
+        return dropped;
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    // Take all of the pending bundles and refresh them together
+    protected void refreshPendingBundles() {
+        Set<Bundle> bundles;
+        synchronized (pendingBundles) {
+            refreshScheduled = false;
+            if (closed || pendingBundles.isEmpty()) return;
+            bundles = new LinkedHashSet<Bundle>();
+            for (Bundle b : pendingBundles) {
+                // Nothing to do for bundles that have gone away in the meantime
+                if (b.getState() != Bundle.UNINSTALLED)
+                    bundles.add(b);
+            }
+            pendingBundles.clear();
+        }
+        if (bundles.isEmpty()) return;
+
+        debug("BundleRefreshScheduler refreshing bundles: ", bundles, 
+              " (batch refreshes already in progress: ", getRefreshesInProgress(), ")");
+        try {
+            FrameworkWiring fw = frameworkWiring();
+            if (fw != null) {
+                final long startTime = System.currentTimeMillis();
+                final int numBundles = bundles.size();
+                refreshesInProgress.incrementAndGet();
+                fw.refreshBundles(bundles, new FrameworkListener() {
+                    public void frameworkEvent(FrameworkEvent event) {
+                        refreshesInProgress.decrementAndGet();
+                        if (event.getType() == FrameworkEvent.ERROR) {
+                            warning("Error refreshing persistence bundles ", event.getThrowable());
+                        } else {
+                            debug("BundleRefreshScheduler refreshed ", numBundles, " bundles in ",
+                                  (System.currentTimeMillis() - startTime), " ms");
+                        }
+                    }
+                });
+            } else {
+                // No wiring support, fall back to the package admin
+                PackageAdmin admin = getPackageAdmin(ctx);
+                admin.refreshPackages(bundles.toArray(new Bundle[bundles.size()]));
+            }
+        } catch (Throwable t) {
+            warning("Could not refresh persistence bundles ", t);
+        }
+    }
+
+    // Return the framework wiring of the system bundle, or null if not available
+    protected FrameworkWiring frameworkWiring() {
+        Bundle systemBundle = ctx.getBundle(0);
+        return (systemBundle == null)
+            ? null
+            : systemBundle.adapt(FrameworkWiring.class);
+    }
+}
@@ -23,11 +23,16 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 
-import org.eclipse.gemini.jpa.classloader.CompositeClassLoader;
+import org.eclipse.gemini.jpa.classloader.CompositeLoaderRegistry;
 import org.eclipse.gemini.jpa.datasource.DataSourceUtil;
 import org.eclipse.gemini.jpa.jndi.JndiUtil;
 import org.eclipse.gemini.jpa.configadmin.ConfigAdminListener;
@@ -59,7 +64,18 @@ public class GeminiManager {
     /* Static constants */
     /*==================*/
 
+    /** 
+     * @deprecated Colliding persistence units are now waited on for up to 
+     * MAX_EVENT_COLLISION_WAIT ms instead of being polled a number of times 
+     */
+    @Deprecated
     public static final int MAX_EVENT_COLLISION_TRIES = 3;
+
+    // Max time (in ms) to wait for a colliding persistence unit to be unregistered
+    public static final long MAX_EVENT_COLLISION_WAIT = 3000;
+
+    /** Registration states of a persistence unit name */
+    public enum UnitState { REGISTERING, REGISTERED, UNREGISTERING }
     
     /*=====================*/
     /* Global Gemini state */
@@ -71,6 +87,13 @@ public class GeminiManager {
     /** Map of p-units we have registered */
     Map<String, PUnitInfo> pUnitsByName;
 
+    /** Registration state of the p-units in pUnitsByName (guarded by unitStateLock) */
+    Map<String, UnitState> unitStates = new HashMap<String, UnitState>();
+    
+    /** Lock for p-unit state transitions and the condition to wait for a p-unit to be unregistered */
+    ReentrantLock unitStateLock = new ReentrantLock();
+    Condition unitUnregistered = unitStateLock.newCondition();
+
     /** Extender to find and process persistence unit bundles */
     PersistenceBundleExtender extender;
 
@@ -83,6 +106,9 @@ public class GeminiManager {
     /** JNDI utility methods */
     JndiUtil jndiUtil;
     
+    /** Composite loaders shared by the persistence bundle revisions */
+    CompositeLoaderRegistry loaderRegistry;
+
     /** Anchor class gen utility methods */
     AnchorClassUtil anchorUtil;    
     
@@ -91,6 +117,12 @@ public class GeminiManager {
 
     /** Our wrapper class over the native EclipseLink provider */
     ProviderWrapper provider;
+
+    /** Index of parsed persistence descriptors (null if not enabled) */
+    PersistenceDescriptorIndex descriptorIndex;
+
+    /** Threads for background work, e.g. asynchronous EMF deployment */
+    ScheduledExecutorService executor;
     
     /*================*/
     /* Getter/setters */
@@ -111,6 +143,9 @@ public class GeminiManager {
     public JndiUtil getJndiUtil() { return jndiUtil; }
     public void setJndiUtil(JndiUtil jndiUtil) { this.jndiUtil = jndiUtil; }
 
+    public CompositeLoaderRegistry getLoaderRegistry() { return loaderRegistry; }
+    public void setLoaderRegistry(CompositeLoaderRegistry registry) { this.loaderRegistry = registry; }
+
     public AnchorClassUtil getAnchorUtil() { return anchorUtil; }
     public void setAnchorUtil(AnchorClassUtil util) { this.anchorUtil = util; }
     
@@ -121,8 +156,14 @@ public class GeminiManager {
     public void setProvider(ProviderWrapper provider) { this.provider = provider; }
     
     public Map<String, PUnitInfo> getPUnitsByName() { return pUnitsByName; }
+
+    public PersistenceDescriptorIndex getDescriptorIndex() { return descriptorIndex; }
+    public void setDescriptorIndex(PersistenceDescriptorIndex index) { this.descriptorIndex = index; }
     public void setPUnitsByName(Map<String, PUnitInfo> pUnitsByName) { this.pUnitsByName = pUnitsByName; }
 
+    public ScheduledExecutorService getExecutor() { return executor; }
+    public void setExecutor(ScheduledExecutorService executor) { this.executor = executor; }
+
     /*=================================*/
     /* Initialization/shutdown methods */
     /*=================================*/
@@ -132,15 +173,27 @@ public class GeminiManager {
         // Initialize our state
         ctx = context;
         pUnitsByName = Collections.synchronizedMap(new HashMap<String, PUnitInfo>());
+        executor = Executors.newScheduledThreadPool(GeminiSystemProperties.workerThreads(), 
+                                                    GeminiUtil.threadFactory("Gemini JPA worker"));
         
         provider = new ProviderWrapper();
         provider.initialize(this);
 
         extender = new PersistenceBundleExtender(this);
         dataSourceUtil = new DataSourceUtil(this);
+        dataSourceUtil.startTrackingDataSourceFactories();
         jndiUtil = new JndiUtil(this);
+        jndiUtil.startListening();
+        loaderRegistry = new CompositeLoaderRegistry(context);
         anchorUtil = new AnchorClassUtil(GeminiSystemProperties.generateAnchorClasses());
         servicesUtil = new ServicesUtil(this);
+
+        // Load the descriptors that were parsed the last time we ran
+        if (GeminiSystemProperties.descriptorIndex()) {
+            descriptorIndex = new PersistenceDescriptorIndex(
+                    context.getDataFile(PersistenceDescriptorIndex.INDEX_FILE_NAME));
+            descriptorIndex.load();
+        }
         
         // Register as a provider 
         servicesUtil.registerProviderService();
@@ -161,6 +214,7 @@ public class GeminiManager {
         configAdminListener.stopListening();
         extender.stopListening();
         servicesUtil.unregisterProviderService();
+        jndiUtil.stopListening();
         
         // Unregister all of the persistence units that we have registered
         List<PUnitInfo> pUnits = new ArrayList<PUnitInfo>(); // Need a new copy
@@ -170,7 +224,18 @@ public class GeminiManager {
         
         // Unassign all of the persistence units that have been assigned to us
         extender.clearAllPUnitInfos();
+        dataSourceUtil.stopTrackingDataSourceFactories();
+
+        // Save the parsed descriptors for next time
+        if (descriptorIndex != null) {
+            descriptorIndex.save();
+            descriptorIndex = null;
+        }
         
+        // Stop any background work that is still going
+        executor.shutdownNow();
+        executor = null;
+
         // Clean up any provider resources
         provider.shutdown(context);
         
@@ -179,6 +244,9 @@ public class GeminiManager {
         extender = null;
         configAdminListener = null;
         dataSourceUtil = null; 
+        jndiUtil = null;
+        loaderRegistry.clear();
+        loaderRegistry = null;
         anchorUtil = null;
         servicesUtil = null;
     }
@@ -201,7 +269,7 @@ public class GeminiManager {
         }
 
         // Create a loader that can load from the persistence bundle as well as from the provider bundle
-        ClassLoader compositeLoader = CompositeClassLoader.createCompositeLoader(getBundleContext(), b);
+        ClassLoader compositeLoader = loaderRegistry.getCompositeLoader(b);
         
         // Process PU and register weaving/transformers
         provider.initializeForWeaving(compositeLoader, pUnits);        
@@ -222,30 +290,10 @@ public class GeminiManager {
         for (PUnitInfo info : pUnits) {
             String unitName = info.getUnitName();
 
-            if (pUnitsByName.containsKey(unitName)) {
-                // Shouldn't be in the map. Race condition - 
-                // Either the bundle is already being registered or 
-                // it's being unregistered because of being stopped 
-                PUnitInfo existingInfo = pUnitsByName.get(unitName);
-                if ((existingInfo != null) && 
-                    (existingInfo.getBundle() == info.getBundle())) {
-                    // It is the same bundle - move along and assume it will be registered
-                    continue;
-                }
-                int attempts = 0;
-                while (pUnitsByName.containsKey(unitName) && (attempts < MAX_EVENT_COLLISION_TRIES)) {
-                    // The previous entry just hasn't been removed yet. Take a short
-                    // break and give a chance for the unregister to occur.
-                    try { Thread.sleep(1000); } catch (InterruptedException iEx) {}
-                    attempts++;
-                } 
-                if (pUnitsByName.containsKey(unitName)) {
-                    // It's still there. Take matters into our own hands and force the unregister
-                    warning("Manager forcing unregister of persistence unit: " + info.getUnitName());
-                    Collection<PUnitInfo> units = new ArrayList<PUnitInfo>();
-                    units.add(info);
-                    unregisterPersistenceUnits(units);
-                }
+            // Claim the unit name, waiting for any previous owner to go away
+            if (!claimUnitName(info)) {
+                // It is the same bundle - move along and assume it will be registered
+                continue;
             }
             // See if our config admin listener has been notified about any additional config
             PersistenceUnitConfiguration config = getConfigAdminListener().configForPersistenceUnitName(unitName);
@@ -255,11 +303,12 @@ public class GeminiManager {
                 config.updatePUnitInfo(info);
             }
             
-            // Keep a local copy of all of the p-units we are registering
-            pUnitsByName.put(unitName, info);
-                        
             // Do the registering
-            servicesUtil.registerEMFServices(info);
+            try {
+                servicesUtil.registerEMFServices(info);
+            } finally {
+                setUnitState(info, UnitState.REGISTERED);
+            }
         }
     }
 
@@ -277,11 +326,41 @@ public class GeminiManager {
         
         for (PUnitInfo info : pUnits) {
             
-            servicesUtil.unregisterWeavingHookService(info);
-            servicesUtil.unregisterEMFServices(info);
+            String unitName = info.getUnitName();
+            setUnitState(info, UnitState.UNREGISTERING);
+            try {
+                servicesUtil.unregisterWeavingHookService(info);
+                servicesUtil.unregisterEMFServices(info);
+                if (info.getBundle() != null)
+                    jndiUtil.release(info.getBundle());
+            } finally {
+                // Remove from our local pUnit copy and wake up anyone waiting for the name. 
+                // The name may already belong to a p-unit of another bundle (if this one 
+                // was forced out of it) in which case that p-unit is left alone.
+                unitStateLock.lock();
+                try {
+                    if (pUnitsByName.get(unitName) == info) {
+                        pUnitsByName.remove(unitName);
+                        unitStates.remove(unitName);
+                    }
+                    unitUnregistered.signalAll();
+                } finally {
+                    unitStateLock.unlock();
+                }
+            }
+        }
+    }
 
-            // Remove from our local pUnit copy 
-            pUnitsByName.remove(info.getUnitName());
+    /**
+     * Return the registration state of a p-unit, or null if no p-unit 
+     * with the given name is registered.
+     */
+    public UnitState getUnitState(String unitName) {
+        unitStateLock.lock();
+        try {
+            return unitStates.get(unitName);
+        } finally {
+            unitStateLock.unlock();
         }
     }
 
@@ -291,4 +370,72 @@ public class GeminiManager {
 
     public Bundle getBundle() { return ctx.getBundle(); }  
 
+    /*
+     * Put the p-unit in pUnitsByName in the REGISTERING state.
+     * 
+     * If a p-unit with the same name from another bundle is present (because it 
+     * is still being unregistered after its bundle was stopped or updated) then wait 
+     * until it has been unregistered, for up to MAX_EVENT_COLLISION_WAIT ms. 
+     * If it is still there after that then force it to be unregistered.
+     * 
+     * Return false if the name is already taken by a p-unit in the same bundle.
+     */
+    protected boolean claimUnitName(PUnitInfo info) {
+        String unitName = info.getUnitName();
+        PUnitInfo existingInfo;
+        unitStateLock.lock();
+        try {
+            existingInfo = pUnitsByName.get(unitName);
+            if ((existingInfo != null) && (existingInfo.getBundle() == info.getBundle())) {
+                return false;
+            }
+            long remaining = TimeUnit.MILLISECONDS.toNanos(MAX_EVENT_COLLISION_WAIT);
+            while ((existingInfo != null) && (remaining > 0)) {
+                // Shouldn't be in the map. Race condition - the previous entry 
+                // just hasn't been removed yet. Wait for the unregister to occur.
+                debug("Manager waiting for persistence unit ", unitName, " in state ", unitStates.get(unitName));
+                try {
+                    remaining = unitUnregistered.awaitNanos(remaining);
+                } catch (InterruptedException iEx) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                existingInfo = pUnitsByName.get(unitName);
+            }
+            if (existingInfo == null) {
+                pUnitsByName.put(unitName, info);
+                unitStates.put(unitName, UnitState.REGISTERING);
+                return true;
+            }
+        } finally {
+            unitStateLock.unlock();
+        }
+        // It's still there. Take matters into our own hands and force the unregister
+        warning("Manager forcing unregister of persistence unit: " + unitName);
+        Collection<PUnitInfo> units = new ArrayList<PUnitInfo>();
+        units.add(existingInfo);
+        unregisterPersistenceUnits(units);
+        
+        unitStateLock.lock();
+        try {
+            pUnitsByName.put(unitName, info);
+            unitStates.put(unitName, UnitState.REGISTERING);
+        } finally {
+            unitStateLock.unlock();
+        }
+        return true;
+    }
+
+    // Move a p-unit to a new state, if it is (still) the one in pUnitsByName for its name
+    protected void setUnitState(PUnitInfo info, UnitState state) {
+        unitStateLock.lock();
+        try {
+            if (pUnitsByName.get(info.getUnitName()) == info) {
+                unitStates.put(info.getUnitName(), state);
+            }
+        } finally {
+            unitStateLock.unlock();
+        }
+    }
+
 }
\ No newline at end of file
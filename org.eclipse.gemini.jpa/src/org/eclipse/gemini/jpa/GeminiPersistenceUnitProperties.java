@@ -34,6 +34,196 @@ public class GeminiPersistenceUnitProperties {
      */
     public static String PROVIDER_CONNECTED_DATA_SOURCE = "gemini.jpa.providerConnectedDataSource";
 
+    /** 
+     * Prefix of the Gemini-specific properties. Persistence descriptor <property> 
+     * elements with names that start with this prefix are kept by Gemini JPA.
+     */
+    public static String PROPERTY_PREFIX = "gemini.jpa.";
+
+    /** 
+     * Property that, when set to true, causes Gemini JPA to pool the connections 
+     * of the data source it creates from a JDBC driver (or a DataSourceFactory 
+     * service), instead of opening a new connection each time one is requested.
+     * The pool is configured by the CONNECTION_POOL_* properties below.
+     * The default value of this property is false.
+     */
+    public static String CONNECTION_POOL = "gemini.jpa.connectionPool";
+
+    /** Min number of connections kept open by the pool (default 0) */
+    public static String CONNECTION_POOL_MIN_SIZE = "gemini.jpa.connectionPool.minSize";
+
+    /** Max number of connections in use from the pool at once (default 10) */
+    public static String CONNECTION_POOL_MAX_SIZE = "gemini.jpa.connectionPool.maxSize";
+
+    /** Max time (ms) to wait for a connection when all are in use (default 30000) */
+    public static String CONNECTION_POOL_ACQUIRE_TIMEOUT = "gemini.jpa.connectionPool.acquireTimeout";
+
+    /** Time (ms) after which an idle connection above the min number is closed (default 600000) */
+    public static String CONNECTION_POOL_IDLE_TIMEOUT = "gemini.jpa.connectionPool.idleTimeout";
+
+    /** Max time (ms) a connection is used for before it is replaced (default 1800000) */
+    public static String CONNECTION_POOL_MAX_LIFETIME = "gemini.jpa.connectionPool.maxLifetime";
+
+    /** 
+     * SQL used to check that an idle connection is still usable. If not specified 
+     * then the connection is checked using Connection.isValid().
+     */
+    public static String CONNECTION_POOL_VALIDATION_QUERY = "gemini.jpa.connectionPool.validationQuery";
+
+    /** 
+     * Number of connections to open (in parallel), validate and leave idle in the 
+     * connection pool as soon as the DataSourceFactory of the p-unit is available, 
+     * so that the first uses of the EMF don't all have to open a connection. Only 
+     * applies when the connections of a DataSourceFactory are pooled. The outcome is 
+     * reported by the PREFILL_* service properties of the EMF service (default 0)
+     */
+    public static String CONNECTION_POOL_PREFILL = "gemini.jpa.connectionPool.prefill";
+
+    /** 
+     * Max number of prepared statements cached for each connection of the data source 
+     * that Gemini JPA creates, so that SQL that is run again on a connection is not 
+     * prepared again. Statements are cached on the physical connections of a pool, 
+     * for as long as the connection is open otherwise. With a ConnectionPoolDataSource 
+     * the value is passed to the driver as its max number of statements instead.
+     * The default value of this property is 0 (no caching).
+     */
+    public static String STATEMENT_CACHE_SIZE = "gemini.jpa.statementCacheSize";
+
+    /** 
+     * Property that selects what Gemini JPA asks the DataSourceFactory service of the 
+     * JDBC driver for. The value is one of:
+     * 
+     *     DATA_SOURCE_STRATEGY_DRIVER - a Driver, that connections are opened from directly
+     *     DATA_SOURCE_STRATEGY_DATA_SOURCE - a DataSource created by the driver
+     *     DATA_SOURCE_STRATEGY_CONNECTION_POOL_DATA_SOURCE - a ConnectionPoolDataSource 
+     *         created by the driver, whose PooledConnections are kept and reused
+     * 
+     * The JDBC url, user and password are passed to the DataSourceFactory. When 
+     * CONNECTION_POOL is set the pool settings are passed to a ConnectionPoolDataSource
+     * as the standard pool properties, and a DataSource is pooled by Gemini JPA.
+     * If the DataSourceFactory can't create what was asked for then the Driver is used.
+     * The property is ignored when the driver is loaded from the p-unit bundle.
+     * The default value of this property is DATA_SOURCE_STRATEGY_DRIVER.
+     */
+    public static String DATA_SOURCE_STRATEGY = "gemini.jpa.dataSourceStrategy";
+
+    public static String DATA_SOURCE_STRATEGY_DRIVER = "driver";
+    public static String DATA_SOURCE_STRATEGY_DATA_SOURCE = "dataSource";
+    public static String DATA_SOURCE_STRATEGY_CONNECTION_POOL_DATA_SOURCE = "connectionPoolDataSource";
+
+    /** 
+     * Comma-separated list of the JDBC urls of read replicas of the database. When set, 
+     * a data source is created for each replica in the same way as for the primary url, 
+     * and the EclipseLink read connection pool (used for reading outside of transactions)
+     * gets its connections from the replicas. Writes go to the primary. A replica that 
+     * can't be connected to is skipped until it is tried again (see JDBC_HEALTH_CHECK_INTERVAL),
+     * and reads go to the primary when no replica can be connected to.
+     */
+    public static String JDBC_READ_URLS = "gemini.jpa.jdbc.readUrls";
+
+    /** 
+     * Comma-separated list of the JDBC urls of databases to fail over to when the 
+     * database at the primary url can't be connected to, in order of preference. 
+     * When set, a data source is created for each url in the same way as for the 
+     * primary url, and connections are got from the first database that is up. 
+     * A database that fails is skipped until a health check connects to it again.
+     */
+    public static String JDBC_FAILOVER_URLS = "gemini.jpa.jdbc.failoverUrls";
+
+    /** 
+     * Time (ms) after which a database that failed is first checked again when 
+     * JDBC_FAILOVER_URLS is set, or a read replica that failed is first tried again 
+     * when JDBC_READ_URLS is set. The time doubles after each failed check, up to 
+     * a minute (default 5000)
+     */
+    public static String JDBC_HEALTH_CHECK_INTERVAL = "gemini.jpa.jdbc.healthCheckInterval";
+
+    /** 
+     * How read connections are spread over the replicas, either READ_ROUTING_ROUND_ROBIN 
+     * or READ_ROUTING_LEAST_BUSY (the replica with the fewest read connections in use).
+     * The default value of this property is READ_ROUTING_ROUND_ROBIN.
+     */
+    public static String JDBC_READ_ROUTING = "gemini.jpa.jdbc.readRouting";
+
+    public static String READ_ROUTING_ROUND_ROBIN = "roundRobin";
+    public static String READ_ROUTING_LEAST_BUSY = "leastBusy";
+
+    /*===================================================================*/
+    /* Gemini-specific persistence unit properties that can be set in    */
+    /* the persistence descriptor or in an OSGi Configuration object.    */
+    /*===================================================================*/
+
+    /** 
+     * Property that, when set to true, causes Gemini JPA to create the EMF of the
+     * persistence unit, deploy it and open a first connection on a background thread 
+     * as soon as the EMF service has been registered, instead of waiting for the first 
+     * call on the EMF service. The EMF service is registered with the PREWARM_STATUS 
+     * service property, which is updated when pre-warming has finished.
+     * The default value of this property is false.
+     */
+    public static String PUNIT_PREWARM = "gemini.jpa.punit.prewarm";
+
+    /** 
+     * Property that, when set to true along with PUNIT_PREWARM, causes the named 
+     * queries of the persistence unit to be precompiled as part of pre-warming.
+     * The default value of this property is false.
+     */
+    public static String PUNIT_PREWARM_QUERIES = "gemini.jpa.punit.prewarmQueries";
+
+    /** 
+     * Property that, when set to true, causes Gemini JPA to record the JDBC connection 
+     * metrics of the persistence unit (acquire time histogram, connections in use and 
+     * idle, acquire failures and connection hold times) and to publish them as a 
+     * ConnectionMetricsMXBean OSGi service and MBean while the unit is registered.
+     * The default value of this property is false.
+     * @see org.eclipse.gemini.jpa.metrics.ConnectionMetricsMXBean
+     */
+    public static String PUNIT_METRICS = "gemini.jpa.punit.metrics";
+
+    /*======================================================*/
+    /* Service properties set by Gemini JPA on EMF services */
+    /*======================================================*/
+
+    /** 
+     * Service property on the EMF service of a persistence unit that is being 
+     * pre-warmed. Its value is one of PREWARM_PENDING, PREWARM_READY or PREWARM_FAILED.
+     */
+    public static String PREWARM_STATUS = "gemini.jpa.prewarm.status";
+    public static String PREWARM_PENDING = "pending";
+    public static String PREWARM_READY = "ready";
+    public static String PREWARM_FAILED = "failed";
+
+    /** 
+     * Service property on the EMF service of a persistence unit, set to "true" when 
+     * the data source of the unit is available. When in-place EMF updates are enabled 
+     * (see GeminiSystemProperties.IN_PLACE_EMF_UPDATE_PROPERTY) the EMF service of a 
+     * unit whose DataSourceFactory is not registered yet has this property set to 
+     * "false", and it changes to "true" when the DataSourceFactory comes online. 
+     * Clients can use a filter such as (gemini.jpa.emf.ready=true) to only get
+     * EMF services that are able to connect.
+     */
+    public static String EMF_READY = "gemini.jpa.emf.ready";
+
+    /** 
+     * Service properties on the EMF service of a persistence unit whose connection 
+     * pool is pre-filled (see CONNECTION_POOL_PREFILL). The status is one of 
+     * PREWARM_PENDING, PREWARM_READY (all of the connections were opened and validated) 
+     * or PREWARM_FAILED, the connections property is the number of connections that 
+     * were validated and the time property is how long the pre-fill took (in ms).
+     */
+    public static String PREFILL_STATUS = "gemini.jpa.prefill.status";
+    public static String PREFILL_CONNECTIONS = "gemini.jpa.prefill.connections";
+    public static String PREFILL_TIME = "gemini.jpa.prefill.time";
+
+    /** 
+     * Service property, set to "true", on the EMF future service of a persistence unit. 
+     * The future service is registered under java.util.concurrent.CompletionStage with 
+     * the properties of the EMF service (e.g. osgi.unit.name) plus this one, so clients 
+     * should include it in their filter, e.g. (&(osgi.unit.name=Accounts)(gemini.jpa.emf.future=true)), 
+     * to avoid matching CompletionStage services that have nothing to do with Gemini JPA.
+     */
+    public static String EMF_FUTURE = "gemini.jpa.emf.future";
+
     /*===================================================================*/
     /* Gemini-specific persistence unit properties that can be set in an */
     /* OSGi Configuration object.                                        */
@@ -43,6 +43,50 @@ public class GeminiSystemProperties {
     // persistence unit bundle
     public static String REFRESH_BUNDLES_PROPERTY = "org.eclipse.gemini.refreshBundles";
     public static String REFRESH_BUNDLES_DEFAULT = "TRUE";
+
+    // Set if bundle events are to be processed asynchronously by the extender
+    // (in order for each bundle) instead of on the thread that fired the event
+    public static String ASYNC_EXTENDER_PROPERTY = "org.eclipse.gemini.asyncExtender";
+    public static String ASYNC_EXTENDER_DEFAULT = "FALSE";
+
+    // Max number of already installed persistence bundles to process concurrently 
+    // when Gemini starts up (defaults to the number of available processors)
+    public static String DISCOVERY_PARALLELISM_PROPERTY = "org.eclipse.gemini.discoveryParallelism";
+
+    // Time (in ms) to collect persistence bundle refresh requests before 
+    // refreshing all of the collected bundles together
+    public static String REFRESH_DEBOUNCE_PROPERTY = "org.eclipse.gemini.refreshDebounce";
+    public static String REFRESH_DEBOUNCE_DEFAULT = "100";
+
+    // Set if the persistence units parsed from the descriptors of persistence bundles 
+    // are to be saved in an index so they need not be parsed again after a restart
+    // (units whose descriptors hold credentials are always parsed again)
+    public static String DESCRIPTOR_INDEX_PROPERTY = "org.eclipse.gemini.descriptorIndex";
+    public static String DESCRIPTOR_INDEX_DEFAULT = "FALSE";
+
+    // Set if the EMF and EMFBuilder service objects are to be instances of generated 
+    // classes instead of dynamic proxies (java.lang.reflect.Proxy)
+    public static String GENERATED_PROXIES_PROPERTY = "org.eclipse.gemini.generatedProxies";
+    public static String GENERATED_PROXIES_DEFAULT = "FALSE";
+
+    // Number of threads Gemini uses for background work (e.g. deploying EMFs
+    // asynchronously for the EMF future service)
+    public static String WORKER_THREADS_PROPERTY = "org.eclipse.gemini.workerThreads";
+    public static String WORKER_THREADS_DEFAULT = "2";
+
+    // Set if the EMF service of a p-unit whose DataSourceFactory is not yet registered 
+    // is to be registered anyway (with gemini.jpa.emf.ready=false) and updated in place 
+    // when the DSF comes online, instead of only being registered once the DSF is there
+    public static String IN_PLACE_EMF_UPDATE_PROPERTY = "org.eclipse.gemini.inPlaceEMFUpdate";
+    public static String IN_PLACE_EMF_UPDATE_DEFAULT = "FALSE";
+
+    // How the composite loaders used by EclipseLink pick the bundle to load a class or 
+    // resource from: "linear" (try the p-unit bundle then the provider bundle, in order) or 
+    // "packageIndexed" (go to the bundle whose wiring provides the package, if known)
+    public static String CLASSLOADER_STRATEGY_PROPERTY = "org.eclipse.gemini.classloaderStrategy";
+    public static String CLASSLOADER_STRATEGY_LINEAR = "linear";
+    public static String CLASSLOADER_STRATEGY_PACKAGE_INDEXED = "packageIndexed";
+    public static String CLASSLOADER_STRATEGY_DEFAULT = CLASSLOADER_STRATEGY_LINEAR;
     
     // Set to debug XML parsing
     public static String DEBUG_XML_PROPERTY = "org.eclipse.gemini.debug.xml";
@@ -70,6 +114,14 @@ public class GeminiSystemProperties {
     protected static Boolean generateAnchorClasses;
     protected static Boolean generateFragments;
     protected static Boolean refreshPersistenceBundles;
+    protected static Boolean asyncExtender;
+    protected static Integer discoveryParallelism;
+    protected static Long refreshDebounce;
+    protected static Boolean descriptorIndex;
+    protected static Boolean generatedProxies;
+    protected static Integer workerThreads;
+    protected static Boolean inPlaceEMFUpdate;
+    protected static String classLoaderStrategy;
     protected static Boolean debugXml;
     protected static Boolean debugClassloader;
     protected static Boolean debugWeaving;
@@ -149,6 +201,161 @@ public class GeminiSystemProperties {
      */
     public static void setRefreshPersistenceBundles(boolean value) { refreshPersistenceBundles = value; }
 
+    /*
+     * Return whether the extender should process bundle events asynchronously.
+     * Events for the same bundle are still processed in the order they were fired,
+     * but the descriptor parsing, provider assignment and service registration 
+     * no longer happen on the thread that fired the event.
+     */
+    public static boolean asyncExtender() { 
+        if (asyncExtender == null) {
+            String value = System.getProperty(ASYNC_EXTENDER_PROPERTY, ASYNC_EXTENDER_DEFAULT);
+            asyncExtender = Boolean.valueOf(value);
+        }
+        return asyncExtender;
+    }
+
+    /* 
+     * Set whether bundle events are to be processed asynchronously
+     */
+    public static void setAsyncExtender(boolean value) { asyncExtender = value; }
+
+    /*
+     * Return the max number of already installed persistence bundles that 
+     * will be processed concurrently at startup. A value of 1 processes them serially.
+     */
+    public static int discoveryParallelism() { 
+        if (discoveryParallelism == null) {
+            int defaultValue = Runtime.getRuntime().availableProcessors();
+            String value = System.getProperty(DISCOVERY_PARALLELISM_PROPERTY);
+            try {
+                discoveryParallelism = (value == null) ? defaultValue : Math.max(1, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException nfEx) {
+                GeminiUtil.warning("Invalid value for " + DISCOVERY_PARALLELISM_PROPERTY + ": ", value);
+                discoveryParallelism = defaultValue;
+            }
+        }
+        return discoveryParallelism;
+    }
+
+    /* 
+     * Set the max number of persistence bundles processed concurrently at startup
+     */
+    public static void setDiscoveryParallelism(int value) { discoveryParallelism = Math.max(1, value); }
+
+    /*
+     * Return the time (in ms) that refresh requests are collected for 
+     * before the requested bundles are refreshed as a batch.
+     */
+    public static long refreshDebounce() { 
+        if (refreshDebounce == null) {
+            String value = System.getProperty(REFRESH_DEBOUNCE_PROPERTY, REFRESH_DEBOUNCE_DEFAULT);
+            try {
+                refreshDebounce = Math.max(0L, Long.parseLong(value.trim()));
+            } catch (NumberFormatException nfEx) {
+                GeminiUtil.warning("Invalid value for " + REFRESH_DEBOUNCE_PROPERTY + ": ", value);
+                refreshDebounce = Long.valueOf(REFRESH_DEBOUNCE_DEFAULT);
+            }
+        }
+        return refreshDebounce;
+    }
+
+    /* 
+     * Set the time (in ms) that refresh requests are collected for
+     */
+    public static void setRefreshDebounce(long value) { refreshDebounce = Math.max(0L, value); }
+
+    /*
+     * Return whether the persistence units parsed from persistence descriptors 
+     * are to be indexed in the Gemini bundle data area
+     */
+    public static boolean descriptorIndex() { 
+        if (descriptorIndex == null) {
+            String value = System.getProperty(DESCRIPTOR_INDEX_PROPERTY, DESCRIPTOR_INDEX_DEFAULT);
+            descriptorIndex = Boolean.valueOf(value);
+        }
+        return descriptorIndex;
+    }
+
+    /* 
+     * Set whether the persistence units parsed from persistence descriptors are to be indexed
+     */
+    public static void setDescriptorIndex(boolean value) { descriptorIndex = value; }
+
+    /*
+     * Return whether the service proxies are to be instances of generated classes
+     * (dynamic proxies are used if not, or if the class generation fails)
+     */
+    public static boolean generatedProxies() { 
+        if (generatedProxies == null) {
+            String value = System.getProperty(GENERATED_PROXIES_PROPERTY, GENERATED_PROXIES_DEFAULT);
+            generatedProxies = Boolean.valueOf(value);
+        }
+        return generatedProxies;
+    }
+
+    /* 
+     * Set whether the service proxies are to be instances of generated classes
+     */
+    public static void setGeneratedProxies(boolean value) { generatedProxies = value; }
+
+    /*
+     * Return whether EMF services are to be updated in place when a DSF comes online
+     */
+    public static boolean inPlaceEMFUpdate() { 
+        if (inPlaceEMFUpdate == null) {
+            String value = System.getProperty(IN_PLACE_EMF_UPDATE_PROPERTY, IN_PLACE_EMF_UPDATE_DEFAULT);
+            inPlaceEMFUpdate = Boolean.valueOf(value);
+        }
+        return inPlaceEMFUpdate;
+    }
+
+    /* 
+     * Set whether EMF services are to be updated in place when a DSF comes online
+     */
+    public static void setInPlaceEMFUpdate(boolean value) { inPlaceEMFUpdate = value; }
+
+    /*
+     * Return the strategy of the composite class loaders
+     */
+    public static String classLoaderStrategy() { 
+        if (classLoaderStrategy == null) {
+            String value = System.getProperty(CLASSLOADER_STRATEGY_PROPERTY, CLASSLOADER_STRATEGY_DEFAULT).trim();
+            if (!value.equals(CLASSLOADER_STRATEGY_LINEAR) && !value.equals(CLASSLOADER_STRATEGY_PACKAGE_INDEXED)) {
+                GeminiUtil.warning("Invalid value for " + CLASSLOADER_STRATEGY_PROPERTY + ": ", value);
+                value = CLASSLOADER_STRATEGY_DEFAULT;
+            }
+            classLoaderStrategy = value;
+        }
+        return classLoaderStrategy;
+    }
+
+    /* 
+     * Set the strategy of the composite class loaders
+     */
+    public static void setClassLoaderStrategy(String value) { classLoaderStrategy = value; }
+
+    /*
+     * Return the number of threads used for background work
+     */
+    public static int workerThreads() { 
+        if (workerThreads == null) {
+            String value = System.getProperty(WORKER_THREADS_PROPERTY, WORKER_THREADS_DEFAULT);
+            try {
+                workerThreads = Math.max(1, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException nfEx) {
+                GeminiUtil.warning("Invalid value for " + WORKER_THREADS_PROPERTY + ": ", value);
+                workerThreads = Integer.valueOf(WORKER_THREADS_DEFAULT);
+            }
+        }
+        return workerThreads;
+    }
+
+    /* 
+     * Set the number of threads used for background work
+     */
+    public static void setWorkerThreads(int value) { workerThreads = Math.max(1, value); }
+
     /* 
      * Return whether debugging is enabled for XML parsing 
      */
@@ -22,6 +22,8 @@ import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -117,6 +119,18 @@ public class GeminiUtil {
         return props;
     }
     
+    // Return a factory that creates named daemon threads for Gemini background work
+    public static ThreadFactory threadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, namePrefix + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+    
     /*==================*/
     /* Status functions */
     /*==================*/
@@ -14,23 +14,27 @@
  ******************************************************************************/
 package org.eclipse.gemini.jpa;
 
+import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import javax.management.ObjectName;
 import javax.persistence.EntityManagerFactory;
 import javax.sql.DataSource;
 
 import org.eclipse.gemini.jpa.ProviderWrapper;
+import org.eclipse.gemini.jpa.datasource.ConnectionMetrics;
 import org.eclipse.gemini.jpa.proxy.EMFBuilderServiceProxyHandler;
+import org.eclipse.gemini.jpa.proxy.EMFFutureServiceFactory;
 import org.eclipse.gemini.jpa.proxy.EMFServiceProxyHandler;
 import org.eclipse.gemini.jpa.xml.PersistenceDescriptorHandler;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
-import org.osgi.util.tracker.ServiceTracker;
 
 /**
  * Runtime structure containing the information about a persistence unit.
@@ -85,6 +89,7 @@ public class PUnitInfo {
      */
     EMFServiceProxyHandler emfHandler;
     ServiceRegistration emfService;
+    Dictionary<String,String> emfServiceProperties;
 
     /** 
      * EMF Builder Service state - set by ServicesUtil
@@ -93,12 +98,20 @@ public class PUnitInfo {
     EMFBuilderServiceProxyHandler emfBuilderHandler;
     ServiceRegistration emfBuilderService;
 
+    /** 
+     * EMF Future Service state - set by ServicesUtil
+     * @see ServicesUtil
+     */
+    EMFFutureServiceFactory emfFutureFactory;
+    ServiceRegistration emfFutureService;
+
     /** 
      * Shared EMF - set/unset by EMF[Builder]ServiceProxyHandler
      * @see EMFServiceProxyHandler
      * @see EMFBuilderServiceProxyHandler
+     * (volatile so that the proxies can read it without locking)
      */
-    EntityManagerFactory emf;
+    volatile EntityManagerFactory emf;
 
     /** 
      * Flag to indicate whether the EMF was set by the Builder or not
@@ -116,17 +129,26 @@ public class PUnitInfo {
     ServiceReference dsfService;
 
     /** 
-     * For tracking the data source factory - set by DataSourceUtil
+     * Data source looked up from JNDI. Alternative to the DSF - set by ServicesUtil
+     * @see ServicesUtil 
+     */
+    DataSource jndiDataSource;
+
+    /** 
+     * Connection pools created for the EMFs of the p-unit - set by DataSourceUtil
      * @see DataSourceUtil 
      */
-    ServiceTracker dsfTracker;
+    List<AutoCloseable> pooledDataSources = new CopyOnWriteArrayList<AutoCloseable>();
     
     /** 
-     * Data source looked up from JNDI. Alternative to the DSF - set by ServicesUtil
+     * Connection metrics and their service and MBean (null if the p-unit has no metrics) 
+     *      - set by ServicesUtil
      * @see ServicesUtil 
      */
-    DataSource jndiDataSource;
-    
+    ConnectionMetrics connectionMetrics;
+    ServiceRegistration connectionMetricsService;
+    ObjectName connectionMetricsName;
+
     /** 
      * Weaving hook whiteboard service - set by ServicesUtil
      * @see ServicesUtil
@@ -140,6 +162,13 @@ public class PUnitInfo {
      */
     Map<String, Object> configProperties;
 
+    /** 
+     * Incremented by the setters so that state derived from the p-unit can tell
+     * when it is stale - read by EMFServiceProxyHandler
+     * @see EMFServiceProxyHandler#getProperties(EntityManagerFactory)
+     */
+    volatile int version;
+
     /*==============================*/
     /* Persistence descriptor state */
     /*==============================*/
@@ -160,95 +189,143 @@ public class PUnitInfo {
     String driverUser;
     String driverPassword;
     String driverVersion;
+    Map<String,String> descriptorProperties = new HashMap<String,String>(); // Gemini-specific props only
 
     /*=============================*/
     /* Accessors for runtime state */
     /*=============================*/
     
     public Bundle getBundle() { return bundle; }
-    public void setBundle(Bundle b) { this.bundle = b; }
+    public void setBundle(Bundle b) { this.bundle = b; changed(); }
     
     public ProviderWrapper getAssignedProvider() { return assignedProvider; }
-    public void setAssignedProvider(ProviderWrapper p) { this.assignedProvider = p; }
+    public void setAssignedProvider(ProviderWrapper p) { this.assignedProvider = p; changed(); }
 
     public PersistenceDescriptorInfo getDescriptorInfo() { return descriptorInfo; }
-    public void setDescriptorInfo(PersistenceDescriptorInfo info) { this.descriptorInfo = info; }
+    public void setDescriptorInfo(PersistenceDescriptorInfo info) { this.descriptorInfo = info; changed(); }
 
     public List<String> getUniquePackageNames() { return uniquePackageNames; }
-    public void setUniquePackageNames(List<String> names) { this.uniquePackageNames = names; }
+    public void setUniquePackageNames(List<String> names) { this.uniquePackageNames = names; changed(); }
 
     public EMFServiceProxyHandler getEmfHandler() { return emfHandler; }
-    public void setEmfHandler(EMFServiceProxyHandler emfHandler) { this.emfHandler = emfHandler; }
+    public void setEmfHandler(EMFServiceProxyHandler emfHandler) { this.emfHandler = emfHandler; changed(); }
 
     public ServiceRegistration getEmfService() { return emfService; }
-    public void setEmfService(ServiceRegistration emfService) { this.emfService = emfService; }
+    public void setEmfService(ServiceRegistration emfService) { this.emfService = emfService; changed(); }
+
+    public Dictionary<String,String> getEmfServiceProperties() { return emfServiceProperties; }
+    public void setEmfServiceProperties(Dictionary<String,String> props) { this.emfServiceProperties = props; changed(); }
 
     public EMFBuilderServiceProxyHandler getEmfBuilderHandler() { return emfBuilderHandler; }
-    public void setEmfBuilderHandler(EMFBuilderServiceProxyHandler emfBuilderHandler) { this.emfBuilderHandler = emfBuilderHandler; }
+    public void setEmfBuilderHandler(EMFBuilderServiceProxyHandler emfBuilderHandler) { this.emfBuilderHandler = emfBuilderHandler; changed(); }
 
     public ServiceRegistration getEmfBuilderService() { return emfBuilderService; }
-    public void setEmfBuilderService(ServiceRegistration emfBuilderService) { this.emfBuilderService = emfBuilderService; }
+    public void setEmfBuilderService(ServiceRegistration emfBuilderService) { this.emfBuilderService = emfBuilderService; changed(); }
+
+    public EMFFutureServiceFactory getEmfFutureFactory() { return emfFutureFactory; }
+    public void setEmfFutureFactory(EMFFutureServiceFactory factory) { this.emfFutureFactory = factory; changed(); }
+
+    public ServiceRegistration getEmfFutureService() { return emfFutureService; }
+    public void setEmfFutureService(ServiceRegistration emfFutureService) { this.emfFutureService = emfFutureService; changed(); }
 
     public EntityManagerFactory getEmf() { return emf; }
-    public void setEmf(EntityManagerFactory emf) { this.emf = emf; }
+    public void setEmf(EntityManagerFactory emf) { this.emf = emf; changed(); }
     
     public boolean isEmfSetByBuilderService() { return emfSetByBuilderService; }
-    public void setEmfSetByBuilderService(boolean flag) { emfSetByBuilderService = flag; }
+    public void setEmfSetByBuilderService(boolean flag) { emfSetByBuilderService = flag; changed(); }
     
     public ServiceReference getDsfService() { return dsfService; }
-    public void setDsfService(ServiceReference dsfService) { this.dsfService = dsfService; }
-
-    public ServiceTracker getTracker() { return dsfTracker; }
-    public ServiceTracker getDsfTracker() { return dsfTracker; }
-    public void setDsfTracker(ServiceTracker dsfTracker) { this.dsfTracker = dsfTracker; }
+    public void setDsfService(ServiceReference dsfService) { this.dsfService = dsfService; changed(); }
 
     public DataSource getJndiDataSource() { return jndiDataSource; }
-    public void setJndiDataSource(DataSource jndiDataSource) { this.jndiDataSource = jndiDataSource; }
+    public void setJndiDataSource(DataSource jndiDataSource) { this.jndiDataSource = jndiDataSource; changed(); }
+
+    public List<AutoCloseable> getPooledDataSources() { return pooledDataSources; }
+
+    public ConnectionMetrics getConnectionMetrics() { return connectionMetrics; }
+    public void setConnectionMetrics(ConnectionMetrics metrics) { this.connectionMetrics = metrics; changed(); }
+
+    public ServiceRegistration getConnectionMetricsService() { return connectionMetricsService; }
+    public void setConnectionMetricsService(ServiceRegistration service) { this.connectionMetricsService = service; changed(); }
+
+    public ObjectName getConnectionMetricsName() { return connectionMetricsName; }
+    public void setConnectionMetricsName(ObjectName name) { this.connectionMetricsName = name; changed(); }
 
     public ServiceRegistration getWeavingHookService() { return weavingHookService; }
-    public void setWeavingHookService(ServiceRegistration weavingHookService) { this.weavingHookService = weavingHookService; }
+    public void setWeavingHookService(ServiceRegistration weavingHookService) { this.weavingHookService = weavingHookService; changed(); }
 
     public Map<String, Object> getConfigProperties() { return configProperties; }
-    public void setConfigProperties(Map<String, Object> configProperties) { this.configProperties = configProperties; }
+    public void setConfigProperties(Map<String, Object> configProperties) { this.configProperties = configProperties; changed(); }
 
     /*============================================*/
     /* Accessors for Persistence descriptor state */
     /*============================================*/
 
     public String getUnitName() { return unitName; }
-    public void setUnitName(String s) { this.unitName = s ; }
+    public void setUnitName(String s) { this.unitName = s ; changed(); }
 
     public String getProvider() { return provider; }
-    public void setProvider(String s) { this.provider = s; }
+    public void setProvider(String s) { this.provider = s; changed(); }
 
     public String getNonJtaDataSource() { return nonJtaDataSource; }
-    public void setNonJtaDataSource(String s) { this.nonJtaDataSource = s; }
+    public void setNonJtaDataSource(String s) { this.nonJtaDataSource = s; changed(); }
 
     public String getJtaDataSource() { return jtaDataSource; }
-    public void setJtaDataSource(String s) { this.jtaDataSource = s; }
+    public void setJtaDataSource(String s) { this.jtaDataSource = s; changed(); }
 
     public Set<String> getClasses() { return classes; }
-    public void addClass(String s) { this.classes.add(s); }
+    public void addClass(String s) { this.classes.add(s); changed(); }
 
     public String getDriverClassName() { return driverClassName; }
-    public void setDriverClassName(String s) { driverClassName = s; }
+    public void setDriverClassName(String s) { driverClassName = s; changed(); }
 
     public String getDriverUrl() { return driverUrl; }
-    public void setDriverUrl(String driverUrl) { this.driverUrl = driverUrl; }
+    public void setDriverUrl(String driverUrl) { this.driverUrl = driverUrl; changed(); }
 
     public String getDriverUser() { return driverUser; }
-    public void setDriverUser(String driverUser) { this.driverUser = driverUser; }
+    public void setDriverUser(String driverUser) { this.driverUser = driverUser; changed(); }
 
     public String getDriverPassword() { return driverPassword; }
-    public void setDriverPassword(String driverPassword) { this.driverPassword = driverPassword; }
+    public void setDriverPassword(String driverPassword) { this.driverPassword = driverPassword; changed(); }
     
     public String getDriverVersion() { return driverVersion; }
-    public void setDriverVersion(String driverVersion) { this.driverVersion = driverVersion; }
+    public void setDriverVersion(String driverVersion) { this.driverVersion = driverVersion; changed(); }
+
+    public Map<String,String> getDescriptorProperties() { return descriptorProperties; }
+    public void setDescriptorProperty(String name, String value) { this.descriptorProperties.put(name, value); changed(); }
 
     /*=========*/
     /* Methods */
     /*=========*/
     
+    public int getVersion() { return version; }
+
+    // Called by the setters when the p-unit state changes
+    protected void changed() { version++; }
+
+    /**
+     * Return the value of a Gemini-specific p-unit property. A value in the
+     * config admin configuration overrides one in the persistence descriptor.
+     * 
+     * @param name the property name
+     * @param defaultValue returned if the property is not set
+     */
+    public String getUnitProperty(String name, String defaultValue) {
+        Object value = (configProperties != null) ? configProperties.get(name) : null;
+        if (value == null) 
+            value = descriptorProperties.get(name);
+        return (value == null) ? defaultValue : value.toString().trim();
+    }
+
+    /**
+     * Return the value of a boolean Gemini-specific p-unit property.
+     * @see #getUnitProperty(String, String)
+     */
+    public boolean getBooleanUnitProperty(String name, boolean defaultValue) {
+        String value = getUnitProperty(name, null);
+        return (value == null) ? defaultValue : Boolean.parseBoolean(value);
+    }
+
     @Override
     public int hashCode() { return getUnitName().hashCode(); }
         
@@ -276,7 +353,6 @@ public class PUnitInfo {
           .append((getBundle()!=null) ? "\n  bundle: " + getBundle().getSymbolicName() : "")
           .append((getAssignedProvider()!=null) ? "\n  assignedProvider: " + getAssignedProvider() : "")
           .append((getDescriptorInfo()!=null) ? "\n  descriptorInfo: " + getDescriptorInfo() : "")
-          .append((getDsfTracker()!=null) ? "\n  DSF tracker: " + getDsfTracker() : "")
           .append((getJndiDataSource()!=null) ? "\n  Data source: " + getJndiDataSource() : "");
        return sb.toString();
     }
@@ -299,6 +375,7 @@ public class PUnitInfo {
         map.put("emfSetByBuilderService", emfSetByBuilderService);
         map.put("descriptorInfo", descriptorInfo);
         map.put("configProps", configProperties);
+        map.put("descriptorProps", descriptorProperties);
         map.put("dataSource", jndiDataSource);
         return map;
     }
@@ -15,7 +15,6 @@
 package org.eclipse.gemini.jpa;
 
 import static org.eclipse.gemini.jpa.GeminiUtil.debug;
-import static org.eclipse.gemini.jpa.GeminiUtil.getPackageAdmin;
 import static org.eclipse.gemini.jpa.GeminiUtil.warning;
 
 import java.util.ArrayList;
@@ -25,7 +24,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.eclipse.gemini.jpa.classloader.CompositeClassLoader;
+import org.eclipse.gemini.jpa.classloader.CompositeLoaderRegistry;
 import org.eclipse.gemini.jpa.configadmin.InlinedDescriptorInfo;
 import org.eclipse.gemini.jpa.configadmin.PersistenceUnitConfiguration;
 import org.eclipse.gemini.jpa.eclipselink.EclipseLinkProvider;
@@ -33,7 +39,6 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.Constants;
 import org.osgi.framework.SynchronousBundleListener;
-import org.osgi.service.packageadmin.PackageAdmin;
 
 /**
  * The extender listens for persistence unit bundles and pushes them through 
@@ -75,9 +80,15 @@ import org.osgi.service.packageadmin.PackageAdmin;
  *  - Register an EntityManagerFactoryServiceBuilder service in any case
  *
  */
-@SuppressWarnings({"deprecation"})
 public class PersistenceBundleExtender implements SynchronousBundleListener  {
 
+    /*==================*/
+    /* Static constants */
+    /*==================*/
+
+    // Max time (in ms) to wait for queued bundle events to be processed at shutdown
+    public static final long MAX_DISPATCHER_SHUTDOWN_WAIT = 30000;
+
     /*================*/
     /* Instance state */
     /*================*/
@@ -102,12 +113,24 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
     
     // Bundles marked for lazy activation
     // (Just keep the bundle ids to prevent hard references to the bundles.)
-    Set<Long> lazyBundles = new HashSet<Long>();
+    Set<Long> lazyBundles = Collections.synchronizedSet(new HashSet<Long>());
 
     // Bundles in the process of being refreshed, or that we have already refreshed
     // but not yet been notified about them having been unresolved
     // (Just keep the bundle ids to prevent hard references to the bundles.)
-    Set<Long> refreshingBundles = new HashSet<Long>();
+    Set<Long> refreshingBundles = Collections.synchronizedSet(new HashSet<Long>());
+    
+    // Hands events off to worker threads when asynchronous event processing is enabled
+    // (null when events are processed synchronously on the thread that fired them)
+    BundleEventDispatcher dispatcher;
+    
+    // Persistence units parsed ahead of time (at startup) for bundles that are 
+    // about to be refreshed, keyed by bundle id. Consumed when the bundle is assigned,
+    // dropped if the bundle is updated or uninstalled first.
+    Map<Long, ParsedBundle> preParsedBundles = new ConcurrentHashMap<Long, ParsedBundle>();
+    
+    // Batches up bundle refreshes
+    BundleRefreshScheduler refreshScheduler;
     
     /*==============*/
     /* Constructors */
@@ -117,6 +140,8 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
     public PersistenceBundleExtender(GeminiManager mgr) { 
         this.mgr = mgr;
         this.bundleUtil = new PersistenceUnitBundleUtil();
+        this.refreshScheduler = new BundleRefreshScheduler(mgr.getBundleContext(), 
+                                                           GeminiSystemProperties.refreshDebounce());
     }
 
     /*===============================*/
@@ -129,19 +154,36 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
      */
     public void startListening() {
         debug("Extender.startListening");
+        if (GeminiSystemProperties.asyncExtender()) {
+            dispatcher = new BundleEventDispatcher(this, Runtime.getRuntime().availableProcessors());
+        }
         mgr.getBundleContext().addBundleListener(this);
     }
 
     /**
-     * Stop listening to bundle events. 
+     * Stop listening to bundle events. Any events that have already been 
+     * queued for asynchronous processing are processed before returning. 
      */
     public void stopListening() {
         debug("Extender.stopListening");
         mgr.getBundleContext().removeBundleListener(this);
+        if (dispatcher != null) {
+            dispatcher.shutdown(MAX_DISPATCHER_SHUTDOWN_WAIT);
+            dispatcher = null;
+        }
+        // Bundles that will not be refreshed now are no longer refreshing
+        for (Bundle b : refreshScheduler.shutdown()) {
+            removeFromRefreshingBundles(b);
+        }
     }
 
     /**
      * Look for persistence unit bundles that were already installed when we came along. 
+     * The bundles are independent of each other so the expensive work (descriptor 
+     * parsing and, when refreshing is disabled, assignment and registration) is done 
+     * concurrently for the bundles, bounded by the discovery parallelism.
+     * 
+     * @see GeminiSystemProperties#discoveryParallelism()
      */
     public void lookForExistingBundles() {
         
@@ -150,23 +192,41 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
         debug("Extender.lookForExistingBundles: ", installedBundles);
         
         // Check if any are p-unit bundles
+        List<Bundle> pUnitBundles = new ArrayList<Bundle>();
         for (Bundle b : installedBundles) {
             if (isPersistenceUnitBundle(b)) {
-                // We found a persistence unit bundle.
-                if (GeminiSystemProperties.refreshPersistenceBundles()) {
-                    // If bundle is active then refresh it and push it through the life cycle again
-                    // so it will go through resolving and we can assign it a provider, etc.
-                    //  if ((b.getState() != Bundle.INSTALLED) && (b.getState() != Bundle.UNINSTALLED)) {
-                    if (b.getState() == Bundle.ACTIVE) {
-                        if (isAssigned(b)) {
-                            debug("Found existing installed bundle " + b.getSymbolicName(), " but it was already assigned");
-                        } else {
-                            debug("Found active bundle ", b, " - refreshing to push it back to resolve for processing");
-                            refreshBundle(b);
-                        }
+                pUnitBundles.add(b);
+            }
+        }
+        if (pUnitBundles.isEmpty()) return;
+
+        if (GeminiSystemProperties.refreshPersistenceBundles()) {
+            // If bundle is active then refresh it and push it through the life cycle again
+            // so it will go through resolving and we can assign it a provider, etc.
+            //  if ((b.getState() != Bundle.INSTALLED) && (b.getState() != Bundle.UNINSTALLED)) {
+            final List<Bundle> bundlesToRefresh = new ArrayList<Bundle>();
+            for (Bundle b : pUnitBundles) {
+                if (b.getState() == Bundle.ACTIVE) {
+                    if (isAssigned(b)) {
+                        debug("Found existing installed bundle " + b.getSymbolicName(), " but it was already assigned");
+                    } else {
+                        bundlesToRefresh.add(b);
                     }
-                } else {
-                    // Refreshing is disabled - go through assigning and registering process w/o events
+                }
+            }
+            // Parse the descriptors now, while the bundles wait to be refreshed, 
+            // so that assigning them after the refresh does not have to
+            runConcurrently(bundlesToRefresh, new BundleTask() {
+                public void run(Bundle b) { preParsePersistenceUnits(b); }
+            });
+            for (Bundle b : bundlesToRefresh) {
+                debug("Found active bundle ", b, " - refreshing to push it back to resolve for processing");
+                refreshBundle(b);
+            }
+        } else {
+            // Refreshing is disabled - go through assigning and registering process w/o events
+            runConcurrently(pUnitBundles, new BundleTask() {
+                public void run(Bundle b) {
                     if (b.getState() != Bundle.UNINSTALLED) {
                         // Assign the p-unit
                         // NOTE: With no refresh, assigning may be happening after the bundle has been resolved
@@ -178,7 +238,7 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
                         } // Otherwise just let future events take their course 
                     }
                 }
-            }
+            });
         }
     }
 
@@ -189,6 +249,7 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
      */
     public Map<Bundle, List<PUnitInfo>> clearAllPUnitInfos() {
         Map<Bundle, List<PUnitInfo>> pUnitInfos = unitsByBundle;
+        preParsedBundles.clear();
         unitsByBundle = null;
         lazyBundles = null;
         refreshingBundles = null;
@@ -214,6 +275,44 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
             return;
         }
 
+        // Use the p-units if they were already parsed, otherwise parse them now
+        Set<PUnitInfo> pUnitInfos = takePreParsedPersistenceUnits(b);
+        if (pUnitInfos == null) {
+            pUnitInfos = parsePersistenceUnits(b);
+            if (pUnitInfos == null) {
+                // Bundle was put in limbo
+                return;
+            }
+        }
+
+        // Cycle through each p-unit info and see if a provider was specified
+        for (PUnitInfo info : pUnitInfos) {
+            if ((info.getProvider() == null) || (EclipseLinkProvider.ECLIPSELINK_PROVIDER_CLASS_NAME.equals(info.getProvider()))) {
+                // We can be the provider; claim the p-unit and add it to our list
+                info.setBundle(b);
+                info.setAssignedProvider(mgr.getProvider());
+                debug("Assigning punit ", info.getUnitName(), " to this provider");
+                addToBundleUnits(unitsByBundle, b, info);
+            }
+        }
+        // If we found any that were for us then move on to do the preResolve work
+        List<PUnitInfo> unitsFound = unitsByBundle.get(b);
+        if ((unitsFound != null) && (unitsFound.size() != 0)) {
+            mgr.preResolve(b, unitsByBundle.get(b));
+        }
+    }
+    
+    /**
+     * Find and parse the persistence descriptors in a given bundle. If the bundle 
+     * has no descriptors, and there is no config admin configuration for it, 
+     * then it is put in limbo.
+     * 
+     * @param b the bundle to look for p-units in
+     * 
+     * @return the p-units defined in the bundle, or null if the bundle was put in limbo
+     */
+    protected Set<PUnitInfo> parsePersistenceUnits(Bundle b) {
+
         // Look for all of the persistence descriptor files in the bundle
         List<PersistenceDescriptorInfo> descriptorInfos = bundleUtil.persistenceDescriptorInfos(b);
 
@@ -233,28 +332,50 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
                 // The bundle will be removed from being in limbo by the config admin listener when 
                 // a config comes along that contains the bsn of this bundle. It will then be refreshed
                 // (unless global refresh id disabled) and come through this phase again
-                return;
+                return null;
             }
         }
 
-        // Do a partial parse of the descriptors
-        Set<PUnitInfo> pUnitInfos = bundleUtil.persistenceUnitInfoFromXmlFiles(descriptorInfos);
+        // Use the indexed p-units if the bundle has not changed since it was last parsed
+        PersistenceDescriptorIndex index = mgr.getDescriptorIndex();
+        Set<PUnitInfo> pUnitInfos = (index != null) ? index.lookup(b, descriptorInfos) : null;
+        if (pUnitInfos == null) {
+            // Do a partial parse of the descriptors
+            pUnitInfos = bundleUtil.persistenceUnitInfoFromXmlFiles(descriptorInfos);
+            if (index != null) {
+                index.put(b, descriptorInfos, pUnitInfos);
+            }
+        }
+        return pUnitInfos;
+    }
 
-        // Cycle through each p-unit info and see if a provider was specified
-        for (PUnitInfo info : pUnitInfos) {
-            if ((info.getProvider() == null) || (EclipseLinkProvider.ECLIPSELINK_PROVIDER_CLASS_NAME.equals(info.getProvider()))) {
-                // We can be the provider; claim the p-unit and add it to our list
-                info.setBundle(b);
-                info.setAssignedProvider(mgr.getProvider());
-                debug("Assigning punit ", info.getUnitName(), " to this provider");
-                addToBundleUnits(unitsByBundle, b, info);
+    /**
+     * Parse the p-units of a bundle ahead of it being assigned. Failures are 
+     * only reported since the bundle will be parsed again when it gets assigned.
+     * 
+     * @param b the bundle to look for p-units in
+     */
+    protected void preParsePersistenceUnits(Bundle b) {
+        debug("Extender.preParsePersistenceUnits: ", b);
+        try {
+            Set<PUnitInfo> pUnitInfos = parsePersistenceUnits(b);
+            if (pUnitInfos != null) {
+                preParsedBundles.put(b.getBundleId(), new ParsedBundle(b.getLastModified(), pUnitInfos));
             }
+        } catch (Throwable t) {
+            warning("Extender could not parse persistence descriptors of bundle " + b.getSymbolicName(), t);
         }
-        // If we found any that were for us then move on to do the preResolve work
-        List<PUnitInfo> unitsFound = unitsByBundle.get(b);
-        if ((unitsFound != null) && (unitsFound.size() != 0)) {
-            mgr.preResolve(b, unitsByBundle.get(b));
+    }
+
+    // Remove and return the pre-parsed p-units of a bundle, provided that 
+    // the bundle has not been updated since they were parsed
+    protected Set<PUnitInfo> takePreParsedPersistenceUnits(Bundle b) {
+        ParsedBundle parsed = preParsedBundles.remove(b.getBundleId());
+        if ((parsed == null) || (parsed.lastModified != b.getLastModified())) {
+            return null;
         }
+        debug("Extender using pre-parsed persistence units for bundle ", b);
+        return parsed.pUnitInfos;
     }
     
     /**
@@ -326,8 +447,12 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
      * Refresh the persistence bundle.
      * If persistence units have already been registered they 
      * should have been unregistered before making this refresh call.
+     * The refresh is done asynchronously, and together with any other 
+     * bundles that get refreshed around the same time.
      * 
      * @param b the bundle the p-units are in
+     * 
+     * @see BundleRefreshScheduler
      */    
     public void refreshBundle(Bundle b) {
         debug("Extender.refreshBundle: ", b);
@@ -336,16 +461,8 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
         // (It will be removed when the UNRESOLVED event is fired on it)
         addToRefreshingBundles(b);
 
-        // Call refresh on all of the packages
-        PackageAdmin admin = getPackageAdmin(mgr.getBundleContext());
-        admin.refreshPackages(new Bundle[] { b }); 
-
-        /* New 4.3 code to use to refresh bundle */
-        /*
-        Bundle systemBundle = mgr.getBundleContext().getBundle(0);
-        FrameworkWiring fw = systemBundle.adapt(FrameworkWiring.class);
-        fw.refreshBundles(Arrays.asList(b));
-        */
+        // Queue it up to be refreshed in the next batch
+        refreshScheduler.scheduleRefresh(b);
     }
     
     public boolean isInLimbo(String bsn) {
@@ -365,11 +482,47 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
 
     public void bundleChanged(BundleEvent event) {
 
+        // Classes (and bundle entries) cached by the Gemini loaders may change when any bundle is (un)wired
+        int eventType = event.getType();
+        if ((eventType == BundleEvent.RESOLVED) || (eventType == BundleEvent.UNRESOLVED) ||
+                (eventType == BundleEvent.UPDATED) || (eventType == BundleEvent.UNINSTALLED)) {
+            CompositeClassLoader.bundleWiringChanged();
+        }
+        // Pre-parsed p-units and the shared loader of a bundle are for its old contents 
+        // once it is updated or uninstalled
+        if ((eventType == BundleEvent.UPDATED) || (eventType == BundleEvent.UNINSTALLED)) {
+            preParsedBundles.remove(event.getBundle().getBundleId());
+            CompositeLoaderRegistry loaderRegistry = mgr.getLoaderRegistry();
+            if (loaderRegistry != null)
+                loaderRegistry.release(event.getBundle());
+        }
+
         // Only continue if it is a persistence unit bundle
         Bundle b = event.getBundle();
         debug("Extender - bundle event: ", event);
         if (!isPersistenceUnitBundle(b)) return;
 
+        // Either queue the event to be processed in order on a worker thread
+        // or process it right here on the thread that fired it
+        BundleEventDispatcher eventDispatcher = dispatcher;
+        if (eventDispatcher != null) {
+            eventDispatcher.dispatch(event);
+        } else {
+            processBundleEvent(event);
+        }
+    }
+
+    /**
+     * Process a bundle event for a persistence unit bundle. 
+     * Events for a given bundle must be processed in the order they were fired.
+     * 
+     * @param event the event that was fired on a persistence unit bundle
+     */
+    public void processBundleEvent(BundleEvent event) {
+
+        Bundle b = event.getBundle();
+        debug("Extender - processing bundle event: ", event);
+
         // Process each event
         int eventType = event.getType();
 
@@ -417,6 +570,13 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
             if (isAssigned(b)) {
                 unassignPersistenceUnitsInBundle(b);
             }
+            // The scheduler drops the refresh of an uninstalled bundle
+            removeFromRefreshingBundles(b);
+            // Bundle id will never be used again
+            PersistenceDescriptorIndex index = mgr.getDescriptorIndex();
+            if (index != null) {
+                index.remove(b.getBundleId());
+            }
         } else if (eventType == BundleEvent.UPDATED) {
             if (isAssigned(b)) {
                 unassignPersistenceUnitsInBundle(b);
@@ -473,6 +633,46 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
         }
     }
 
+    // Run a task on each of the bundles, concurrently when more than one bundle 
+    // and parallelism is enabled. The first failure is rethrown once all are done.
+    protected void runConcurrently(List<Bundle> bundles, final BundleTask task) {
+        int parallelism = Math.min(bundles.size(), GeminiSystemProperties.discoveryParallelism());
+        if (parallelism <= 1) {
+            for (Bundle b : bundles) {
+                task.run(b);
+            }
+            return;
+        }
+        debug("Extender processing ", bundles.size(), " bundles with parallelism ", parallelism);
+        List<Callable<Void>> callables = new ArrayList<Callable<Void>>();
+        for (final Bundle b : bundles) {
+            callables.add(new Callable<Void>() {
+                public Void call() { task.run(b); return null; }
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            RuntimeException failure = null;
+            for (Future<Void> result : pool.invokeAll(callables)) {
+                try {
+                    result.get();
+                } catch (ExecutionException exEx) {
+                    if (failure == null) {
+                        failure = (exEx.getCause() instanceof RuntimeException) 
+                            ? (RuntimeException) exEx.getCause()
+                            : new RuntimeException(exEx.getCause());
+                    }
+                } catch (InterruptedException iEx) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(iEx);
+                }
+            }
+            if (failure != null) throw failure;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     public boolean isPersistenceUnitBundle(Bundle b) {
         return b.getHeaders().get("Meta-Persistence") != null;
     }
@@ -499,4 +699,23 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
             return true;
         } 
     }
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    // Unit of work done on a bundle
+    interface BundleTask {
+        void run(Bundle b);
+    }
+
+    // P-units parsed from a bundle, along with the bundle modification time at parse time
+    static class ParsedBundle {
+        long lastModified;
+        Set<PUnitInfo> pUnitInfos;
+        ParsedBundle(long lastModified, Set<PUnitInfo> pUnitInfos) {
+            this.lastModified = lastModified;
+            this.pUnitInfos = pUnitInfos;
+        }
+    }
 }
@@ -0,0 +1,394 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.close;
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.gemini.jpa.configadmin.InlinedDescriptorInfo;
+import org.osgi.framework.Bundle;
+
+/**
+ * Index of the persistence unit information parsed from the persistence
+ * descriptors of persistence bundles. The index is saved in the data area of
+ * the Gemini bundle so that after a restart the persistence units of a bundle
+ * that has not changed can be rebuilt without parsing its descriptors again.
+ *
+ * Entries are keyed by bundle id and are only used if the last modified time
+ * of the bundle and the paths of its descriptors are the same as when the
+ * descriptors were parsed. Descriptors synthesized from a config admin
+ * configuration are never indexed.
+ *
+ * Credentials are not saved in the index. The p-units of a bundle whose
+ * descriptors contain a password are not indexed, so they are parsed from
+ * the descriptors each time.
+ */
+public class PersistenceDescriptorIndex {
+
+    /*==================*/
+    /* Static constants */
+    /*==================*/
+
+    // Name of the index file in the bundle data area
+    public static final String INDEX_FILE_NAME = "descriptorIndex.dat";
+
+    // Identifies the file contents and the format version
+    static final int INDEX_MAGIC = 0x47454d49;
+    static final int INDEX_VERSION = 1;
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // The file the index is loaded from and saved to
+    File indexFile;
+
+    // Indexed bundles, keyed by bundle id
+    Map<Long, BundleEntry> entries = new ConcurrentHashMap<Long, BundleEntry>();
+
+    // Whether the index has changed since it was loaded
+    volatile boolean dirty;
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public PersistenceDescriptorIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Return a new set of p-units for the given bundle and descriptors if the
+     * bundle is indexed and has not changed since it was indexed.
+     *
+     * @param b the persistence bundle
+     * @param descriptorInfos the descriptors currently found in the bundle
+     *
+     * @return the p-units, with their descriptor info set, or null if not indexed
+     */
+    public Set<PUnitInfo> lookup(Bundle b, List<PersistenceDescriptorInfo> descriptorInfos) {
+        BundleEntry entry = entries.get(b.getBundleId());
+        if ((entry == null) || (entry.lastModified != b.getLastModified())
+                || !entry.descriptorPaths.equals(descriptorPaths(descriptorInfos))) {
+            return null;
+        }
+        Set<PUnitInfo> pUnits = new HashSet<PUnitInfo>();
+        for (UnitEntry unit : entry.units) {
+            if ((unit.descriptorIndex < 0) || (unit.descriptorIndex >= descriptorInfos.size())) {
+                return null;
+            }
+            PUnitInfo info = unit.toPUnitInfo();
+            info.setDescriptorInfo(descriptorInfos.get(unit.descriptorIndex));
+            pUnits.add(info);
+        }
+        debug("DescriptorIndex found ", pUnits.size(), " indexed persistence units for bundle ", b.getSymbolicName());
+        return pUnits;
+    }
+
+    /**
+     * Index the p-units that were parsed from the descriptors of the given bundle.
+     *
+     * @param b the persistence bundle
+     * @param descriptorInfos the descriptors that were parsed
+     * @param pUnits the p-units parsed from the descriptors
+     */
+    public void put(Bundle b, List<PersistenceDescriptorInfo> descriptorInfos, Set<PUnitInfo> pUnits) {
+        for (PersistenceDescriptorInfo descInfo : descriptorInfos) {
+            if (descInfo instanceof InlinedDescriptorInfo) {
+                // Descriptor comes from config admin, not from the bundle
+                return;
+            }
+        }
+        for (PUnitInfo info : pUnits) {
+            if (hasCredentials(info)) {
+                debug("DescriptorIndex not indexing bundle ", b.getSymbolicName(), 
+                      " since persistence unit ", info.getUnitName(), " has credentials");
+                remove(b.getBundleId());
+                return;
+            }
+        }
+        BundleEntry entry = new BundleEntry(b.getLastModified(), descriptorPaths(descriptorInfos));
+        for (PUnitInfo info : pUnits) {
+            entry.units.add(new UnitEntry(info, descriptorInfos.indexOf(info.getDescriptorInfo())));
+        }
+        entries.put(b.getBundleId(), entry);
+        dirty = true;
+    }
+
+    /**
+     * Remove the entry for a bundle (e.g. because it was uninstalled).
+     *
+     * @param bundleId the id of the persistence bundle
+     */
+    public void remove(long bundleId) {
+        if (entries.remove(bundleId) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Load the index from the index file. An unreadable or incompatible
+     * file just leaves the index empty, and is overwritten when it is saved.
+     */
+    public void load() {
+        if ((indexFile == null) || !indexFile.isFile()) return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if ((in.readInt() != INDEX_MAGIC) || (in.readInt() != INDEX_VERSION)) {
+                debug("DescriptorIndex ignoring incompatible index file ", indexFile);
+                return;
+            }
+            int numEntries = in.readInt();
+            for (int i=0; i<numEntries; i++) {
+                long bundleId = in.readLong();
+                entries.put(bundleId, BundleEntry.read(in));
+            }
+            debug("DescriptorIndex loaded ", numEntries, " entries from ", indexFile);
+        } catch (IOException ioEx) {
+            warning("Could not load persistence descriptor index ", ioEx);
+            entries.clear();
+        } finally {
+            if (in != null) close(in);
+        }
+        dirty = false;
+    }
+
+    /**
+     * Save the index to the index file if it has changed.
+     */
+    public void save() {
+        if ((indexFile == null) || !dirty) return;
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            // Write each entry on its own first, so that an entry that can't be 
+            // written (e.g. a string over 64K) is left out instead of failing the save
+            List<byte[]> toWrite = new ArrayList<byte[]>(entries.size());
+            for (Map.Entry<Long, BundleEntry> entry : new ArrayList<Map.Entry<Long, BundleEntry>>(entries.entrySet())) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream entryOut = new DataOutputStream(bytes);
+                try {
+                    entryOut.writeLong(entry.getKey());
+                    entry.getValue().write(entryOut);
+                    entryOut.flush();
+                    toWrite.add(bytes.toByteArray());
+                } catch (UTFDataFormatException utfEx) {
+                    debug("DescriptorIndex not saving entry for bundle ", entry.getKey(), ": ", utfEx);
+                    entries.remove(entry.getKey());
+                }
+            }
+            out.writeInt(toWrite.size());
+            for (byte[] entryBytes : toWrite) {
+                out.write(entryBytes);
+            }
+            out.close();
+            out = null;
+            // Replace the old index in one step
+            if (indexFile.exists() && !indexFile.delete())
+                throw new IOException("Could not delete " + indexFile);
+            if (!tmpFile.renameTo(indexFile))
+                throw new IOException("Could not rename " + tmpFile);
+            dirty = false;
+            debug("DescriptorIndex saved ", toWrite.size(), " entries to ", indexFile);
+        } catch (IOException ioEx) {
+            warning("Could not save persistence descriptor index ", ioEx);
+            tmpFile.delete();
+        } finally {
+            if (out != null) close(out);
+        }
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    protected static List<String> descriptorPaths(List<PersistenceDescriptorInfo> descriptorInfos) {
+        List<String> paths = new ArrayList<String>(descriptorInfos.size());
+        for (PersistenceDescriptorInfo descInfo : descriptorInfos) {
+            paths.add(descInfo.fullDescriptorPath());
+        }
+        return paths;
+    }
+
+    // Return true if the descriptor of a p-unit holds a password (that must not be saved)
+    protected static boolean hasCredentials(PUnitInfo info) {
+        if (info.getDriverPassword() != null) 
+            return true;
+        String url = info.getDriverUrl();
+        if ((url != null) && url.toLowerCase(Locale.ENGLISH).contains("password"))
+            return true;
+        for (String propName : info.getDescriptorProperties().keySet()) {
+            if (propName.toLowerCase(Locale.ENGLISH).contains("password"))
+                return true;
+        }
+        return false;
+    }
+
+    protected static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    protected static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    // The indexed state of a bundle
+    static class BundleEntry {
+        long lastModified;
+        List<String> descriptorPaths;
+        List<UnitEntry> units = new ArrayList<UnitEntry>();
+
+        BundleEntry(long lastModified, List<String> descriptorPaths) {
+            this.lastModified = lastModified;
+            this.descriptorPaths = descriptorPaths;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(lastModified);
+            out.writeInt(descriptorPaths.size());
+            for (String path : descriptorPaths) out.writeUTF(path);
+            out.writeInt(units.size());
+            for (UnitEntry unit : units) unit.write(out);
+        }
+
+        static BundleEntry read(DataInputStream in) throws IOException {
+            long lastModified = in.readLong();
+            int numPaths = in.readInt();
+            List<String> paths = new ArrayList<String>(numPaths);
+            for (int i=0; i<numPaths; i++) paths.add(in.readUTF());
+            BundleEntry entry = new BundleEntry(lastModified, paths);
+            int numUnits = in.readInt();
+            for (int i=0; i<numUnits; i++) entry.units.add(UnitEntry.read(in));
+            return entry;
+        }
+    }
+
+    // The indexed descriptor state of a p-unit. This is a snapshot since
+    // the PUnitInfo may get changed (e.g. by config admin) after being indexed.
+    static class UnitEntry {
+        int descriptorIndex;
+        String unitName;
+        String provider;
+        String nonJtaDataSource;
+        String jtaDataSource;
+        List<String> classes = new ArrayList<String>();
+        String driverClassName;
+        String driverUrl;
+        String driverUser;
+        String driverVersion;
+        Map<String,String> descriptorProperties = new HashMap<String,String>();
+
+        UnitEntry() {}
+        UnitEntry(PUnitInfo info, int descriptorIndex) {
+            this.descriptorIndex = descriptorIndex;
+            unitName = info.getUnitName();
+            provider = info.getProvider();
+            nonJtaDataSource = info.getNonJtaDataSource();
+            jtaDataSource = info.getJtaDataSource();
+            classes.addAll(info.getClasses());
+            driverClassName = info.getDriverClassName();
+            driverUrl = info.getDriverUrl();
+            driverUser = info.getDriverUser();
+            driverVersion = info.getDriverVersion();
+            descriptorProperties.putAll(info.getDescriptorProperties());
+        }
+
+        PUnitInfo toPUnitInfo() {
+            PUnitInfo info = new PUnitInfo();
+            info.setUnitName(unitName);
+            info.setProvider(provider);
+            info.setNonJtaDataSource(nonJtaDataSource);
+            info.setJtaDataSource(jtaDataSource);
+            for (String cls : classes) info.addClass(cls);
+            info.setDriverClassName(driverClassName);
+            info.setDriverUrl(driverUrl);
+            info.setDriverUser(driverUser);
+            info.setDriverVersion(driverVersion);
+            for (Map.Entry<String,String> prop : descriptorProperties.entrySet())
+                info.setDescriptorProperty(prop.getKey(), prop.getValue());
+            return info;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(descriptorIndex);
+            writeString(out, unitName);
+            writeString(out, provider);
+            writeString(out, nonJtaDataSource);
+            writeString(out, jtaDataSource);
+            out.writeInt(classes.size());
+            for (String cls : classes) out.writeUTF(cls);
+            writeString(out, driverClassName);
+            writeString(out, driverUrl);
+            writeString(out, driverUser);
+            writeString(out, driverVersion);
+            out.writeInt(descriptorProperties.size());
+            for (Map.Entry<String,String> prop : descriptorProperties.entrySet()) {
+                out.writeUTF(prop.getKey());
+                out.writeUTF(prop.getValue());
+            }
+        }
+
+        static UnitEntry read(DataInputStream in) throws IOException {
+            UnitEntry unit = new UnitEntry();
+            unit.descriptorIndex = in.readInt();
+            unit.unitName = readString(in);
+            unit.provider = readString(in);
+            unit.nonJtaDataSource = readString(in);
+            unit.jtaDataSource = readString(in);
+            int numClasses = in.readInt();
+            for (int i=0; i<numClasses; i++) unit.classes.add(in.readUTF());
+            unit.driverClassName = readString(in);
+            unit.driverUrl = readString(in);
+            unit.driverUser = readString(in);
+            unit.driverVersion = readString(in);
+            int numProps = in.readInt();
+            for (int i=0; i<numProps; i++) unit.descriptorProperties.put(in.readUTF(), in.readUTF());
+            return unit;
+        }
+    }
+}
@@ -37,7 +37,9 @@ import org.eclipse.persistence.config.PersistenceUnitProperties;
 import org.eclipse.gemini.jpa.GeminiManager;
 import org.eclipse.gemini.jpa.PUnitInfo;
 import org.eclipse.gemini.jpa.classloader.CompositeClassLoader;
+import org.eclipse.gemini.jpa.datasource.ReplicaRoutingDataSource;
 import org.eclipse.gemini.jpa.eclipselink.EclipseLinkProvider;
+import org.eclipse.gemini.jpa.eclipselink.ReadReplicaSessionCustomizer;
 
 
 /**
@@ -102,21 +104,26 @@ public class ProviderWrapper implements PersistenceProvider {
             props.putAll(properties); 
         }
         
-        // Create a composite loader that loads from the punit bundle and the provider bundle
-        CompositeClassLoader compositeLoader = CompositeClassLoader.createCompositeLoader(
-                mgr.getBundleContext(), 
-                unitInfo.getBundle());
+        // Get the composite loader (shared with weaving) that loads from the punit bundle and the provider bundle.
         // Bug 385170 - If user supplies a classloader then tack it on the front
-        if (props.containsKey(PersistenceUnitProperties.CLASSLOADER)) {
-            ClassLoader userLoader = (ClassLoader) props.get(PersistenceUnitProperties.CLASSLOADER);
-            compositeLoader.getClassLoaders().add(0, userLoader);
-        }
+        CompositeClassLoader compositeLoader = mgr.getLoaderRegistry().getCompositeLoader(
+                unitInfo.getBundle(), 
+                (ClassLoader) props.get(PersistenceUnitProperties.CLASSLOADER));
         props.put(PersistenceUnitProperties.CLASSLOADER, compositeLoader);
 
         // Pass in the data source as a property
         DataSource ds = mgr.getDataSourceUtil().acquireDataSource(unitInfo, properties);
         if (ds != null) 
             props.put(PersistenceUnitProperties.NON_JTA_DATASOURCE, ds);
+
+        // Give the session a read connection pool on the read replicas, if there are any
+        if (ds instanceof ReplicaRoutingDataSource) {
+            Object customizer = props.get(PersistenceUnitProperties.SESSION_CUSTOMIZER);
+            if (customizer == null)
+                customizer = unitInfo.getDescriptorProperties().get(PersistenceUnitProperties.SESSION_CUSTOMIZER);
+            props.put(PersistenceUnitProperties.SESSION_CUSTOMIZER, new ReadReplicaSessionCustomizer(
+                    ((ReplicaRoutingDataSource) ds).getReadDataSource(), customizer, compositeLoader));
+        }
         
         // Specify the name and location of the persistence descriptor
         props.put(PersistenceUnitProperties.ECLIPSELINK_PERSISTENCE_XML, fullDescriptorPath(unitInfo));
@@ -21,20 +21,32 @@ import static org.eclipse.gemini.jpa.GeminiUtil.fatalError;
 import static org.eclipse.gemini.jpa.GeminiUtil.warning;
 import static org.eclipse.gemini.jpa.eclipselink.EclipseLinkProvider.ECLIPSELINK_PROVIDER_CLASS_NAME;
 
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
 
+import javax.management.ObjectName;
 import javax.persistence.EntityManagerFactory;
 import javax.sql.DataSource;
 
 import org.eclipse.gemini.jpa.classloader.BundleProxyClassLoader;
+import org.eclipse.gemini.jpa.eclipselink.EclipseLinkProvider;
 import org.eclipse.gemini.jpa.classloader.CompositeClassLoader;
+import org.eclipse.gemini.jpa.datasource.ConnectionMetrics;
+import org.eclipse.gemini.jpa.datasource.DataSourceUtil;
+import org.eclipse.gemini.jpa.metrics.ConnectionMetricsMXBean;
 import org.eclipse.gemini.jpa.proxy.EMFBuilderServiceProxyHandler;
+import org.eclipse.gemini.jpa.proxy.EMFFutureServiceFactory;
 import org.eclipse.gemini.jpa.proxy.EMFServiceProxyHandler;
+import org.eclipse.gemini.jpa.proxy.ProxyClassGenerator;
 import org.eclipse.gemini.jpa.weaving.WeavingHookTransformer;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceRegistration;
@@ -150,11 +162,81 @@ public class ServicesUtil {
         // Create the properties used for both services
         Dictionary<String,String> props = buildServiceProperties(pUnitInfo);
         
+        // Publish the connection metrics before any data source is created
+        if (pUnitInfo.getBooleanUnitProperty(GeminiPersistenceUnitProperties.PUNIT_METRICS, false)) {
+            registerConnectionMetrics(pUnitInfo, props);
+        }
+
+        // A p-unit that is to be pre-warmed says so on its EMF service
+        boolean prewarm = pUnitInfo.getBooleanUnitProperty(GeminiPersistenceUnitProperties.PUNIT_PREWARM, false);
+        Dictionary<String,String> emfProps = props;
+        if (prewarm) {
+            emfProps = new Hashtable<String,String>((Hashtable<String,String>) props);
+            emfProps.put(GeminiPersistenceUnitProperties.PREWARM_STATUS, GeminiPersistenceUnitProperties.PREWARM_PENDING);
+        }
+
         // Try to register the EMF service (it will only occur if data source is available)
-        tryToRegisterEMFService(pUnitInfo, anchorClasses, props);                
+        tryToRegisterEMFService(pUnitInfo, anchorClasses, emfProps);                
 
         // Create a builder service in any case
         registerEMFBuilderService(pUnitInfo, anchorClasses, props);
+
+        // Open the first connections in the background once the DSF is there
+        if (isEMFServiceReady(pUnitInfo)) {
+            prefillConnections(pUnitInfo);
+        }
+
+        // Get the EMF ready in the background instead of on the first call
+        // (an EMF service that is not ready yet is pre-warmed when it becomes ready)
+        if (prewarm && (pUnitInfo.getEmfFutureFactory() != null) && isEMFServiceReady(pUnitInfo)) {
+            prewarmEMF(pUnitInfo);
+        }
+    }
+
+    /**
+     * Mark the registered EMF service of a p-unit as ready once its data source is 
+     * available, and pre-warm its EMF if the p-unit asks for it. Used when the EMF 
+     * service is updated in place instead of being re-registered.
+     */
+    public void emfServiceReady(PUnitInfo pUnitInfo) {
+
+        debug("ServicesUtil.emfServiceReady for ", pUnitInfo.getUnitName());
+        updateEMFServiceProperty(pUnitInfo, GeminiPersistenceUnitProperties.EMF_READY, "true");
+        // Clients can wait for the EMF now that it can be deployed
+        if ((pUnitInfo.getEmfFutureFactory() != null) && (pUnitInfo.getEmfFutureService() == null)) {
+            registerEMFFutureService(pUnitInfo);
+        }
+        prefillConnections(pUnitInfo);
+        if (pUnitInfo.getBooleanUnitProperty(GeminiPersistenceUnitProperties.PUNIT_PREWARM, false) && 
+                (pUnitInfo.getEmfFutureFactory() != null)) {
+            prewarmEMF(pUnitInfo);
+        }
+    }
+
+    /**
+     * Mark the registered EMF service of a p-unit as not ready since its data source 
+     * is no longer available. Used when the EMF service is updated in place instead 
+     * of being unregistered.
+     */
+    public void emfServiceNotReady(PUnitInfo pUnitInfo) {
+
+        debug("ServicesUtil.emfServiceNotReady for ", pUnitInfo.getUnitName());
+        updateEMFServiceProperty(pUnitInfo, GeminiPersistenceUnitProperties.EMF_READY, "false");
+        // Withdraw the future until the service is ready again, and keep a fresh 
+        // one to register then (the current one may have failed for lack of a DSF)
+        EMFFutureServiceFactory factory = pUnitInfo.getEmfFutureFactory();
+        if (factory != null) {
+            unregisterEMFFutureService(pUnitInfo);
+            pUnitInfo.setEmfFutureFactory(factory.renew());
+        }
+    }
+
+    /**
+     * Return whether the EMF service of a p-unit is registered and ready
+     */
+    public boolean isEMFServiceReady(PUnitInfo pUnitInfo) {
+        Dictionary<String,String> emfProps = pUnitInfo.getEmfServiceProperties();
+        return (emfProps != null) && "true".equals(emfProps.get(GeminiPersistenceUnitProperties.EMF_READY));
     }
 
     /**
@@ -164,6 +246,7 @@ public class ServicesUtil {
 
         unregisterEMFService(pUnitInfo);
         unregisterEMFBuilderService(pUnitInfo);
+        unregisterConnectionMetrics(pUnitInfo);
     }
 
     /** 
@@ -207,10 +290,11 @@ public class ServicesUtil {
         } 
         // Either a driver class or a data source was specified
         // (If both then non-jta data source overrides)
+        boolean ready = true;
         
         if (nonJtaDataSource != null) {
             // We must have a non-jta data source string
-            DataSource ds = mgr.getJndiUtil().lookupDataSource(nonJtaDataSource);
+            DataSource ds = mgr.getJndiUtil().lookupDataSource(pUnitInfo.getBundle(), nonJtaDataSource);
             if (ds == null) {
                 warning("Non-JTA data source " + nonJtaDataSource + " was not found. EMF service not registered.");
                 return;
@@ -230,10 +314,15 @@ public class ServicesUtil {
                     // We found the driver in the punit. Stop tracking DBAccess service and revert to direct access
                     mgr.getDataSourceUtil().stopTrackingDataSourceFactory(pUnitInfo);
                 } catch (ClassNotFoundException cnfEx) {
-                    // Driver not local, bail and wait for the tracker to detect DBAccess service
                     debug("JDBC driver " + driverClassName + " was not found locally.");
-                    warning("DataSourceFactory service for " + driverClassName + " was not found. EMF service not registered.");
-                    return;
+                    if (!GeminiSystemProperties.inPlaceEMFUpdate()) {
+                        // Driver not local, bail and wait for the tracker to detect DBAccess service
+                        warning("DataSourceFactory service for " + driverClassName + " was not found. EMF service not registered.");
+                        return;
+                    }
+                    // Register the service now and update it when the tracker detects the DSF service
+                    debug("DataSourceFactory service for " + driverClassName + " was not found. EMF service registered as not ready.");
+                    ready = false;
                 }
             }
         }
@@ -246,6 +335,10 @@ public class ServicesUtil {
         for (int i=0; i<classArray.length; i++)
             classNameArray[i] = classArray[i].getName();
 
+        // Say whether the data source is available
+        serviceProps = new Hashtable<String,String>((Hashtable<String,String>) serviceProps);
+        serviceProps.put(GeminiPersistenceUnitProperties.EMF_READY, String.valueOf(ready));
+
         // Register the EMF service (using p-unit context) and set registration in PUnitInfo
         ServiceRegistration emfService = null;
         try {
@@ -256,6 +349,39 @@ public class ServicesUtil {
             fatalError("ServicesUtil could not register EMF service for " + pUnitInfo.getUnitName(), e);
         }
         pUnitInfo.setEmfService(emfService);
+        pUnitInfo.setEmfServiceProperties(serviceProps);
+
+        // Let clients wait for the EMF without blocking on the EMF service. If the 
+        // service is not ready then the future is registered when it becomes ready.
+        pUnitInfo.setEmfFutureFactory(new EMFFutureServiceFactory(
+                pUnitInfo, pUnitInfo.getEmfHandler(), emfServiceProxy, mgr.getExecutor()));
+        if (ready) {
+            registerEMFFutureService(pUnitInfo);
+        }
+    }
+    
+    /** 
+     * Register the EMF future service of a p-unit whose EMF service is ready. The 
+     * service is a CompletionStage that completes with the EMF service object once 
+     * the EMF has been deployed. Deployment starts (on a Gemini worker thread) when 
+     * the service is first got. It has the EMF service properties plus EMF_FUTURE.
+     */
+    public void registerEMFFutureService(PUnitInfo pUnitInfo) {
+
+        debug("ServicesUtil.registerEMFFutureService for ", pUnitInfo.getUnitName());
+        ServiceRegistration emfFutureService = null;
+        try {
+            emfFutureService = pUnitInfo.getBundle().getBundleContext()
+                           .registerService(CompletionStage.class.getName(), 
+                                            pUnitInfo.getEmfFutureFactory(), 
+                                            emfFutureServiceProperties(pUnitInfo.getEmfServiceProperties()));
+            debug("ServicesUtil EMF future service: ", emfFutureService);
+        } catch (Exception e) {
+            // Not fatal, the EMF service is still there
+            warning("ServicesUtil could not register EMF future service for " + pUnitInfo.getUnitName(), e);
+            return;
+        }
+        pUnitInfo.setEmfFutureService(emfFutureService);
     }
     
     /** 
@@ -319,6 +445,9 @@ public class ServicesUtil {
         //       DSF that comes and goes; only one that comes for the first time
         mgr.getDataSourceUtil().stopTrackingDataSourceFactory(pUnitInfo);
 
+        // The EMF future service goes with the EMF service
+        unregisterEMFFutureService(pUnitInfo);
+
         // If an EMF service is registered then unregister it
         ServiceRegistration emfService = pUnitInfo.getEmfService();
         if (emfService != null) {
@@ -330,6 +459,7 @@ public class ServicesUtil {
             }
             debug("ServicesUtil un-registered EMF service for ", pUnitInfo.getUnitName());
             pUnitInfo.setEmfService(null);
+            pUnitInfo.setEmfServiceProperties(null);
         }
 
         // If an EMF exists because we created one then we close and remove it
@@ -338,11 +468,208 @@ public class ServicesUtil {
             if (emf.isOpen()) emf.close();
             pUnitInfo.getEmfHandler().syncUnsetEMF();
             debug("ServicesUtil EMF service removed EMF: ", emf);
+            mgr.getDataSourceUtil().closePooledDataSources(pUnitInfo);
         }
         pUnitInfo.setEmfHandler(null);
         pUnitInfo.setJndiDataSource(null);
     }
 
+    /**
+     * Create and deploy the EMF of a p-unit on a worker thread, then open a first 
+     * connection and (if configured) prepare the named queries. The prewarm status 
+     * property of the EMF service is updated when done.
+     * 
+     * @param pUnitInfo
+     */
+    public void prewarmEMF(final PUnitInfo pUnitInfo) {
+
+        debug("ServicesUtil.prewarmEMF for ", pUnitInfo.getUnitName());
+        final boolean prepareQueries = 
+            pUnitInfo.getBooleanUnitProperty(GeminiPersistenceUnitProperties.PUNIT_PREWARM_QUERIES, false);
+        final EMFFutureServiceFactory factory = pUnitInfo.getEmfFutureFactory();
+        factory.start();
+        factory.getFuture().whenCompleteAsync(new BiConsumer<Object,Throwable>() {
+            public void accept(Object emfService, Throwable t) {
+                if (factory.getFuture().isCancelled()) {
+                    // The p-unit went away, nothing to report
+                    return;
+                }
+                String status = GeminiPersistenceUnitProperties.PREWARM_FAILED;
+                if (t == null) {
+                    try {
+                        EntityManagerFactory emf = pUnitInfo.getEmf();
+                        if ((emf != null) && emf.isOpen()) {
+                            EclipseLinkProvider.prewarm(emf, prepareQueries);
+                            status = GeminiPersistenceUnitProperties.PREWARM_READY;
+                        }
+                    } catch (Throwable ex) {
+                        warning("ServicesUtil could not pre-warm EMF for " + pUnitInfo.getUnitName() + ": ", ex);
+                    }
+                }
+                debug("ServicesUtil pre-warm status of ", pUnitInfo.getUnitName(), ": ", status);
+                updateEMFServiceProperty(pUnitInfo, GeminiPersistenceUnitProperties.PREWARM_STATUS, status);
+            }
+        }, mgr.getExecutor());
+    }
+
+    /**
+     * Pre-fill the connection pool of a p-unit on a worker thread if the p-unit asks 
+     * for it. The prefill service properties of the EMF service are updated when done.
+     * 
+     * @param pUnitInfo
+     */
+    public void prefillConnections(final PUnitInfo pUnitInfo) {
+
+        if (pUnitInfo.getDsfService() == null || 
+                (pUnitInfo.getUnitProperty(GeminiPersistenceUnitProperties.CONNECTION_POOL_PREFILL, null) == null))
+            return;
+        debug("ServicesUtil.prefillConnections for ", pUnitInfo.getUnitName());
+        updateEMFServiceProperty(pUnitInfo, GeminiPersistenceUnitProperties.PREFILL_STATUS, 
+                GeminiPersistenceUnitProperties.PREWARM_PENDING);
+        mgr.getExecutor().execute(new Runnable() {
+            public void run() {
+                if (pUnitInfo.getEmfService() == null) {
+                    // The p-unit went away, nothing to fill
+                    return;
+                }
+                DataSourceUtil.PrefillResult result = null;
+                try {
+                    result = mgr.getDataSourceUtil().prefillConnections(pUnitInfo);
+                } catch (Throwable t) {
+                    warning("ServicesUtil could not pre-fill connections for " + pUnitInfo.getUnitName() + ": ", t);
+                }
+                Map<String,String> status = new HashMap<String,String>();
+                status.put(GeminiPersistenceUnitProperties.PREFILL_STATUS, 
+                        ((result != null) && result.isComplete()) 
+                            ? GeminiPersistenceUnitProperties.PREWARM_READY 
+                            : GeminiPersistenceUnitProperties.PREWARM_FAILED);
+                if (result != null) {
+                    status.put(GeminiPersistenceUnitProperties.PREFILL_CONNECTIONS, String.valueOf(result.validated));
+                    status.put(GeminiPersistenceUnitProperties.PREFILL_TIME, String.valueOf(result.elapsedMillis));
+                }
+                updateEMFServiceProperties(pUnitInfo, status);
+            }
+        });
+    }
+
+    /**
+     * Set a service property on the EMF service of a p-unit (and on its EMF future service).
+     * Does nothing if the EMF service is not registered.
+     * 
+     * @param pUnitInfo
+     * @param key the service property name
+     * @param value the new service property value
+     */
+    public void updateEMFServiceProperty(PUnitInfo pUnitInfo, String key, String value) {
+        updateEMFServiceProperties(pUnitInfo, Collections.singletonMap(key, value));
+    }
+
+    /**
+     * Set service properties on the EMF service of a p-unit (and on its EMF future service)
+     * all at once. Does nothing if the EMF service is not registered.
+     * 
+     * @param pUnitInfo
+     * @param newProps the service property names and values to set
+     */
+    @SuppressWarnings("unchecked")
+    public void updateEMFServiceProperties(PUnitInfo pUnitInfo, Map<String,String> newProps) {
+        ServiceRegistration emfService = pUnitInfo.getEmfService();
+        Dictionary<String,String> oldProps = pUnitInfo.getEmfServiceProperties();
+        if ((emfService == null) || (oldProps == null)) 
+            return;
+        Hashtable<String,String> props = new Hashtable<String,String>((Hashtable<String,String>) oldProps);
+        props.putAll(newProps);
+        try {
+            emfService.setProperties(props);
+            pUnitInfo.setEmfServiceProperties(props);
+            ServiceRegistration emfFutureService = pUnitInfo.getEmfFutureService();
+            if (emfFutureService != null) 
+                emfFutureService.setProperties(emfFutureServiceProperties(props));
+        } catch (IllegalStateException isEx) {
+            // Service was unregistered in the meantime
+            debug("ServicesUtil could not update unregistered EMF service of ", pUnitInfo.getUnitName());
+        }
+    }
+
+    /**
+     * Unregister the EMF future service if there was one registered, 
+     * and cancel the future if the EMF has not yet been deployed.
+     * 
+     * @param pUnitInfo
+     */
+    public void unregisterEMFFutureService(PUnitInfo pUnitInfo) {
+
+        ServiceRegistration emfFutureService = pUnitInfo.getEmfFutureService();
+        if (emfFutureService != null) {
+            debug("ServicesUtil un-registering EMF future service for ", pUnitInfo.getUnitName());
+            try { 
+                emfFutureService.unregister(); 
+            } catch (Exception e) {
+                warning("Error unregistering EMF future service: ", e);
+            }
+            pUnitInfo.setEmfFutureService(null);
+        }
+        EMFFutureServiceFactory factory = pUnitInfo.getEmfFutureFactory();
+        if (factory != null) {
+            factory.cancel();
+            pUnitInfo.setEmfFutureFactory(null);
+        }
+    }
+
+    /** 
+     * Register the connection metrics of the p-unit as an OSGi service and as an MBean.
+     * Data sources created for the p-unit from now on record their metrics in it.
+     */
+    public void registerConnectionMetrics(PUnitInfo pUnitInfo, Dictionary<String,String> serviceProps) {
+
+        debug("ServicesUtil.registerConnectionMetrics for ", pUnitInfo.getUnitName());
+        ConnectionMetrics metrics = new ConnectionMetrics(pUnitInfo.getUnitName());
+        pUnitInfo.setConnectionMetrics(metrics);
+        try {
+            pUnitInfo.setConnectionMetricsService(pUnitInfo.getBundle().getBundleContext()
+                    .registerService(ConnectionMetricsMXBean.class.getName(), metrics, serviceProps));
+        } catch (Exception e) {
+            warning("ServicesUtil could not register connection metrics service for " + pUnitInfo.getUnitName(), e);
+        }
+        try {
+            ObjectName name = new ObjectName("org.eclipse.gemini.jpa:type=ConnectionMetrics,bundleId=" + 
+                    pUnitInfo.getBundle().getBundleId() + ",unit=" + ObjectName.quote(pUnitInfo.getUnitName()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            pUnitInfo.setConnectionMetricsName(name);
+        } catch (Exception e) {
+            warning("ServicesUtil could not register connection metrics MBean for " + pUnitInfo.getUnitName(), e);
+        }
+    }
+
+    /** 
+     * Unregister the connection metrics service and MBean of the p-unit, if it has them.
+     */
+    public void unregisterConnectionMetrics(PUnitInfo pUnitInfo) {
+
+        if (pUnitInfo.getConnectionMetrics() == null)
+            return;
+        debug("ServicesUtil.unregisterConnectionMetrics for ", pUnitInfo.getUnitName());
+        ServiceRegistration metricsService = pUnitInfo.getConnectionMetricsService();
+        if (metricsService != null) {
+            try {
+                metricsService.unregister();
+            } catch (Exception e) {
+                warning("Error un-registering connection metrics service: ", e);
+            }
+            pUnitInfo.setConnectionMetricsService(null);
+        }
+        ObjectName name = pUnitInfo.getConnectionMetricsName();
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (Exception e) {
+                warning("Error un-registering connection metrics MBean: ", e);
+            }
+            pUnitInfo.setConnectionMetricsName(null);
+        }
+        pUnitInfo.setConnectionMetrics(null);
+    }
+
     /**
      * Unregister the EMFBuilder service.
      * Clean up any resources the service may have allocated.
@@ -374,6 +701,9 @@ public class ServicesUtil {
             debug("ServicesUtil EMFBuilder service removed emf: ", emf);
         }
         pUnitInfo.setEmfBuilderHandler(null);
+
+        // Any EMFs created for the p-unit are gone, so the connections can go too
+        mgr.getDataSourceUtil().closePooledDataSources(pUnitInfo);
     }    
     
     /*================*/
@@ -453,12 +783,15 @@ public class ServicesUtil {
     Object createEMFProxy(PUnitInfo pUnitInfo, ClassLoader loader, Class<?>[] clsArray) {
 
         EMFServiceProxyHandler emfProxyHandler = new EMFServiceProxyHandler(pUnitInfo);
-        Object result = null;
-        try {
-            result = Proxy.newProxyInstance(loader, clsArray, emfProxyHandler);
-            debug("ServicesUtil created EMF proxy ");
-        } catch (Exception e) { 
-            fatalError("ServicesUtil - Failed to create proxy for EMF service: ", e); 
+        // Calls to EMF methods are delegated straight to the EMF by a generated proxy
+        Object result = createGeneratedProxy(loader, clsArray, EntityManagerFactory.class, emfProxyHandler);
+        if (result == null) {
+            try {
+                result = Proxy.newProxyInstance(loader, clsArray, emfProxyHandler);
+                debug("ServicesUtil created EMF proxy ");
+            } catch (Exception e) { 
+                fatalError("ServicesUtil - Failed to create proxy for EMF service: ", e); 
+            }
         }
         pUnitInfo.setEmfHandler(emfProxyHandler);
         return result;
@@ -475,16 +808,39 @@ public class ServicesUtil {
         // Assume that EMF proxy handler has been created and is stored in pUnitInfo
         EMFBuilderServiceProxyHandler emfBuilderProxyHandler = 
             new EMFBuilderServiceProxyHandler(pUnitInfo, pUnitInfo.getEmfHandler());
-        Object result = null;
-        try {
-            result = Proxy.newProxyInstance(loader, clsArray, emfBuilderProxyHandler);
-            debug("ServicesUtil created EMFBuilder proxy ");
-        } catch (Exception e) { 
-            fatalError("ServicesUtil - Failed to create proxy for EMFBuilder service: ", e); 
+        // All builder methods go to the handler
+        Object result = createGeneratedProxy(loader, clsArray, null, emfBuilderProxyHandler);
+        if (result == null) {
+            try {
+                result = Proxy.newProxyInstance(loader, clsArray, emfBuilderProxyHandler);
+                debug("ServicesUtil created EMFBuilder proxy ");
+            } catch (Exception e) { 
+                fatalError("ServicesUtil - Failed to create proxy for EMFBuilder service: ", e); 
+            }
         }
         pUnitInfo.setEmfBuilderHandler(emfBuilderProxyHandler);
         return result;
     }
+
+    /** 
+     * Create and return an instance of a generated proxy class, or null if generated 
+     * proxies are disabled or the class could not be generated.
+     */
+    Object createGeneratedProxy(ClassLoader loader, 
+                                Class<?>[] clsArray, 
+                                Class<?> targetType,
+                                EMFServiceProxyHandler handler) {
+        if (!GeminiSystemProperties.generatedProxies()) 
+            return null;
+        try {
+            Object result = ProxyClassGenerator.newProxyInstance(loader, clsArray, targetType, handler);
+            debug("ServicesUtil created generated proxy ", result.getClass().getName());
+            return result;
+        } catch (Throwable t) {
+            warning("ServicesUtil - Failed to generate proxy class, using dynamic proxy: ", t);
+            return null;
+        }
+    }
     
     /** 
      * Build the list of service properties for the service.
@@ -503,4 +859,14 @@ public class ServicesUtil {
         debug("ServicesUtil.buildServiceProps: ", props);
         return props;
     }
+
+    /** 
+     * Return the properties of the EMF future service, given those of the EMF service.
+     */
+    @SuppressWarnings("unchecked")
+    public Dictionary<String,String> emfFutureServiceProperties(Dictionary<String,String> emfServiceProps) {
+        Hashtable<String,String> props = new Hashtable<String,String>((Hashtable<String,String>) emfServiceProps);
+        props.put(GeminiPersistenceUnitProperties.EMF_FUTURE, "true");
+        return props;
+    }
 }
\ No newline at end of file
@@ -19,32 +19,49 @@ import static org.eclipse.gemini.jpa.GeminiUtil.debugClassLoader;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleRevision;
 
-@SuppressWarnings({"rawtypes","unchecked"})
 public class BundleProxyClassLoader extends ClassLoader {
 
+    // Loads go straight to the bundle, which does its own locking
+    static {
+        registerAsParallelCapable();
+    }
+
+    // Max number of entry lookups that are cached
+    static final int MAX_CACHED_ENTRIES = 4096;
+
+    // Cached value of an entry that the bundle does not have
+    private static final Object NO_ENTRY = new Object();
+
     private Bundle bundle;
-    private EclipseDotClasspathHelper classpathHelper = new EclipseDotClasspathHelper();
+    private volatile EclipseDotClasspathHelper classpathHelper = new EclipseDotClasspathHelper();
+
+    // Entries (URL or NO_ENTRY) looked up in the revision of the bundle in entriesRevision,
+    // checked to still be the current revision when the wiring generation changes
+    private Map<String,Object> entries = new ConcurrentHashMap<String,Object>();
+    private BundleRevision entriesRevision;
+    private volatile long entriesGeneration = -1;
         
     public BundleProxyClassLoader(Bundle bundle) {
         this.bundle = bundle;
     }
+
+    public Bundle getBundle() { return bundle; }
     
     @Override
     public Enumeration<URL> findResources(String name) throws IOException {
         try {
-            List<URL> resourceURLs = new ArrayList<URL>(1);
             URL entry = getEntry(name);
-            if (entry != null){
-                resourceURLs.add(entry);
-            }
-            return new ListEnumeration(resourceURLs);
+            return (entry != null)
+                ? Collections.enumeration(Collections.singletonList(entry))
+                : Collections.<URL>emptyEnumeration();
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException(e);
@@ -108,13 +125,50 @@ public class BundleProxyClassLoader extends ClassLoader {
     }
     
     protected URL getEntry(String name) {
+        long generation = validEntriesGeneration();
+        Object cached = entries.get(name);
+        if (cached != null) {
+            return (cached == NO_ENTRY) ? null : (URL) cached;
+        }
         URL entry = bundle.getEntry(name);
         if (entry == null) {
             entry = getEclipseProjectEntry(name, entry);
         }
+        if (generation == entriesGeneration) {
+            if (entries.size() >= MAX_CACHED_ENTRIES) {
+                entries.clear();
+            }
+            entries.put(name, (entry == null) ? NO_ENTRY : entry);
+        }
         return entry;
     }
 
+    /**
+     * Clear the entry cache if the bundle has a new revision since it was 
+     * filled, and return the wiring generation the cache is valid for. 
+     * The revision is only checked again after a bundle event has changed 
+     * the wiring generation.
+     */
+    protected long validEntriesGeneration() {
+        long generation = CompositeClassLoader.currentWiringGeneration();
+        if (generation != entriesGeneration) {
+            synchronized (entries) {
+                if (generation != entriesGeneration) {
+                    BundleRevision revision = bundle.adapt(BundleRevision.class);
+                    if (revision != entriesRevision) {
+                        debugClassLoader("New revision of bundle, clearing entry cache of ", this);
+                        entries.clear();
+                        // The new revision may have a different .classpath
+                        classpathHelper = new EclipseDotClasspathHelper();
+                        entriesRevision = revision;
+                    }
+                    entriesGeneration = generation;
+                }
+            }
+        }
+        return generation;
+    }
+
     protected URL getEclipseProjectEntry(String name, URL entry) {
         String binPath = classpathHelper.getBinPath(bundle);
         if (binPath != null) {
@@ -123,22 +177,6 @@ public class BundleProxyClassLoader extends ClassLoader {
         return entry;
     }
 
-    private final class ListEnumeration implements Enumeration {
-        private Iterator iterator;
-
-        public ListEnumeration(List<?> list) {
-            this.iterator = list.iterator();
-        }
-
-        public boolean hasMoreElements() {
-            return iterator.hasNext();
-        }
-
-        public Object nextElement() {
-            return iterator.next();
-        }
-    }
-
     @Override
     public String toString() {
     	return super.toString() + "(" + this.bundle.getSymbolicName() + ")";
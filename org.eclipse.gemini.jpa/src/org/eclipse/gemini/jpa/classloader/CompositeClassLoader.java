@@ -26,26 +26,52 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 
+import org.eclipse.gemini.jpa.GeminiSystemProperties;
+
 @SuppressWarnings({"deprecation"})
 public class CompositeClassLoader extends ClassLoader {
 
+    // Loads are not serialized on the loader, the contained loaders do their own locking
+    static {
+        registerAsParallelCapable();
+    }
+
     // Static Map of private resources keyed by resource name.
     // Instances should check here first and return them directly if these resources
     // are being looked up.
     private static Map<String,String> privateResources = new HashMap<String,String>();
     
-    // List of classloaders to delegate to for class and resource loading
-    private List<ClassLoader> classLoaders = new ArrayList<ClassLoader>();
+    // Incremented whenever the wiring of a bundle changes, since the classes 
+    // the contained loaders can load may then have changed
+    private static AtomicLong wiringGeneration = new AtomicLong();
+
+    // Max number of class names that are remembered as not found
+    static final int MAX_MISSING_CLASSES = 4096;
+
+    // List of classloaders to delegate to for class and resource loading. 
+    // Lookups iterate over it without locking, so it is only ever replaced on write.
+    private List<ClassLoader> classLoaders = new CopyOnWriteArrayList<ClassLoader>();
+    private List<ClassLoader> classLoadersView = Collections.unmodifiableList(classLoaders);
     
+    // Classes loaded by the contained loaders, and class names that none of them 
+    // could load, as of the wiring generation in cacheGeneration
+    private Map<String,Class<?>> loadedClasses = new ConcurrentHashMap<String,Class<?>>();
+    private Map<String,Boolean> missingClasses = new ConcurrentHashMap<String,Boolean>();
+    private volatile long cacheGeneration = wiringGeneration.get();
+
     /**
      * Return a class loader that will delegate to both the punit bundle 
      * and the provider bundle 
@@ -58,11 +84,32 @@ public class CompositeClassLoader extends ClassLoader {
         List<ClassLoader> loaders = new ArrayList<ClassLoader>();
         loaders.add(pUnitLoader);
         loaders.add(providerLoader);
-        CompositeClassLoader compositeLoader = new CompositeClassLoader(loaders);
+        CompositeClassLoader compositeLoader = 
+            GeminiSystemProperties.CLASSLOADER_STRATEGY_PACKAGE_INDEXED.equals(GeminiSystemProperties.classLoaderStrategy())
+                ? new PackageIndexedClassLoader(loaders)
+                : new CompositeClassLoader(loaders);
         debugClassLoader("Composite loader created: ", compositeLoader);
         return compositeLoader;
     }
     
+    /**
+     *  Invalidate the class lookup caches of all composite loaders (and the entry 
+     *  caches of the bundle proxy loaders). Called when 
+     *  the wiring of a bundle changes (it is resolved, unresolved, updated or 
+     *  uninstalled).
+     */
+    public static void bundleWiringChanged() {
+        wiringGeneration.incrementAndGet();
+    }
+
+    /**
+     *  Return the current wiring generation, for other loaders that 
+     *  cache what a bundle contains
+     */
+    static long currentWiringGeneration() {
+        return wiringGeneration.get();
+    }
+
     /**
      *  Add a private resource 
      */
@@ -97,10 +144,23 @@ public class CompositeClassLoader extends ClassLoader {
     }
 
     /** 
-     * Get the contained class loaders 
+     * Get the contained class loaders (read-only, see addClassLoader)
      */
     public List<ClassLoader> getClassLoaders() {
-        return classLoaders;
+        return classLoadersView;
+    }
+
+    /**
+     * Add a class loader to delegate to at the given position in the list
+     * of contained loaders. What has been cached about the classes of the
+     * contained loaders is discarded.
+     */
+    public void addClassLoader(int index, ClassLoader loader) {
+        synchronized (loadedClasses) {
+            classLoaders.add(index, loader);
+            clearCaches();
+        }
+        debugClassLoader("Added loader ", loader, " to ", this);
     }
 
     /**
@@ -109,7 +169,7 @@ public class CompositeClassLoader extends ClassLoader {
      * on all contained class loaders.
      */
     @Override
-    public synchronized void clearAssertionStatus() {
+    public void clearAssertionStatus() {
         for (ClassLoader classLoader : getClassLoaders()) {
             classLoader.clearAssertionStatus();
         }
@@ -127,7 +187,7 @@ public class CompositeClassLoader extends ClassLoader {
             return newPrivateResourceURL(name);
             // throw new RuntimeException("Don't know how to create URL for local resource!!! ");
         }
-        for (ClassLoader classLoader : getClassLoaders()) {
+        for (ClassLoader classLoader : resourceDelegates(name)) {
             debugClassLoader("Attempting getResource(", name,") on ", classLoader.toString());
             URL resource = classLoader.getResource(name);
             if (resource != null) {
@@ -149,7 +209,7 @@ public class CompositeClassLoader extends ClassLoader {
             debugClassLoader("getResourceAsStream() - Found resource ", name, " locally");
             return new StringBufferInputStream(privateResources.get(name));
         }
-        for (ClassLoader classLoader : getClassLoaders()) {
+        for (ClassLoader classLoader : resourceDelegates(name)) {
             debugClassLoader("Attempting getResourceAsStream(", name, ") on ", classLoader.toString());
             InputStream stream = classLoader.getResourceAsStream(name);
             if (stream != null) {
@@ -190,23 +250,81 @@ public class CompositeClassLoader extends ClassLoader {
      */
     @Override
     public Class<?> loadClass(String name) throws ClassNotFoundException {
-        for (ClassLoader classLoader : getClassLoaders()) {
+        long generation = validCacheGeneration();
+        Class<?> cached = loadedClasses.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        if (missingClasses.containsKey(name)) {
+            throw new ClassNotFoundException(name);
+        }
+        for (ClassLoader classLoader : classDelegates(name)) {
             debugClassLoader("Attempting loadClass(", name,") on ", classLoader.toString());
             try {
                 Class<?> aClass = classLoader.loadClass(name);
+                if (generation == cacheGeneration) {
+                    loadedClasses.put(name, aClass);
+                }
                 return aClass;
             } catch (ClassNotFoundException e) {
                 debugClassLoader("ClassNotFound '", name,"' by ", classLoader.toString());                
             }            
         }
+        if (generation == cacheGeneration) {
+            // Keep the negative cache bounded, names are only probed repeatedly during deployment
+            if (missingClasses.size() >= MAX_MISSING_CLASSES) {
+                missingClasses.clear();
+            }
+            missingClasses.put(name, Boolean.TRUE);
+        }
         throw new ClassNotFoundException(name);
     }
 
+    /**
+     * Clear the class lookup caches if the wiring of a bundle has changed since 
+     * they were filled, and return the wiring generation the caches are valid for.
+     */
+    protected long validCacheGeneration() {
+        long generation = wiringGeneration.get();
+        if (generation != cacheGeneration) {
+            synchronized (loadedClasses) {
+                if (generation != cacheGeneration) {
+                    debugClassLoader("Bundle wiring changed, clearing class caches of ", this);
+                    clearCaches();
+                    cacheGeneration = generation;
+                }
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * Clear whatever has been cached about the classes of the contained loaders
+     */
+    protected void clearCaches() {
+        loadedClasses.clear();
+        missingClasses.clear();
+    }
+
+    /**
+     * Return the contained loaders to try, in order, to load the named class
+     */
+    protected List<ClassLoader> classDelegates(String className) {
+        return getClassLoaders();
+    }
+
+    /**
+     * Return the contained loaders to try, in order, to find the named resource
+     */
+    protected List<ClassLoader> resourceDelegates(String resourceName) {
+        return getClassLoaders();
+    }
+
     /** 
      * Sets the desired assertion status for the named top-level class.
      */
     @Override
-    public synchronized void setClassAssertionStatus(String className,
+    public void setClassAssertionStatus(String className,
             boolean enabled) {
         for (ClassLoader classLoader : getClassLoaders()) {
             classLoader.setClassAssertionStatus(className, enabled);
@@ -217,7 +335,7 @@ public class CompositeClassLoader extends ClassLoader {
      * Sets the default assertion status for this class loader. 
      */
     @Override
-    public synchronized void setDefaultAssertionStatus(boolean enabled) {
+    public void setDefaultAssertionStatus(boolean enabled) {
         for (ClassLoader classLoader : getClassLoaders()) {
             classLoader.setDefaultAssertionStatus(enabled);
         }
@@ -227,7 +345,7 @@ public class CompositeClassLoader extends ClassLoader {
      * Sets the package default assertion status for the named package.
      */
     @Override
-    public synchronized void setPackageAssertionStatus(String packageName,
+    public void setPackageAssertionStatus(String packageName,
             boolean enabled) {
         for (ClassLoader classLoader : getClassLoaders()) {
             classLoader.setPackageAssertionStatus(packageName, enabled);
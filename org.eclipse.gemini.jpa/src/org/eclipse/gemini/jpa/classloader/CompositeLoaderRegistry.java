@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.classloader;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debugClassLoader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Hands out one composite loader per persistence bundle revision, so that
+ * weaving (at preResolve time) and every EMF created for the p-units of the
+ * bundle use the same class loader, and what EclipseLink caches by class
+ * loader is reused between them.
+ *
+ * A loader is replaced when the bundle gets a new revision, and is released
+ * when the bundle is updated or uninstalled.
+ */
+public class CompositeLoaderRegistry {
+
+    // Provider (Gemini) bundle context
+    BundleContext providerCtx;
+
+    // Shared loaders keyed by persistence bundle id (guarded by this)
+    Map<Long,RevisionLoader> loaders = new HashMap<Long,RevisionLoader>();
+
+    public CompositeLoaderRegistry(BundleContext providerCtx) {
+        this.providerCtx = providerCtx;
+    }
+
+    /*================*/
+    /* Public methods */
+    /*================*/
+
+    /**
+     * Return the composite loader for the current revision of the persistence
+     * bundle, creating it if there is not one yet.
+     */
+    public synchronized CompositeClassLoader getCompositeLoader(Bundle pUnitBundle) {
+        long bundleId = pUnitBundle.getBundleId();
+        BundleRevision revision = pUnitBundle.adapt(BundleRevision.class);
+        RevisionLoader entry = loaders.get(bundleId);
+        if ((entry == null) || (entry.revision != revision)) {
+            entry = new RevisionLoader(revision,
+                    CompositeClassLoader.createCompositeLoader(providerCtx, pUnitBundle));
+            // Don't hang on to a loader for a bundle that has no revision (uninstalled)
+            if (revision != null)
+                loaders.put(bundleId, entry);
+            debugClassLoader("Shared composite loader for bundle ", bundleId, " revision ", revision, ": ", entry.loader);
+        }
+        return entry.loader;
+    }
+
+    /**
+     * Return the shared composite loader of the persistence bundle, with the
+     * given user loader put in front of it. The user loader is only added to
+     * a light wrapper, the shared loader is not changed.
+     */
+    public CompositeClassLoader getCompositeLoader(Bundle pUnitBundle, ClassLoader userLoader) {
+        CompositeClassLoader sharedLoader = getCompositeLoader(pUnitBundle);
+        if (userLoader == null)
+            return sharedLoader;
+        CompositeClassLoader view = new CompositeClassLoader(userLoader, sharedLoader);
+        debugClassLoader("User loader ", userLoader, " layered over ", sharedLoader);
+        return view;
+    }
+
+    /**
+     * Release the loader of a bundle (because it was updated or uninstalled)
+     */
+    public synchronized void release(Bundle b) {
+        if (loaders.remove(b.getBundleId()) != null)
+            debugClassLoader("Shared composite loader released for bundle ", b.getBundleId());
+    }
+
+    /**
+     * Release all of the loaders
+     */
+    public synchronized void clear() {
+        loaders.clear();
+    }
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    // The loader created for a revision of a bundle
+    static class RevisionLoader {
+        BundleRevision revision;
+        CompositeClassLoader loader;
+
+        RevisionLoader(BundleRevision revision, CompositeClassLoader loader) {
+            this.revision = revision;
+            this.loader = loader;
+        }
+    }
+}
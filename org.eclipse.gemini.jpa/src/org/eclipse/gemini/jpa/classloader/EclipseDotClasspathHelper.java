@@ -34,11 +34,12 @@ public class EclipseDotClasspathHelper {
     /** 
      * Answer the output path contained in an Eclipse project's
      * .classpath file.  Will only open and parse the file
-     * once, if it exists.
+     * once, if it exists. Synchronized so that concurrent lookups
+     * do not see the handler before it has finished parsing.
      * 
      * @return String
      */
-    public String getBinPath(Bundle bundle) {
+    public synchronized String getBinPath(Bundle bundle) {
         if (handler == null) {
             handler = new EclipseDotClasspathHandler();
         } else {
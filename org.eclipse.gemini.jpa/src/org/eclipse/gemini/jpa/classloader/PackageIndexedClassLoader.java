@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.classloader;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debugClassLoader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * A CompositeClassLoader that goes straight to the contained bundle loader that
+ * provides the package of a class or resource, instead of trying each loader in
+ * turn. The packages of a bundle are the ones its wiring exports, imports, gets
+ * from the bundles it requires, and contains. If more than one bundle provides
+ * a package then the first one in the list of loaders owns it, as it would
+ * when trying the loaders in order.
+ *
+ * Contained loaders that are not bundle loaders (e.g. a user-supplied loader)
+ * are still tried before the owner if they come before it in the list, and the
+ * other loaders are tried after the owner, so a class that is not where the
+ * index says is still found. Packages that are not in the index (e.g. those
+ * imported dynamically) are looked up in all of the loaders in order.
+ *
+ * The index is built on first use and rebuilt after the wiring of a bundle changes.
+ */
+public class PackageIndexedClassLoader extends CompositeClassLoader {
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    // Loaders to try for each package, in order (null until built)
+    private volatile Map<String,List<ClassLoader>> packageIndex;
+
+    // Guards building the index (the loader itself is not locked, it is parallel capable)
+    private final Object indexLock = new Object();
+
+    public PackageIndexedClassLoader(ClassLoader loader1, ClassLoader loader2) {
+        super(loader1, loader2);
+    }
+
+    public PackageIndexedClassLoader(List<ClassLoader> loaders) {
+        super(loaders);
+    }
+
+    /*====================*/
+    /* Overridden methods */
+    /*====================*/
+
+    @Override
+    protected List<ClassLoader> classDelegates(String className) {
+        int lastDot = className.lastIndexOf('.');
+        return (lastDot < 0) ? getClassLoaders() : delegatesForPackage(className.substring(0, lastDot));
+    }
+
+    @Override
+    protected List<ClassLoader> resourceDelegates(String resourceName) {
+        String name = resourceName.startsWith("/") ? resourceName.substring(1) : resourceName;
+        int lastSlash = name.lastIndexOf('/');
+        return (lastSlash < 0)
+            ? getClassLoaders()
+            : delegatesForPackage(name.substring(0, lastSlash).replace('/', '.'));
+    }
+
+    @Override
+    protected void clearCaches() {
+        super.clearCaches();
+        packageIndex = null;
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    protected List<ClassLoader> delegatesForPackage(String packageName) {
+        Map<String,List<ClassLoader>> index = packageIndex;
+        if (index == null) {
+            synchronized (indexLock) {
+                index = packageIndex;
+                if (index == null) {
+                    index = buildIndex();
+                    packageIndex = index;
+                }
+            }
+        }
+        List<ClassLoader> delegates = index.get(packageName);
+        return (delegates != null) ? delegates : getClassLoaders();
+    }
+
+    // Map each package provided by the bundle loaders to the loaders to try for it
+    protected Map<String,List<ClassLoader>> buildIndex() {
+        List<ClassLoader> loaders = new ArrayList<ClassLoader>(getClassLoaders());
+        Map<String,ClassLoader> owners = new HashMap<String,ClassLoader>();
+        for (ClassLoader loader : loaders) {
+            if (loader instanceof BundleProxyClassLoader) {
+                BundleWiring wiring = ((BundleProxyClassLoader) loader).getBundle().adapt(BundleWiring.class);
+                if (wiring != null) {
+                    for (String packageName : packages(wiring)) {
+                        if (!owners.containsKey(packageName))
+                            owners.put(packageName, loader);
+                    }
+                }
+            }
+        }
+        // All of the packages of an owner share the same list of loaders
+        Map<ClassLoader,List<ClassLoader>> delegatesByOwner = new IdentityHashMap<ClassLoader,List<ClassLoader>>();
+        Map<String,List<ClassLoader>> index = new HashMap<String,List<ClassLoader>>(owners.size() * 2);
+        for (Map.Entry<String,ClassLoader> entry : owners.entrySet()) {
+            List<ClassLoader> delegates = delegatesByOwner.get(entry.getValue());
+            if (delegates == null) {
+                delegates = delegatesFor(entry.getValue(), loaders);
+                delegatesByOwner.put(entry.getValue(), delegates);
+            }
+            index.put(entry.getKey(), delegates);
+        }
+        debugClassLoader("Package index built with ", owners.size(), " packages for ", this);
+        return index;
+    }
+
+    // Non-bundle loaders ahead of the owner, then the owner, then the rest in order
+    protected List<ClassLoader> delegatesFor(ClassLoader owner, List<ClassLoader> loaders) {
+        List<ClassLoader> delegates = new ArrayList<ClassLoader>(loaders.size());
+        for (ClassLoader loader : loaders) {
+            if (loader == owner)
+                break;
+            if (!(loader instanceof BundleProxyClassLoader))
+                delegates.add(loader);
+        }
+        delegates.add(owner);
+        for (ClassLoader loader : loaders) {
+            if (!delegates.contains(loader))
+                delegates.add(loader);
+        }
+        return delegates;
+    }
+
+    // Return the names of the packages that can be loaded through the bundle wiring
+    protected Set<String> packages(BundleWiring wiring) {
+        Set<String> packages = new HashSet<String>();
+        // Exported packages
+        addPackages(packages, wiring.getCapabilities(BundleRevision.PACKAGE_NAMESPACE));
+        // Imported packages
+        List<BundleWire> wires = wiring.getRequiredWires(BundleRevision.PACKAGE_NAMESPACE);
+        if (wires != null) {
+            for (BundleWire wire : wires) {
+                addPackage(packages, wire.getCapability());
+            }
+        }
+        // Packages exported by required bundles
+        wires = wiring.getRequiredWires(BundleRevision.BUNDLE_NAMESPACE);
+        if (wires != null) {
+            for (BundleWire wire : wires) {
+                BundleWiring providerWiring = wire.getProviderWiring();
+                if (providerWiring != null)
+                    addPackages(packages, providerWiring.getCapabilities(BundleRevision.PACKAGE_NAMESPACE));
+            }
+        }
+        // Packages in the bundle (and its fragments)
+        Collection<String> classes = wiring.listResources("/", "*.class",
+                BundleWiring.LISTRESOURCES_LOCAL | BundleWiring.LISTRESOURCES_RECURSE);
+        if (classes != null) {
+            for (String resource : classes) {
+                int lastSlash = resource.lastIndexOf('/');
+                if (lastSlash > 0)
+                    packages.add(resource.substring(0, lastSlash).replace('/', '.'));
+            }
+        }
+        return packages;
+    }
+
+    protected void addPackages(Set<String> packages, List<BundleCapability> capabilities) {
+        if (capabilities != null) {
+            for (BundleCapability capability : capabilities) {
+                addPackage(packages, capability);
+            }
+        }
+    }
+
+    protected void addPackage(Set<String> packages, BundleCapability capability) {
+        Object packageName = capability.getAttributes().get(BundleRevision.PACKAGE_NAMESPACE);
+        if (packageName instanceof String)
+            packages.add((String) packageName);
+    }
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.datasource;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.gemini.jpa.metrics.ConnectionMetricsMXBean;
+
+/**
+ * The connection metrics of a p-unit, recorded by the MeteredDataSources
+ * of the unit.
+ *
+ * @see MeteredDataSource
+ */
+public class ConnectionMetrics implements ConnectionMetricsMXBean {
+
+    static final double NANOS_PER_MICRO = 1000.0;
+    static final double NANOS_PER_MILLI = 1000000.0;
+
+    String unitName;
+
+    LatencyHistogram acquireTimes = new LatencyHistogram();
+    LatencyHistogram holdTimes = new LatencyHistogram();
+    AtomicLong acquireFailures = new AtomicLong();
+    AtomicInteger activeConnections = new AtomicInteger();
+
+    // Pools of the data sources of the unit
+    List<PoolStatistics> pools = new CopyOnWriteArrayList<PoolStatistics>();
+
+    // Statement caches of the data sources of the unit
+    List<StatementCacheStatistics> statementCaches = new CopyOnWriteArrayList<StatementCacheStatistics>();
+
+    public ConnectionMetrics(String unitName) {
+        this.unitName = unitName;
+    }
+
+    /*===================*/
+    /* Recording methods */
+    /*===================*/
+
+    public void acquired(long nanos) {
+        acquireTimes.record(nanos);
+        activeConnections.incrementAndGet();
+    }
+
+    public void acquireFailed() {
+        acquireFailures.incrementAndGet();
+    }
+
+    public void released(long heldNanos) {
+        holdTimes.record(heldNanos);
+        activeConnections.decrementAndGet();
+    }
+
+    public void addPool(PoolStatistics pool) {
+        if (!pools.contains(pool))
+            pools.add(pool);
+    }
+
+    public void addStatementCache(StatementCacheStatistics cache) {
+        if (!statementCaches.contains(cache))
+            statementCaches.add(cache);
+    }
+
+    public void clearPools() {
+        pools.clear();
+        statementCaches.clear();
+    }
+
+    /*================*/
+    /* MXBean methods */
+    /*================*/
+
+    public String getUnitName() { return unitName; }
+
+    public long getAcquireCount() { return acquireTimes.getCount(); }
+
+    public long getAcquireFailures() { return acquireFailures.get(); }
+
+    public int getActiveConnections() { return activeConnections.get(); }
+
+    public int getIdleConnections() {
+        int idle = 0;
+        for (PoolStatistics pool : pools)
+            idle += pool.getIdleConnections();
+        return idle;
+    }
+
+    public int getOpenConnections() {
+        int open = 0;
+        for (PoolStatistics pool : pools)
+            open += pool.getOpenConnections();
+        return open;
+    }
+
+    public long getStatementCacheHits() {
+        long hits = 0;
+        for (StatementCacheStatistics cache : statementCaches)
+            hits += cache.getStatementCacheHits();
+        return hits;
+    }
+
+    public long getStatementCacheMisses() {
+        long misses = 0;
+        for (StatementCacheStatistics cache : statementCaches)
+            misses += cache.getStatementCacheMisses();
+        return misses;
+    }
+
+    public double getAcquireTimeMeanMicros() { return acquireTimes.getMean() / NANOS_PER_MICRO; }
+
+    public double getAcquireTimeMaxMicros() { return acquireTimes.getMax() / NANOS_PER_MICRO; }
+
+    public double getAcquireTimeP50Micros() { return getAcquireTimePercentileMicros(50.0); }
+
+    public double getAcquireTimeP99Micros() { return getAcquireTimePercentileMicros(99.0); }
+
+    public double getAcquireTimePercentileMicros(double percentile) {
+        return acquireTimes.getPercentile(percentile) / NANOS_PER_MICRO;
+    }
+
+    public double getHoldTimeMeanMillis() { return holdTimes.getMean() / NANOS_PER_MILLI; }
+
+    public double getHoldTimeMaxMillis() { return holdTimes.getMax() / NANOS_PER_MILLI; }
+
+    public double getHoldTimeP99Millis() { return holdTimes.getPercentile(99.0) / NANOS_PER_MILLI; }
+
+    public void reset() {
+        acquireTimes.reset();
+        holdTimes.reset();
+        acquireFailures.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionMetrics[unit=" + unitName + ", acquired=" + getAcquireCount() +
+               ", failures=" + getAcquireFailures() + ", active=" + getActiveConnections() +
+               ", idle=" + getIdleConnections() + ", open=" + getOpenConnections() +
+               ", statementCacheHits=" + getStatementCacheHits() + 
+               ", statementCacheMisses=" + getStatementCacheMisses() +
+               ", acquireP99Micros=" + getAcquireTimeP99Micros() + "]";
+    }
+}
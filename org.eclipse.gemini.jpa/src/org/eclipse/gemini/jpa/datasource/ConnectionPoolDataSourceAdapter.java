@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.datasource;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.DataSource;
+import javax.sql.PooledConnection;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+
+/**
+ * A DataSource over a ConnectionPoolDataSource obtained from a DataSourceFactory
+ * service. The physical connections are the driver's own PooledConnections, which
+ * are kept and reused. Closing a connection handed out by this data source just
+ * closes the driver's logical handle, and the driver tells us that the
+ * PooledConnection can be reused (or that it is broken and must be discarded).
+ *
+ * The number of connections in use is bounded by the pool settings. Idle
+ * PooledConnections are closed when they have been idle longer than the idle
+ * timeout or have reached their max lifetime.
+ *
+ * @see DataSourceUtil#acquireDataSource(org.eclipse.gemini.jpa.PUnitInfo, java.util.Map)
+ */
+public class ConnectionPoolDataSourceAdapter implements DataSource, ConnectionEventListener, PoolStatistics, AutoCloseable {
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    ConnectionPoolDataSource cpds;
+    String description;
+    PooledDataSource.Settings settings;
+
+    // PooledConnections that are not in use, most recently used first
+    LinkedBlockingDeque<IdleConnection> idleConnections = new LinkedBlockingDeque<IdleConnection>();
+
+    // PooledConnections that are in use, each holding a permit
+    Set<PooledConnection> inUse = ConcurrentHashMap.newKeySet();
+
+    // When each PooledConnection was created
+    ConcurrentHashMap<PooledConnection,Long> createTimes = new ConcurrentHashMap<PooledConnection,Long>();
+
+    // One permit for each connection that may be in use
+    Semaphore permits;
+
+    // Evictor run by the Gemini executor (null if not started)
+    ScheduledFuture<?> evictor;
+
+    // Set once the data source is closed
+    volatile boolean closed;
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public ConnectionPoolDataSourceAdapter(ConnectionPoolDataSource cpds,
+                                           String description,
+                                           PooledDataSource.Settings settings) {
+        this.cpds = cpds;
+        this.description = description;
+        this.settings = settings;
+        this.permits = new Semaphore(settings.maxSize, true);
+    }
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Start the evictor on the given executor.
+     */
+    public void start(ScheduledExecutorService executor) {
+        long interval = Math.max(PooledDataSource.VALIDATION_INTERVAL,
+                Math.min(PooledDataSource.MAX_EVICTION_INTERVAL,
+                         Math.min(settings.idleTimeout, settings.maxLifetime) / 2));
+        evictor = executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() { evict(); }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        debug("ConnectionPoolDataSourceAdapter started for ", description, " ", settings);
+    }
+
+    /**
+     * Close the data source. Idle PooledConnections are closed now,
+     * those in use are closed when their handles are closed.
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (evictor != null) {
+            evictor.cancel(false);
+            evictor = null;
+        }
+        IdleConnection idle;
+        while ((idle = idleConnections.poll()) != null) {
+            closePooled(idle.pc);
+        }
+        debug("ConnectionPoolDataSourceAdapter closed for ", description);
+    }
+
+    public boolean isClosed() { return closed; }
+
+    public int getOpenConnections() { return createTimes.size(); }
+
+    public int getIdleConnections() { return idleConnections.size(); }
+
+    /**
+     * Close the PooledConnections that have been idle too long or have lived too long.
+     */
+    public void evict() {
+        if (closed) return;
+        long now = System.currentTimeMillis();
+        Iterator<IdleConnection> iter = idleConnections.descendingIterator();
+        while (iter.hasNext()) {
+            IdleConnection idle = iter.next();
+            boolean idleTooLong = (now - idle.lastUsed > settings.idleTimeout)
+                                  && (createTimes.size() > settings.minSize);
+            if ((idleTooLong || isExpired(idle.pc, now)) && idleConnections.remove(idle)) {
+                closePooled(idle.pc);
+            }
+        }
+    }
+
+    /*======================*/
+    /* DataSource methods   */
+    /*======================*/
+
+    public Connection getConnection() throws SQLException {
+        if (closed) throw new SQLException("Data source for " + description + " is closed");
+        try {
+            if (!permits.tryAcquire(settings.acquireTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out after " + settings.acquireTimeout +
+                                       " ms waiting for a connection to " + description);
+            }
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection to " + description, iEx);
+        }
+        PooledConnection pc = null;
+        try {
+            pc = borrowIdle();
+            if (pc == null) {
+                pc = cpds.getPooledConnection();
+                createTimes.put(pc, System.currentTimeMillis());
+                inUse.add(pc);
+                pc.addConnectionEventListener(this);
+            } else {
+                inUse.add(pc);
+            }
+            return pc.getConnection();
+        } catch (SQLException sqlEx) {
+            release(pc, true);
+            throw sqlEx;
+        } catch (RuntimeException rtEx) {
+            release(pc, true);
+            throw rtEx;
+        }
+    }
+
+    public Connection getConnection(String user, String password) throws SQLException {
+        // The driver would keep the physical connection open after the handle is closed
+        throw new SQLFeatureNotSupportedException(
+                "Connections for a specific user are not supported by the data source for " + description);
+    }
+
+    public boolean isWrapperFor(Class<?> cls) throws SQLException {
+        return cls.isInstance(cpds);
+    }
+
+    public <T> T unwrap(Class<T> cls) throws SQLException {
+        try {
+            return cls.cast(cpds);
+        } catch (ClassCastException ccEx) {
+            throw new SQLException("Error casting data source class", ccEx);
+        }
+    }
+
+    public PrintWriter getLogWriter() throws SQLException { return cpds.getLogWriter(); }
+
+    public int getLoginTimeout() throws SQLException { return cpds.getLoginTimeout(); }
+
+    public void setLogWriter(PrintWriter writer) throws SQLException { cpds.setLogWriter(writer); }
+
+    public void setLoginTimeout(int timeout) throws SQLException { cpds.setLoginTimeout(timeout); }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return cpds.getParentLogger();
+    }
+
+    /*===================================*/
+    /* ConnectionEventListener methods   */
+    /*===================================*/
+
+    public void connectionClosed(ConnectionEvent event) {
+        release((PooledConnection) event.getSource(), false);
+    }
+
+    public void connectionErrorOccurred(ConnectionEvent event) {
+        debug("ConnectionPoolDataSourceAdapter discarding connection to ", description,
+              " after error: ", event.getSQLException());
+        release((PooledConnection) event.getSource(), true);
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    // Return a reusable idle PooledConnection, or null if there is none
+    protected PooledConnection borrowIdle() {
+        IdleConnection idle;
+        while ((idle = idleConnections.pollFirst()) != null) {
+            if (!isExpired(idle.pc, System.currentTimeMillis())) {
+                return idle.pc;
+            }
+            closePooled(idle.pc);
+        }
+        return null;
+    }
+
+    // Give back the permit of a PooledConnection that was in use and either
+    // keep it for reuse or close it. A null pc just gives back the permit.
+    protected void release(PooledConnection pc, boolean discard) {
+        if (pc == null) {
+            permits.release();
+            return;
+        }
+        // Only the first event for a PooledConnection that is in use counts
+        if (!inUse.remove(pc)) {
+            if (discard && idleConnections.remove(new IdleConnection(pc)))
+                closePooled(pc);
+            return;
+        }
+        try {
+            if (discard || closed || isExpired(pc, System.currentTimeMillis())) {
+                closePooled(pc);
+            } else {
+                idleConnections.offerFirst(new IdleConnection(pc));
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    protected void closePooled(PooledConnection pc) {
+        createTimes.remove(pc);
+        pc.removeConnectionEventListener(this);
+        try {
+            pc.close();
+        } catch (SQLException sqlEx) {
+            debug("ConnectionPoolDataSourceAdapter error closing connection: ", sqlEx);
+        }
+    }
+
+    protected boolean isExpired(PooledConnection pc, long now) {
+        Long created = createTimes.get(pc);
+        return (created != null) && ((now - created) > settings.maxLifetime);
+    }
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    // An idle PooledConnection and when it was last used
+    static class IdleConnection {
+        PooledConnection pc;
+        long lastUsed = System.currentTimeMillis();
+
+        IdleConnection(PooledConnection pc) { this.pc = pc; }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof IdleConnection) && (((IdleConnection) obj).pc == pc);
+        }
+
+        @Override
+        public int hashCode() { return System.identityHashCode(pc); }
+    }
+}
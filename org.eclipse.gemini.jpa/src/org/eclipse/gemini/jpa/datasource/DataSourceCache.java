@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.datasource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+import org.eclipse.gemini.jpa.PUnitInfo;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+import static org.osgi.service.jdbc.DataSourceFactory.*;
+
+/**
+ * Cache of the data sources created from DataSourceFactory services, so that
+ * the p-units that use the same DSF service to connect to the same database
+ * (driver, version, url, user and password) share one data source, and one
+ * connection pool, instead of each creating its own.
+ *
+ * Each p-unit that gets a data source from the cache is given a lease on it,
+ * which is added to the pooled data sources of the p-unit and released when
+ * those are closed. A p-unit holds at most one lease on a data source, however
+ * many times it gets it (e.g. when pre-filling the pool and then creating the
+ * EMF). The data source is closed when the last lease on it is released, or
+ * when its DSF service goes away.
+ *
+ * The pool and statement cache settings are part of what is shared, so p-units
+ * that ask for different settings get data sources of their own.
+ */
+@SuppressWarnings({"rawtypes"})
+public class DataSourceCache {
+
+    Map<Key,Entry> entries = new HashMap<Key,Entry>();
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Return the cached data source for the key, leased to the given p-unit,
+     * or null if there is none.
+     */
+    public synchronized DataSource acquire(PUnitInfo pUnitInfo, Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        debug("DataSourceCache - sharing data source ", key, " with p-unit ", pUnitInfo.getUnitName());
+        return entry.lease(pUnitInfo);
+    }
+
+    /**
+     * Cache a data source that was created for the key and return it, leased to the
+     * given p-unit. If another p-unit cached one for the same key in the meantime then
+     * the new data source is closed and the cached one is returned instead.
+     */
+    public DataSource put(PUnitInfo pUnitInfo, Key key, DataSource ds) {
+        DataSource duplicate = null;
+        DataSource result;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                debug("DataSourceCache - caching data source ", key, " for p-unit ", pUnitInfo.getUnitName());
+                entry = new Entry(key, ds);
+                entries.put(key, entry);
+            } else {
+                duplicate = ds;
+            }
+            result = entry.lease(pUnitInfo);
+        }
+        close(duplicate);
+        return result;
+    }
+
+    /**
+     * Remove and close the data sources created from the given DSF service.
+     * Called when the service goes offline.
+     */
+    public void evict(ServiceReference dsfRef) {
+        Object serviceId = dsfRef.getProperty(Constants.SERVICE_ID);
+        List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (this) {
+            Iterator<Entry> iter = entries.values().iterator();
+            while (iter.hasNext()) {
+                Entry entry = iter.next();
+                if (entry.key.serviceId.equals(serviceId)) {
+                    iter.remove();
+                    evicted.add(entry);
+                }
+            }
+        }
+        for (Entry entry : evicted) {
+            debug("DataSourceCache - evicting data source ", entry.key);
+            close(entry.ds);
+        }
+    }
+
+    public synchronized int size() { return entries.size(); }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    // Called when a lease is closed
+    protected void release(Entry entry, PUnitInfo pUnitInfo) {
+        synchronized (this) {
+            entry.holders.remove(pUnitInfo);
+            if (!entry.holders.isEmpty() || (entries.get(entry.key) != entry))
+                return;
+            entries.remove(entry.key);
+        }
+        debug("DataSourceCache - closing unused data source ", entry.key);
+        close(entry.ds);
+    }
+
+    protected void close(DataSource ds) {
+        if (ds instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) ds).close();
+            } catch (Exception ex) {
+                warning("Error closing data source: ", ex);
+            }
+        }
+    }
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    /**
+     * What makes data sources shareable: the DSF service that created them,
+     * the database they connect to, how they were created and their pool and
+     * statement cache settings.
+     */
+    public static class Key {
+        Object serviceId;
+        String driverName;
+        String driverVersion;
+        String url;
+        String user;
+        String password;
+        String strategy;
+        boolean pooled;
+        PooledDataSource.Settings settings;
+
+        public Key(ServiceReference dsfRef, String driverName, String driverVersion,
+                   Properties jdbcProps, String strategy, boolean pooled, 
+                   PooledDataSource.Settings settings) {
+            this.serviceId = dsfRef.getProperty(Constants.SERVICE_ID);
+            this.driverName = driverName;
+            this.driverVersion = driverVersion;
+            this.url = jdbcProps.getProperty(JDBC_URL);
+            this.user = jdbcProps.getProperty(JDBC_USER);
+            this.password = jdbcProps.getProperty(JDBC_PASSWORD);
+            this.strategy = strategy;
+            this.pooled = pooled;
+            this.settings = settings;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return serviceId.equals(other.serviceId)
+                && driverName.equals(other.driverName)
+                && Objects.equals(driverVersion, other.driverVersion)
+                && Objects.equals(url, other.url)
+                && Objects.equals(user, other.user)
+                && Objects.equals(password, other.password)
+                && Objects.equals(strategy, other.strategy)
+                && (pooled == other.pooled)
+                && Objects.equals(settings, other.settings);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(serviceId, driverName, driverVersion, url, user, strategy, pooled, settings);
+        }
+
+        // Leave the password out
+        @Override
+        public String toString() {
+            return "DataSourceKey[dsf=" + serviceId + ", driver=" + driverName +
+                   ((driverVersion == null) ? "" : ", version=" + driverVersion) +
+                   ", url=" + url + ", user=" + user + ", strategy=" + strategy +
+                   ", pooled=" + pooled + ", settings=" + settings + "]";
+        }
+    }
+
+    // A cached data source and the p-units that hold a lease on it
+    class Entry {
+        Key key;
+        DataSource ds;
+        Set<PUnitInfo> holders = Collections.newSetFromMap(new IdentityHashMap<PUnitInfo,Boolean>());
+
+        Entry(Key key, DataSource ds) {
+            this.key = key;
+            this.ds = ds;
+        }
+
+        // Called while holding the cache lock
+        DataSource lease(PUnitInfo pUnitInfo) {
+            if (holders.add(pUnitInfo))
+                pUnitInfo.getPooledDataSources().add(new Lease(this, pUnitInfo));
+            return ds;
+        }
+    }
+
+    // A p-unit's hold on a cached data source, released when closed
+    class Lease implements AutoCloseable {
+        Entry entry;
+        PUnitInfo pUnitInfo;
+        AtomicBoolean released = new AtomicBoolean();
+
+        Lease(Entry entry, PUnitInfo pUnitInfo) { 
+            this.entry = entry; 
+            this.pUnitInfo = pUnitInfo;
+        }
+
+        public void close() {
+            if (released.compareAndSet(false, true))
+                release(entry, pUnitInfo);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.datasource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.jdbc.DataSourceFactory;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+
+import org.eclipse.gemini.jpa.PUnitInfo;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+
+/**
+ * Single tracker over all of the DataSourceFactory services, shared by the p-units.
+ *
+ * P-units that are waiting for a DSF to come online are indexed by the driver
+ * class they need, and p-units that are using a DSF are indexed by its service
+ * reference, so a DSF service event is only dispatched to the p-units that it
+ * matches instead of being evaluated against a filter for every p-unit.
+ *
+ * The DSF services that the tracker has seen come online are recorded under
+ * the same lock as the waiting p-units, so a p-unit that starts waiting after
+ * its DSF was added (but after it looked for one and didn't find it) is given
+ * that DSF instead of waiting for an event that has already happened.
+ */
+@SuppressWarnings({"rawtypes","unchecked"})
+public class DataSourceFactoryTracker implements ServiceTrackerCustomizer {
+
+    // The util to notify when a DSF comes or goes
+    DataSourceUtil dataSourceUtil;
+
+    ServiceTracker tracker;
+
+    // P-units waiting for a DSF, keyed by driver class name (guarded by this)
+    Map<String,Set<PUnitInfo>> waitingUnits = new HashMap<String,Set<PUnitInfo>>();
+
+    // P-units using a DSF, keyed by the DSF service (guarded by this)
+    Map<ServiceReference,Set<PUnitInfo>> boundUnits = new HashMap<ServiceReference,Set<PUnitInfo>>();
+
+    // DSF services that have been added and not removed, in the order they came online (guarded by this)
+    Set<ServiceReference> onlineServices = new LinkedHashSet<ServiceReference>();
+
+    public DataSourceFactoryTracker(DataSourceUtil dataSourceUtil) {
+        this.dataSourceUtil = dataSourceUtil;
+    }
+
+    /*================*/
+    /* Public methods */
+    /*================*/
+
+    public void open(BundleContext ctx) {
+        debug("DataSourceFactoryTracker.open");
+        tracker = new ServiceTracker(ctx, DataSourceFactory.class.getName(), this);
+        tracker.open();
+    }
+
+    public void close() {
+        debug("DataSourceFactoryTracker.close");
+        if (tracker != null) {
+            tracker.close();
+            tracker = null;
+        }
+        synchronized (this) {
+            waitingUnits.clear();
+            boundUnits.clear();
+            onlineServices.clear();
+        }
+    }
+
+    /**
+     * Wait for a DSF service that matches the driver of the p-unit to come online.
+     * If a matching DSF came online since the caller last looked for one then the 
+     * p-unit does not wait, and that DSF is returned for the caller to use instead.
+     * 
+     * @return a DSF service that is already online for the p-unit, or null if it is waiting
+     */
+    public synchronized ServiceReference waitFor(PUnitInfo pUnitInfo) {
+        for (ServiceReference ref : onlineServices) {
+            if (matches(ref, pUnitInfo)) {
+                debug("DataSourceFactoryTracker found DSF ", ref, " already online for ", pUnitInfo.getUnitName());
+                return ref;
+            }
+        }
+        debug("DataSourceFactoryTracker waiting for DSF for ", pUnitInfo.getUnitName());
+        String driverName = pUnitInfo.getDriverClassName();
+        Set<PUnitInfo> units = waitingUnits.get(driverName);
+        if (units == null) {
+            units = new LinkedHashSet<PUnitInfo>();
+            waitingUnits.put(driverName, units);
+        }
+        units.add(pUnitInfo);
+        return null;
+    }
+
+    /**
+     * Watch for the DSF service that the p-unit is using to go offline
+     */
+    public synchronized void bind(PUnitInfo pUnitInfo, ServiceReference dsfRef) {
+        debug("DataSourceFactoryTracker watching DSF ", dsfRef, " for ", pUnitInfo.getUnitName());
+        Set<PUnitInfo> units = boundUnits.get(dsfRef);
+        if (units == null) {
+            units = new LinkedHashSet<PUnitInfo>();
+            boundUnits.put(dsfRef, units);
+        }
+        units.add(pUnitInfo);
+    }
+
+    /**
+     * Stop waiting for or watching a DSF for the p-unit.
+     * Return true if the p-unit was being tracked.
+     */
+    public synchronized boolean remove(PUnitInfo pUnitInfo) {
+        boolean removed = removeFrom(waitingUnits, pUnitInfo.getDriverClassName(), pUnitInfo);
+        ServiceReference dsfRef = pUnitInfo.getDsfService();
+        if (dsfRef != null) {
+            removed |= removeFrom(boundUnits, dsfRef, pUnitInfo);
+        } else {
+            // The DSF may already have been cleared from the p-unit, so check every entry
+            for (ServiceReference ref : new ArrayList<ServiceReference>(boundUnits.keySet())) {
+                removed |= removeFrom(boundUnits, ref, pUnitInfo);
+            }
+        }
+        return removed;
+    }
+
+    /*==========================*/
+    /* ServiceTracker callbacks */
+    /*==========================*/
+
+    public Object addingService(ServiceReference ref) {
+        debug("DataSourceFactoryTracker.addingService ", ref);
+        List<PUnitInfo> matching = new ArrayList<PUnitInfo>();
+        synchronized (this) {
+            onlineServices.add(ref);
+            Set<PUnitInfo> units = waitingUnits.get(stringProperty(ref, DataSourceFactory.OSGI_JDBC_DRIVER_CLASS));
+            if (units != null) {
+                for (PUnitInfo pUnitInfo : units) {
+                    if (matches(ref, pUnitInfo))
+                        matching.add(pUnitInfo);
+                }
+                units.removeAll(matching);
+                if (units.isEmpty())
+                    waitingUnits.remove(stringProperty(ref, DataSourceFactory.OSGI_JDBC_DRIVER_CLASS));
+            }
+        }
+        // Call out without holding the lock since the p-units will re-register their services
+        for (PUnitInfo pUnitInfo : matching) {
+            dataSourceUtil.dataSourceFactoryOnline(pUnitInfo, ref);
+        }
+        return ref;
+    }
+
+    public void modifiedService(ServiceReference ref, Object service) {}
+
+    public void removedService(ServiceReference ref, Object service) {
+        debug("DataSourceFactoryTracker.removedService ", ref);
+        Set<PUnitInfo> units;
+        synchronized (this) {
+            onlineServices.remove(ref);
+            units = boundUnits.remove(ref);
+        }
+        if (units != null) {
+            for (PUnitInfo pUnitInfo : units) {
+                dataSourceUtil.dataSourceFactoryOffline(pUnitInfo, ref);
+            }
+        }
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    protected static <K> boolean removeFrom(Map<K,Set<PUnitInfo>> index, K key, PUnitInfo pUnitInfo) {
+        Set<PUnitInfo> units = index.get(key);
+        if ((units == null) || !units.remove(pUnitInfo))
+            return false;
+        if (units.isEmpty())
+            index.remove(key);
+        return true;
+    }
+
+    // Return whether the DSF service is for the driver (and version, if any) of the p-unit
+    protected static boolean matches(ServiceReference ref, PUnitInfo pUnitInfo) {
+        String unitVersion = pUnitInfo.getDriverVersion();
+        return (pUnitInfo.getDriverClassName() != null)
+            && pUnitInfo.getDriverClassName().equals(stringProperty(ref, DataSourceFactory.OSGI_JDBC_DRIVER_CLASS))
+            && ((unitVersion == null) || unitVersion.equals(stringProperty(ref, DataSourceFactory.OSGI_JDBC_DRIVER_VERSION)));
+    }
+
+    protected static String stringProperty(ServiceReference ref, String name) {
+        Object value = ref.getProperty(name);
+        return (value == null) ? null : value.toString();
+    }
+}
@@ -14,15 +14,29 @@
  ******************************************************************************/
 package org.eclipse.gemini.jpa.datasource;
 
+import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.sql.ConnectionPoolDataSource;
 import javax.sql.DataSource;
 
 import org.eclipse.gemini.jpa.GeminiManager;
 import org.eclipse.gemini.jpa.GeminiPersistenceUnitProperties;
+import org.eclipse.gemini.jpa.GeminiSystemProperties;
 import org.eclipse.gemini.jpa.GeminiUtil;
 import org.eclipse.gemini.jpa.PUnitInfo;
 import org.eclipse.persistence.config.PersistenceUnitProperties;
@@ -30,7 +44,6 @@ import org.osgi.framework.BundleContext;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.jdbc.DataSourceFactory;
-import org.osgi.util.tracker.ServiceTracker;
 
 import static org.eclipse.gemini.jpa.GeminiUtil.debug;
 import static org.eclipse.gemini.jpa.GeminiUtil.fatalError;
@@ -46,9 +59,38 @@ public class DataSourceUtil {
     // Pointer back to manager
     GeminiManager mgr;
     
+    // Data sources created from DSF services, shared by the p-units that use the same database
+    DataSourceCache dataSourceCache = new DataSourceCache();
+
+    // Tracker for the DSF services that the p-units are waiting for or using
+    DataSourceFactoryTracker dsfTracker = new DataSourceFactoryTracker(this);
+
+    // Max number of threads (including the caller) opening connections when pre-filling a pool
+    static final int MAX_PREFILL_THREADS = 8;
+
+    // Max time (in seconds) to wait for a pre-filled connection to be validated
+    static final int PREFILL_VALIDATION_TIMEOUT = 5;
+
+    // Default time (ms) before a failed database is checked again
+    static final long DEFAULT_HEALTH_CHECK_INTERVAL = 5000;
+
     public DataSourceUtil(GeminiManager mgr) {
         this.mgr = mgr;
     }
+
+    /** 
+     * Start tracking DataSourceFactory services on behalf of the p-units
+     */
+    public void startTrackingDataSourceFactories() {
+        dsfTracker.open(mgr.getBundleContext());
+    }
+
+    /** 
+     * Stop tracking DataSourceFactory services
+     */
+    public void stopTrackingDataSourceFactories() {
+        dsfTracker.close();
+    }
     
     /**
      * This method is used to get a data source for an EMF when an EMF is about to be created
@@ -70,10 +112,17 @@ public class DataSourceUtil {
      *     3) A special property may be specified to indicate that the provider will obtain the 
      *        data source on its own using its own properties
      *     4) A data source factory may have already been found and is being tracked, from which 
-     *        we can obtain a data source
+     *        we can obtain a data source (or a driver, depending on the data source strategy)
      *     5) Try looking up the DSF to see if it appears after it potentially already disappeared 
+     *        (a data source obtained from a DSF in 4 or 5 is shared by p-units that use the same 
+     *        DSF and database, see DataSourceCache)
      *     6) Try to load the driver from the persistence unit bundle
      * 
+     * If failover URLs are specified then a data source is obtained in the same way for each 
+     * failover database, and a FailoverDataSource over the primary and failover databases is used.
+     * If read replica URLs are specified then a data source is obtained in the same way for 
+     * each replica, and a ReplicaRoutingDataSource over the primary and replicas is returned.
+     * 
      * Return null if we did not obtain it, but are expecting it to be obtained by the provider.
      * Throw an exception if we tried to obtain it but did not succeed for other reasons. 
      */
@@ -84,7 +133,7 @@ public class DataSourceUtil {
         // See if we have a data source instead of JDBC props
         DataSource ds = checkForNonJtaDataSource(pUnitInfo, properties);
         if (ds != null) { 
-            return ds;
+            return meter(pUnitInfo, ds);
         }
         
         // Support the case of a provider-connected data source. In this case the provider
@@ -94,7 +143,81 @@ public class DataSourceUtil {
             return null;
         }
         
+        ds = meter(pUnitInfo, failoverDataSource(pUnitInfo, properties));
+
+        // Route reads to the replicas if the p-unit has any
+        String readUrls = unitProperty(pUnitInfo, properties, GeminiPersistenceUnitProperties.JDBC_READ_URLS, null);
+        if ((readUrls == null) || (readUrls.length() == 0)) {
+            return ds;
+        }
+        List<String> urls = new ArrayList<String>();
+        List<DataSource> replicas = new ArrayList<DataSource>();
+        for (String readUrl : readUrls.split(",")) {
+            readUrl = readUrl.trim();
+            if (readUrl.length() > 0) {
+                Map<Object,Object> replicaProps = new HashMap<Object,Object>(properties);
+                replicaProps.put(GeminiUtil.JPA_JDBC_URL_PROPERTY, readUrl);
+                urls.add(readUrl);
+                replicas.add(meter(pUnitInfo, jdbcDataSource(pUnitInfo, replicaProps)));
+            }
+        }
+        if (replicas.isEmpty()) {
+            return ds;
+        }
+        String routing = unitProperty(pUnitInfo, properties, GeminiPersistenceUnitProperties.JDBC_READ_ROUTING, 
+                GeminiPersistenceUnitProperties.READ_ROUTING_ROUND_ROBIN);
+        debug("DataSourceUtil - routing reads to ", replicas.size(), " replicas (", routing, ") for p-unit ", 
+              pUnitInfo.getUnitName());
+        long interval = longProperty(pUnitInfo, properties, 
+                GeminiPersistenceUnitProperties.JDBC_HEALTH_CHECK_INTERVAL, DEFAULT_HEALTH_CHECK_INTERVAL);
+        return new ReplicaRoutingDataSource(ds, urls, replicas, 
+                GeminiPersistenceUnitProperties.READ_ROUTING_LEAST_BUSY.equals(routing), interval);
+    }
+
+    /*
+     * Return a data source for the JDBC properties of the p-unit that fails over to 
+     * the databases at the failover urls, or just the data source if there are none
+     */
+    protected DataSource failoverDataSource(PUnitInfo pUnitInfo, Map<?,?> properties) {
+
+        DataSource ds = jdbcDataSource(pUnitInfo, properties);
+        String failoverUrls = unitProperty(pUnitInfo, properties, GeminiPersistenceUnitProperties.JDBC_FAILOVER_URLS, null);
+        if ((failoverUrls == null) || (failoverUrls.trim().length() == 0)) {
+            return ds;
+        }
+        List<String> urls = new ArrayList<String>();
+        List<DataSource> sources = new ArrayList<DataSource>();
+        urls.add(getJdbcProperties(pUnitInfo, properties).getProperty(JDBC_URL));
+        sources.add(ds);
+        for (String failoverUrl : failoverUrls.split(",")) {
+            failoverUrl = failoverUrl.trim();
+            if (failoverUrl.length() > 0) {
+                Map<Object,Object> failoverProps = new HashMap<Object,Object>(properties);
+                failoverProps.put(GeminiUtil.JPA_JDBC_URL_PROPERTY, failoverUrl);
+                urls.add(failoverUrl);
+                sources.add(jdbcDataSource(pUnitInfo, failoverProps));
+            }
+        }
+        if (sources.size() == 1) {
+            return ds;
+        }
+        long interval = longProperty(pUnitInfo, properties, 
+                GeminiPersistenceUnitProperties.JDBC_HEALTH_CHECK_INTERVAL, DEFAULT_HEALTH_CHECK_INTERVAL);
+        FailoverDataSource failover = new FailoverDataSource(urls, sources, interval);
+        failover.start(mgr.getExecutor());
+        pUnitInfo.getPooledDataSources().add(failover);
+        debug("DataSourceUtil - failing over between ", urls, " for p-unit ", pUnitInfo.getUnitName());
+        return failover;
+    }
+
+    /*
+     * Return a data source for the JDBC properties of the p-unit, that were specified 
+     * in the descriptor or config, or passed in the properties
+     */
+    protected DataSource jdbcDataSource(PUnitInfo pUnitInfo, Map<?,?> properties) {
+
         // Go through the JDBC properties to get the driver/data source
+        DataSource ds = null;
         Driver driver = null;
         
         // Sort out which named driver we are dealing with
@@ -112,34 +235,53 @@ public class DataSourceUtil {
             }
         }
 
+        Properties props = getJdbcProperties(pUnitInfo, properties);
+        boolean pooled = Boolean.parseBoolean(
+                unitProperty(pUnitInfo, properties, GeminiPersistenceUnitProperties.CONNECTION_POOL, "false"));
+        String strategy = unitProperty(pUnitInfo, properties, 
+                GeminiPersistenceUnitProperties.DATA_SOURCE_STRATEGY,
+                GeminiPersistenceUnitProperties.DATA_SOURCE_STRATEGY_DRIVER);
+
         // Try using a DSF service if we have one stored away and the one asked for is the same
         ServiceReference dsfRef = pUnitInfo.getDsfService();
         if ((dsfRef != null) && (specifiesSameDriver(driverName, driverVersion, pUnitInfo))) {
             debug("DataSourceUtil - Using existing DSF service ref from punit ", pUnitInfo.getUnitName());
-            DataSourceFactory dsf = (DataSourceFactory) mgr.getBundleContext().getService(dsfRef);
-            try {
-                // There is no standard way of getting JDBC properties from JPA props
-                // (apart from the url/user/pw that are converted using getJdbcProperties)
-                driver = dsf.createDriver(null);
-            } catch (SQLException sqlEx) {
-                // Service was registered but seems to be busted
-                fatalError("Could not create data source for " + driverName, sqlEx);
-            }
-        }
-        // If we still have no driver then try doing a dynamic lookup
-        if (driver == null) {
+        } else {
+            // Otherwise try doing a dynamic lookup
+            dsfRef = null;
             debug("Trying dynamic lookup of DSF for ", driverName, " for p-unit ", pUnitInfo.getUnitName());
             String filter = filterForDSFLookup(driverName, driverVersion);
             ServiceReference[] dsfRefs = lookupDSF(pUnitInfo.getBundle().getBundleContext(), filter);
             if (dsfRefs != null) {
                 debug("DataSourceUtil - Found DSF, props: ", GeminiUtil.serviceProperties(dsfRefs[0]));
-                DataSourceFactory dsf = (DataSourceFactory) mgr.getBundleContext().getService(dsfRefs[0]);
-                try {
-                    // Just get the vanilla driver and we'll wrap it later with a DS
-                    driver = dsf.createDriver(null);
-                } catch (SQLException sqlEx) {
-                    fatalError("Could not create data source for " + driverName, sqlEx);
+                dsfRef = dsfRefs[0];
+            }
+        }
+        if (dsfRef != null) {
+            // Share the data source of another p-unit that uses the same DSF and database
+            DataSourceCache.Key key = new DataSourceCache.Key(dsfRef, driverName, driverVersion, props, strategy, pooled,
+                                                              poolSettings(pUnitInfo, properties));
+            ds = dataSourceCache.acquire(pUnitInfo, key);
+            if (ds != null) {
+                return ds;
+            }
+            DataSourceFactory dsf = (DataSourceFactory) mgr.getBundleContext().getService(dsfRef);
+            if (dsf != null) {
+                // Ask the DSF for a data source if the p-unit wants one
+                ds = dataSourceFromFactory(pUnitInfo, properties, dsf, props, strategy, pooled);
+                if (ds == null) {
+                    try {
+                        // There is no standard way of getting JDBC properties from JPA props
+                        // (apart from the url/user/pw that are converted using getJdbcProperties)
+                        // so just get the vanilla driver and wrap it with a DS
+                        driver = dsf.createDriver(null);
+                    } catch (SQLException sqlEx) {
+                        // Service was registered but seems to be busted
+                        fatalError("Could not create data source for " + driverName, sqlEx);
+                    }
+                    ds = driverDataSource(pUnitInfo, properties, driver, props, pooled);
                 }
+                return dataSourceCache.put(pUnitInfo, key, ds);
             }
         }
         // Finally, try loading it locally
@@ -153,9 +295,282 @@ public class DataSourceUtil {
                 fatalError("Could not create data source for " + driverName, ex);
             }
         }
-        Properties props = getJdbcProperties(pUnitInfo, properties);
-        
-        return new PlainDriverDataSource(driver, props);
+
+        ds = driverDataSource(pUnitInfo, properties, driver, props, pooled);
+        if (ds instanceof AutoCloseable) {
+            pUnitInfo.getPooledDataSources().add((AutoCloseable) ds);
+        }
+        return ds;
+    }
+
+    /**
+     * Close the connection pools created for the given p-unit
+     */
+    public void closePooledDataSources(PUnitInfo pUnitInfo) {
+        for (AutoCloseable pool : pUnitInfo.getPooledDataSources()) {
+            try {
+                pool.close();
+            } catch (Exception ex) {
+                warning("Error closing connection pool for p-unit " + pUnitInfo.getUnitName() + ": ", ex);
+            }
+        }
+        pUnitInfo.getPooledDataSources().clear();
+        if (pUnitInfo.getConnectionMetrics() != null) {
+            pUnitInfo.getConnectionMetrics().clearPools();
+        }
+    }
+
+    /**
+     * Open connections to the database of the p-unit in parallel, validate them, then 
+     * return them to the connection pool of the p-unit so they are idle in the pool 
+     * when the EMF is created. The pool is shared through the DataSourceCache, so the 
+     * EMF gets the same pool (a p-unit holds a single lease on a cached data source, 
+     * however many times it gets it). Only done when the p-unit pools the connections 
+     * of its DSF. The connections are opened on the Gemini executor and on the calling 
+     * thread, which opens any that no worker has picked up, so pre-filling on a 
+     * worker thread can't be starved by its own tasks.
+     * 
+     * @return the outcome, or null if the p-unit has nothing to pre-fill
+     */
+    public PrefillResult prefillConnections(PUnitInfo pUnitInfo) {
+
+        Map<?,?> noProperties = Collections.emptyMap();
+        int count = (int) longProperty(pUnitInfo, noProperties, 
+                GeminiPersistenceUnitProperties.CONNECTION_POOL_PREFILL, 0);
+        boolean pooled = Boolean.parseBoolean(
+                unitProperty(pUnitInfo, noProperties, GeminiPersistenceUnitProperties.CONNECTION_POOL, "false"))
+            || GeminiPersistenceUnitProperties.DATA_SOURCE_STRATEGY_CONNECTION_POOL_DATA_SOURCE.equals(
+                unitProperty(pUnitInfo, noProperties, GeminiPersistenceUnitProperties.DATA_SOURCE_STRATEGY, null));
+        if ((count <= 0) || !pooled || (pUnitInfo.getDsfService() == null)) 
+            return null;
+        PooledDataSource.Settings settings = poolSettings(pUnitInfo, noProperties);
+        count = Math.min(count, settings.maxSize);
+        debug("DataSourceUtil.prefillConnections - opening ", count, " connections for p-unit ", pUnitInfo.getUnitName());
+
+        PrefillResult result = new PrefillResult();
+        result.requested = count;
+        long start = System.nanoTime();
+        List<Connection> connections = new ArrayList<Connection>();
+        try {
+            final DataSource ds = jdbcDataSource(pUnitInfo, noProperties);
+            final String validationQuery = settings.validationQuery;
+            List<FutureTask<Connection>> opened = new ArrayList<FutureTask<Connection>>();
+            final Queue<FutureTask<Connection>> toOpen = new ConcurrentLinkedQueue<FutureTask<Connection>>();
+            for (int i = 0; i < count; i++) {
+                FutureTask<Connection> task = new FutureTask<Connection>(new Callable<Connection>() {
+                    public Connection call() throws SQLException {
+                        return openValidConnection(ds, validationQuery);
+                    }
+                });
+                opened.add(task);
+                toOpen.add(task);
+            }
+            Runnable opener = new Runnable() {
+                public void run() {
+                    FutureTask<Connection> task;
+                    while ((task = toOpen.poll()) != null) 
+                        task.run();
+                }
+            };
+            try {
+                for (int i = 1; i < Math.min(count, MAX_PREFILL_THREADS); i++) 
+                    mgr.getExecutor().execute(opener);
+            } catch (RejectedExecutionException reEx) {
+                // Executor is shutting down, open the rest on this thread
+            }
+            opener.run();
+            // Keep every connection until all are open so that none of them is handed out twice
+            for (FutureTask<Connection> task : opened) {
+                try {
+                    connections.add(task.get());
+                    result.validated++;
+                } catch (ExecutionException exEx) {
+                    result.failure = exEx.getCause();
+                }
+            }
+        } catch (Exception ex) {
+            result.failure = ex;
+        } finally {
+            // Closing the connections parks them in the pool
+            for (Connection conn : connections) {
+                try { conn.close(); } catch (SQLException sqlEx) {}
+            }
+        }
+        result.elapsedMillis = (System.nanoTime() - start) / 1000000;
+        debug("DataSourceUtil.prefillConnections - ", result, " for p-unit ", pUnitInfo.getUnitName());
+        if (result.failure != null) 
+            warning("Could not pre-fill all of the connections for p-unit " + pUnitInfo.getUnitName() + ": ", 
+                    result.failure);
+        return result;
+    }
+
+    /*
+     * Return a data source that records the connection metrics of the p-unit, 
+     * or the data source itself if the p-unit does not have metrics
+     */
+    protected DataSource meter(PUnitInfo pUnitInfo, DataSource ds) {
+        ConnectionMetrics metrics = pUnitInfo.getConnectionMetrics();
+        return (metrics == null) ? ds : new MeteredDataSource(ds, metrics);
+    }
+
+    /*
+     * Return a data source that gets its connections from the driver, 
+     * pooled if the p-unit asks for it
+     */
+    protected DataSource driverDataSource(PUnitInfo pUnitInfo, Map<?,?> properties, 
+                                          Driver driver, Properties props, boolean pooled) {
+        if (!pooled) 
+            return cacheStatements(pUnitInfo, properties, new PlainDriverDataSource(driver, props));
+        PooledDataSource pool = new PooledDataSource(driver, props, poolSettings(pUnitInfo, properties));
+        pool.start(mgr.getExecutor());
+        debug("DataSourceUtil - created connection pool for p-unit ", pUnitInfo.getUnitName());
+        return pool;
+    }
+
+    /*
+     * Return a data source created by the DSF, according to the data source strategy 
+     * of the p-unit. Return null if the p-unit wants a driver or if the DSF can not 
+     * create the data source, in which case the caller falls back to the driver.
+     */
+    protected DataSource dataSourceFromFactory(PUnitInfo pUnitInfo, Map<?,?> properties, DataSourceFactory dsf,
+                                               Properties props, String strategy, boolean pooled) {
+        String url = props.getProperty(JDBC_URL);
+        try {
+            if (GeminiPersistenceUnitProperties.DATA_SOURCE_STRATEGY_DATA_SOURCE.equals(strategy)) {
+                DataSource ds = dsf.createDataSource((Properties) props.clone());
+                debug("DataSourceUtil - created DSF data source for p-unit ", pUnitInfo.getUnitName());
+                if (!pooled) 
+                    return cacheStatements(pUnitInfo, properties, ds);
+                PooledDataSource pool = new PooledDataSource(ds, props, poolSettings(pUnitInfo, properties));
+                pool.start(mgr.getExecutor());
+                return pool;
+            } 
+            if (GeminiPersistenceUnitProperties.DATA_SOURCE_STRATEGY_CONNECTION_POOL_DATA_SOURCE.equals(strategy)) {
+                PooledDataSource.Settings settings = poolSettings(pUnitInfo, properties);
+                ConnectionPoolDataSource cpds = null;
+                if (pooled || (settings.statementCacheSize > 0)) {
+                    // Let the driver pool connections and statements as well, if it 
+                    // supports the standard pool properties. Statements are cached by the 
+                    // driver since the connections we get from its PooledConnections change.
+                    Properties poolProps = (Properties) props.clone();
+                    if (pooled) {
+                        poolProps.put(JDBC_MIN_POOL_SIZE, String.valueOf(settings.minSize));
+                        poolProps.put(JDBC_INITIAL_POOL_SIZE, String.valueOf(settings.minSize));
+                        poolProps.put(JDBC_MAX_POOL_SIZE, String.valueOf(settings.maxSize));
+                        poolProps.put(JDBC_MAX_IDLE_TIME, String.valueOf(settings.idleTimeout / 1000));
+                    }
+                    if (settings.statementCacheSize > 0)
+                        poolProps.put(JDBC_MAX_STATEMENTS, String.valueOf(settings.statementCacheSize));
+                    try {
+                        cpds = dsf.createConnectionPoolDataSource(poolProps);
+                    } catch (SQLException sqlEx) {
+                        debug("DataSourceUtil - DSF does not take pool properties: ", sqlEx);
+                    }
+                }
+                if (cpds == null)
+                    cpds = dsf.createConnectionPoolDataSource((Properties) props.clone());
+                ConnectionPoolDataSourceAdapter adapter = new ConnectionPoolDataSourceAdapter(cpds, url, settings);
+                adapter.start(mgr.getExecutor());
+                debug("DataSourceUtil - created DSF connection pool data source for p-unit ", pUnitInfo.getUnitName());
+                return adapter;
+            }
+            if (!GeminiPersistenceUnitProperties.DATA_SOURCE_STRATEGY_DRIVER.equals(strategy)) {
+                warning("Unknown data source strategy " + strategy + " for p-unit " + pUnitInfo.getUnitName() + 
+                        " - using driver");
+            }
+        } catch (SQLException sqlEx) {
+            warning("DataSourceFactory could not create " + strategy + " for p-unit " + 
+                    pUnitInfo.getUnitName() + " - using driver: ", sqlEx);
+        } catch (RuntimeException rtEx) {
+            // Some DSF implementations throw UnsupportedOperationException for what they don't support
+            warning("DataSourceFactory could not create " + strategy + " for p-unit " + 
+                    pUnitInfo.getUnitName() + " - using driver: ", rtEx);
+        }
+        return null;
+    }
+
+    /*
+     * Return the value of a Gemini p-unit property. A property passed in at 
+     * EMF creation overrides one in the config or in the persistence descriptor.
+     */
+    protected String unitProperty(PUnitInfo pUnitInfo, Map<?,?> properties, String name, String defaultValue) {
+        Object value = properties.get(name);
+        return (value != null) 
+            ? value.toString().trim()
+            : pUnitInfo.getUnitProperty(name, defaultValue);
+    }
+
+    /*
+     * Return a connection from the data source once it has been checked to be usable
+     */
+    protected Connection openValidConnection(DataSource ds, String validationQuery) throws SQLException {
+        Connection conn = ds.getConnection();
+        try {
+            if (validationQuery == null) {
+                if (!conn.isValid(PREFILL_VALIDATION_TIMEOUT))
+                    throw new SQLException("Connection failed validation");
+            } else {
+                Statement stmt = conn.createStatement();
+                try {
+                    stmt.setQueryTimeout(PREFILL_VALIDATION_TIMEOUT);
+                    stmt.execute(validationQuery);
+                } finally {
+                    stmt.close();
+                }
+            }
+            return conn;
+        } catch (SQLException sqlEx) {
+            try { conn.close(); } catch (SQLException closeEx) {}
+            throw sqlEx;
+        }
+    }
+
+    /*
+     * Return the connection pool settings specified for the p-unit
+     */
+    protected PooledDataSource.Settings poolSettings(PUnitInfo pUnitInfo, Map<?,?> properties) {
+        PooledDataSource.Settings settings = new PooledDataSource.Settings();
+        settings.minSize = (int) longProperty(pUnitInfo, properties, 
+                GeminiPersistenceUnitProperties.CONNECTION_POOL_MIN_SIZE, settings.minSize);
+        settings.maxSize = (int) Math.max(1, longProperty(pUnitInfo, properties, 
+                GeminiPersistenceUnitProperties.CONNECTION_POOL_MAX_SIZE, settings.maxSize));
+        settings.minSize = Math.min(settings.minSize, settings.maxSize);
+        settings.acquireTimeout = longProperty(pUnitInfo, properties, 
+                GeminiPersistenceUnitProperties.CONNECTION_POOL_ACQUIRE_TIMEOUT, settings.acquireTimeout);
+        settings.idleTimeout = longProperty(pUnitInfo, properties, 
+                GeminiPersistenceUnitProperties.CONNECTION_POOL_IDLE_TIMEOUT, settings.idleTimeout);
+        settings.maxLifetime = longProperty(pUnitInfo, properties, 
+                GeminiPersistenceUnitProperties.CONNECTION_POOL_MAX_LIFETIME, settings.maxLifetime);
+        settings.validationQuery = unitProperty(pUnitInfo, properties, 
+                GeminiPersistenceUnitProperties.CONNECTION_POOL_VALIDATION_QUERY, null);
+        settings.statementCacheSize = (int) Math.max(0, longProperty(pUnitInfo, properties, 
+                GeminiPersistenceUnitProperties.STATEMENT_CACHE_SIZE, settings.statementCacheSize));
+        return settings;
+    }
+
+    /*
+     * Return a data source that caches the statements of the connections of the 
+     * given unpooled data source, or the data source itself if the p-unit does 
+     * not ask for statements to be cached.
+     */
+    protected DataSource cacheStatements(PUnitInfo pUnitInfo, Map<?,?> properties, DataSource ds) {
+        int cacheSize = (int) longProperty(pUnitInfo, properties, 
+                GeminiPersistenceUnitProperties.STATEMENT_CACHE_SIZE, 0);
+        return (cacheSize > 0) 
+            ? new StatementCachingDataSource(ds, new StatementCache(cacheSize))
+            : ds;
+    }
+
+    protected long longProperty(PUnitInfo pUnitInfo, Map<?,?> properties, String name, long defaultValue) {
+        String value = unitProperty(pUnitInfo, properties, name, null);
+        if (value == null) 
+            return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException nfEx) {
+            warning("Invalid value for " + name + ": ", value);
+            return defaultValue;
+        }
     }
 
     /* 
@@ -185,7 +600,7 @@ public class DataSourceUtil {
         // If we have a lookup string then do the lookup in JNDI to get the DS
         if (nonJtaDS != null) {
             debug("DataSourceUtil.checkForNonJtaDataSource - looking up data source ", nonJtaDS, " in JNDI");
-            DataSource jndiDS = mgr.getJndiUtil().lookupDataSource(nonJtaDS);
+            DataSource jndiDS = mgr.getJndiUtil().lookupDataSource(pUnitInfo.getBundle(), nonJtaDS);
             pUnitInfo.setJndiDataSource(jndiDS);
             return jndiDS;
         }
@@ -251,13 +666,13 @@ public class DataSourceUtil {
     
     /** 
      * Look up the data source factory service for the specified
-     * persistence unit and start a data source factory tracker. 
-     * One of two trackers will be created:
+     * persistence unit and start tracking the data source factory for it. 
+     * The p-unit is tracked in one of two ways:
      * 
-     * a) If the DSF was registered then start a tracker to track when it goes away
+     * a) If the DSF was registered then track when it goes away
      * so that we can remove the dependent EMF service
      * 
-     * b) If the DSF was not registered then start a tracker to detect when it comes online
+     * b) If the DSF was not registered then wait for one to come online
      * 
      * @param pUnitInfo The metadata for this p-unit
      * @return true if the data source factory service was registered, false if it wasn't
@@ -265,55 +680,44 @@ public class DataSourceUtil {
     public boolean trackDataSourceFactory(PUnitInfo pUnitInfo) {
         
         debug("ServicesUtil trackDataSourceFactory for p-unit ", pUnitInfo.getUnitName());
-        ServiceReference[] dsfRefs = null;
-        ServiceTracker tracker = null;
+        ServiceReference dsfRef = null;
 
         // See if the data source factory service for the driver is registered
-        try {
-            String filter = filterForDSFLookup(pUnitInfo.getDriverClassName(), pUnitInfo.getDriverVersion());
-            dsfRefs = lookupDSF(pUnitInfo.getBundle().getBundleContext(), filter);
-            if (dsfRefs != null) {
-                // We found at least one -- track the first one
-                // *** Note: Race condition still exists where service could disappear before being tracked
-                ServiceReference dsfRef = dsfRefs[0];
-                debug("ServicesUtil starting tracker on existing DSF for ", pUnitInfo.getUnitName());
-                tracker = new ServiceTracker(mgr.getBundleContext(), 
-                                             dsfRef,
-                                             new DSFOfflineTracker(pUnitInfo, this));
-                pUnitInfo.setDsfService(dsfRef);
-                debug("DSF service props: ", GeminiUtil.serviceProperties(dsfRef));
-            } else {
-                // No service was found, track for a service that may come in the future 
-                debug("ServicesUtil starting tracker to wait for DSF for ", pUnitInfo.getUnitName());
-                tracker = new ServiceTracker(mgr.getBundleContext(), 
-                                             mgr.getBundleContext().createFilter(filter),
-                                             new DSFOnlineTracker(pUnitInfo, this));
-            }
-        } catch (Exception ex) {
-            fatalError("Unexpected failure creating DSF service tracker", ex);
+        String filter = filterForDSFLookup(pUnitInfo.getDriverClassName(), pUnitInfo.getDriverVersion());
+        ServiceReference[] dsfRefs = lookupDSF(pUnitInfo.getBundle().getBundleContext(), filter);
+        if (dsfRefs != null) {
+            // We found at least one -- track the first one
+            // *** Note: Race condition still exists where service could disappear before being tracked
+            dsfRef = dsfRefs[0];
+            debug("ServicesUtil tracking existing DSF for ", pUnitInfo.getUnitName());
+        } else {
+            // No service was found, wait for a service that may come in the future 
+            // (unless one came online since we looked, in which case use it)
+            debug("ServicesUtil waiting for DSF for ", pUnitInfo.getUnitName());
+            dsfRef = dsfTracker.waitFor(pUnitInfo);
         }
-        pUnitInfo.setDsfTracker(tracker);
-        tracker.open();
-        return dsfRefs != null;
+        if (dsfRef != null) {
+            pUnitInfo.setDsfService(dsfRef);
+            dsfTracker.bind(pUnitInfo, dsfRef);
+            debug("DSF service props: ", GeminiUtil.serviceProperties(dsfRef));
+        }
+        return dsfRef != null;
     }
 
     /** 
      * Stop tracking the data source factory for the given p-unit
      */
     public void stopTrackingDataSourceFactory(PUnitInfo pUnitInfo) {
-        // Clean up the tracker
         debug("ServicesUtil stopTrackingDataSourceFactory", 
               " for p-unit ", pUnitInfo.getUnitName());
-        if (pUnitInfo.getDsfTracker() != null) {
-            debug("ServicesUtil stopping tracker for p-unit ", 
+        if (dsfTracker.remove(pUnitInfo)) {
+            debug("ServicesUtil stopped tracking DSF for p-unit ", 
                     pUnitInfo.getUnitName());
-            pUnitInfo.getDsfTracker().close();
-            pUnitInfo.setDsfTracker(null);
         }
     }
 
     /** 
-     * This method will be invoked by the OnlineTracker when a data source factory 
+     * This method will be invoked by the DSF tracker when a data source factory 
      * service comes online. This occurs when the p-unit has been processed before the
      * JDBC service has had a chance to be activated or register its DSF services.
      */
@@ -328,8 +732,15 @@ public class DataSourceUtil {
             // If we already have a DSF service, for some reason, then ignore this one
             if (pUnitInfo.getDsfService() != null) { 
                 warning("DSF service already exists for p-unit " + pUnitInfo.getUnitName() + " - ignoring new DSF service");
+            } else if (GeminiSystemProperties.inPlaceEMFUpdate() && (pUnitInfo.getEmfService() != null)) {
+                // The EMF service is already registered and waiting for a DSF, 
+                // so start using the DSF and tell clients that the service is ready
+                debug("dataSourceFactoryOnline, updating EMF service in place for p-unit ", pUnitInfo.getUnitName());
+                if (trackDataSourceFactory(pUnitInfo)) {
+                    mgr.getServicesUtil().emfServiceReady(pUnitInfo);
+                }
             } else {
-                // We registered a tracker and don't have a DSF service so this one must be of interest to us.
+                // We were waiting and don't have a DSF service so this one must be of interest to us.
                 // Unregister and go through the entire registration process again, assuming we will find this new DSF
                 debug("dataSourceFactoryOnline, unregistering and reregistering EMF services for p-unit ", pUnitInfo.getUnitName());
                 mgr.getServicesUtil().unregisterEMFServices(pUnitInfo);
@@ -339,7 +750,7 @@ public class DataSourceUtil {
     }
 
     /** 
-     * This method will be invoked by the OfflineTracker when the data source factory 
+     * This method will be invoked by the DSF tracker when the data source factory 
      * that we are relying on goes offline. 
      */
     public void dataSourceFactoryOffline(PUnitInfo pUnitInfo, ServiceReference removedRef) {
@@ -355,10 +766,24 @@ public class DataSourceUtil {
                 warning("DataSourceFactory " + removedRef + " went offline but a different DSF was stored in p-unit " + pUnitInfo.getUnitName());
             }
         }
-        // Unregister the EMF service but leave the Builder
-        debug("dataSourceFactoryOffline - unregistering EMF service ", "for p-unit ", pUnitInfo.getUnitName());
         pUnitInfo.setDsfService(null);
-        mgr.getServicesUtil().unregisterEMFService(pUnitInfo);
+        if (GeminiSystemProperties.inPlaceEMFUpdate() && 
+                (pUnitInfo.getEmfService() != null) && (pUnitInfo.getEmf() == null)) {
+            // No EMF depends on the DSF yet, so keep the EMF service and wait for another DSF 
+            debug("dataSourceFactoryOffline - marking EMF service not ready ", "for p-unit ", pUnitInfo.getUnitName());
+            mgr.getServicesUtil().emfServiceNotReady(pUnitInfo);
+            ServiceReference onlineRef = dsfTracker.waitFor(pUnitInfo);
+            if (onlineRef != null) {
+                // Another DSF for the driver is already online, so don't wait for an event that has come and gone
+                dataSourceFactoryOnline(pUnitInfo, onlineRef);
+            }
+        } else {
+            // Unregister the EMF service but leave the Builder
+            debug("dataSourceFactoryOffline - unregistering EMF service ", "for p-unit ", pUnitInfo.getUnitName());
+            mgr.getServicesUtil().unregisterEMFService(pUnitInfo);
+        }
+        // Data sources from the DSF can't be shared any more
+        dataSourceCache.evict(removedRef);
     }
     
     /** 
@@ -388,4 +813,26 @@ public class DataSourceUtil {
             return null; // For the compiler...
         }
     }    
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    /** 
+     * Outcome of pre-filling the connection pool of a p-unit 
+     */
+    public static class PrefillResult {
+        public int requested;
+        public int validated;
+        public long elapsedMillis;
+        public Throwable failure;
+
+        public boolean isComplete() { return (validated == requested) && (failure == null); }
+
+        @Override
+        public String toString() {
+            return "Prefill[validated=" + validated + "/" + requested + 
+                   ", time=" + elapsedMillis + "ms" + ((failure != null) ? ", failure=" + failure : "") + "]";
+        }
+    }
 }
\ No newline at end of file
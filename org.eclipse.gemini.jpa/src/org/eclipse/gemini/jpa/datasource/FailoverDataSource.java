@@ -0,0 +1,338 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.datasource;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+/**
+ * A DataSource over several databases (endpoints) that hold the same data, in
+ * order of preference. Connections are got from the first endpoint that is up.
+ * An endpoint that can't be connected to is marked down and is skipped
+ * until a health check finds that it can be connected to again, so a dead
+ * endpoint does not cost a connect timeout on every request. Only connection
+ * failures (SQLState class 08, or a connection exception) mark an endpoint
+ * down; other failures, such as timing out waiting for a pooled connection,
+ * are thrown to the caller and leave the endpoint as it is.
+ *
+ * Down endpoints are checked in the background, first after the health check
+ * interval, then after a delay that doubles on every failed check (up to
+ * MAX_BACKOFF). If every endpoint is down then the endpoints whose next check
+ * is due are tried by getConnection() itself.
+ *
+ * The endpoint data sources are owned by the p-unit, not by this data source.
+ *
+ * @see org.eclipse.gemini.jpa.GeminiPersistenceUnitProperties#JDBC_FAILOVER_URLS
+ */
+public class FailoverDataSource implements DataSource, PoolStatistics, StatementCacheStatistics, AutoCloseable {
+
+    // Longest time (ms) between two checks of a down endpoint
+    static final long MAX_BACKOFF = 60000;
+
+    // Max time (in seconds) to wait for a connection to be validated by a health check
+    static final int VALIDATION_TIMEOUT = 5;
+
+    List<Endpoint> endpoints = new ArrayList<Endpoint>();
+
+    // Time (ms) between health checks
+    long healthCheckInterval;
+
+    // Health checker run by the Gemini executor (null if not started)
+    ScheduledFuture<?> checker;
+
+    public FailoverDataSource(List<String> urls, List<DataSource> sources, long healthCheckInterval) {
+        this.healthCheckInterval = Math.max(1, healthCheckInterval);
+        for (int i = 0; i < sources.size(); i++)
+            endpoints.add(new Endpoint(urls.get(i), sources.get(i)));
+    }
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Start the health checker on the given executor.
+     */
+    public void start(ScheduledExecutorService executor) {
+        checker = executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() { 
+                // An exception would cancel the checker, so just log it and check again later
+                try {
+                    checkHealth();
+                } catch (RuntimeException rtEx) {
+                    warning("FailoverDataSource - health check failed: ", rtEx);
+                }
+            }
+        }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+        debug("FailoverDataSource started for ", endpoints);
+    }
+
+    /**
+     * Stop the health checker. The endpoint data sources are left open.
+     */
+    public void close() {
+        if (checker != null) {
+            checker.cancel(false);
+            checker = null;
+        }
+        debug("FailoverDataSource closed for ", endpoints);
+    }
+
+    /**
+     * Return the urls of the endpoints that are currently considered to be up
+     */
+    public List<String> getAvailableUrls() {
+        List<String> urls = new ArrayList<String>();
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.up)
+                urls.add(endpoint.url);
+        }
+        return urls;
+    }
+
+    /**
+     * Check the down endpoints that are due to be checked, and mark
+     * the ones that can be connected to as up. An endpoint whose check
+     * fails in any way stays down, and the other endpoints are still
+     * checked (a runtime exception would stop the scheduled checker).
+     */
+    public void checkHealth() {
+        long now = System.currentTimeMillis();
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.up && endpoint.claimCheck(now)) {
+                try {
+                    Connection conn = endpoint.source.getConnection();
+                    try {
+                        if (!conn.isValid(VALIDATION_TIMEOUT))
+                            throw new SQLException("Connection to " + endpoint.url + " failed validation");
+                    } finally {
+                        conn.close();
+                    }
+                    endpoint.markUp();
+                } catch (SQLException sqlEx) {
+                    endpoint.markDown(System.currentTimeMillis(), sqlEx);
+                } catch (RuntimeException rtEx) {
+                    // e.g. a driver that returns a null connection
+                    warning("FailoverDataSource - error checking database " + endpoint.url + ": ", rtEx);
+                    endpoint.markDown(System.currentTimeMillis(), 
+                            new SQLException("Error checking " + endpoint.url, rtEx));
+                }
+            }
+        }
+    }
+
+    /*======================*/
+    /* DataSource methods   */
+    /*======================*/
+
+    public Connection getConnection() throws SQLException {
+        return connect(null, null);
+    }
+
+    public Connection getConnection(String user, String password) throws SQLException {
+        return connect(user, password);
+    }
+
+    public boolean isWrapperFor(Class<?> cls) throws SQLException {
+        return cls.isInstance(primary()) || primary().isWrapperFor(cls);
+    }
+
+    public <T> T unwrap(Class<T> cls) throws SQLException {
+        return cls.isInstance(primary()) ? cls.cast(primary()) : primary().unwrap(cls);
+    }
+
+    public PrintWriter getLogWriter() throws SQLException { return primary().getLogWriter(); }
+
+    public int getLoginTimeout() throws SQLException { return primary().getLoginTimeout(); }
+
+    public void setLogWriter(PrintWriter writer) throws SQLException {
+        for (Endpoint endpoint : endpoints)
+            endpoint.source.setLogWriter(writer);
+    }
+
+    public void setLoginTimeout(int timeout) throws SQLException {
+        for (Endpoint endpoint : endpoints)
+            endpoint.source.setLoginTimeout(timeout);
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return primary().getParentLogger();
+    }
+
+    /*========================*/
+    /* PoolStatistics methods */
+    /*========================*/
+
+    public int getOpenConnections() {
+        int open = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.source instanceof PoolStatistics)
+                open += ((PoolStatistics) endpoint.source).getOpenConnections();
+        }
+        return open;
+    }
+
+    public int getIdleConnections() {
+        int idle = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.source instanceof PoolStatistics)
+                idle += ((PoolStatistics) endpoint.source).getIdleConnections();
+        }
+        return idle;
+    }
+
+    /*==================================*/
+    /* StatementCacheStatistics methods */
+    /*==================================*/
+
+    public long getStatementCacheHits() {
+        long hits = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.source instanceof StatementCacheStatistics)
+                hits += ((StatementCacheStatistics) endpoint.source).getStatementCacheHits();
+        }
+        return hits;
+    }
+
+    public long getStatementCacheMisses() {
+        long misses = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.source instanceof StatementCacheStatistics)
+                misses += ((StatementCacheStatistics) endpoint.source).getStatementCacheMisses();
+        }
+        return misses;
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    protected DataSource primary() { return endpoints.get(0).source; }
+
+    // Return a connection from the first endpoint that is up, or from a down
+    // endpoint that is due to be checked if all of them are down
+    protected Connection connect(String user, String password) throws SQLException {
+        SQLException failure = null;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.up) {
+                try {
+                    return endpoint.connect(user, password);
+                } catch (SQLException sqlEx) {
+                    if (!isConnectFailure(sqlEx))
+                        throw sqlEx;
+                    endpoint.markDown(System.currentTimeMillis(), sqlEx);
+                    failure = sqlEx;
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.up && endpoint.claimCheck(now)) {
+                try {
+                    Connection conn = endpoint.connect(user, password);
+                    endpoint.markUp();
+                    return conn;
+                } catch (SQLException sqlEx) {
+                    if (!isConnectFailure(sqlEx))
+                        throw sqlEx;
+                    endpoint.markDown(System.currentTimeMillis(), sqlEx);
+                    failure = sqlEx;
+                }
+            }
+        }
+        throw new SQLException("No database is available out of " + endpoints, failure);
+    }
+
+    // Return true if the exception, or one that caused it, says that the database could not be reached
+    protected static boolean isConnectFailure(SQLException sqlEx) {
+        for (Throwable t = sqlEx; t != null; t = t.getCause()) {
+            if ((t instanceof SQLTransientConnectionException) || (t instanceof SQLNonTransientConnectionException))
+                return true;
+            if (t instanceof SQLException) {
+                String state = ((SQLException) t).getSQLState();
+                if ((state != null) && state.startsWith("08"))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    // One of the databases, and whether it can be connected to
+    class Endpoint {
+        String url;
+        DataSource source;
+        volatile boolean up = true;
+
+        // Time (ms) before the next check and when the next check is due (only used while down)
+        volatile long backoff;
+        AtomicLong nextCheck = new AtomicLong();
+
+        Endpoint(String url, DataSource source) {
+            this.url = url;
+            this.source = source;
+        }
+
+        Connection connect(String user, String password) throws SQLException {
+            return (user == null) ? source.getConnection() : source.getConnection(user, password);
+        }
+
+        synchronized void markDown(long now, SQLException sqlEx) {
+            if (up) {
+                warning("FailoverDataSource - database " + url + " is down: ", sqlEx);
+                up = false;
+                backoff = healthCheckInterval;
+            } else {
+                backoff = Math.min(MAX_BACKOFF, backoff * 2);
+            }
+            nextCheck.set(now + backoff);
+        }
+
+        synchronized void markUp() {
+            if (!up)
+                debug("FailoverDataSource - database ", url, " is up");
+            up = true;
+            backoff = 0;
+        }
+
+        // Return true if a check is due, in which case no other thread checks until the next one
+        boolean claimCheck(long now) {
+            long due = nextCheck.get();
+            return (due <= now) && nextCheck.compareAndSet(due, now + Math.max(backoff, healthCheckInterval));
+        }
+
+        @Override
+        public String toString() { return url + (up ? "(up)" : "(down)"); }
+    }
+}
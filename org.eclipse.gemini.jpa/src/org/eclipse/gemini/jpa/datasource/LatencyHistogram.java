@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.datasource;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative long values (e.g. nanosecond latencies).
+ *
+ * Like HdrHistogram, values are counted in buckets whose width grows with the
+ * magnitude of the value: each power of two range is split into SUB_BUCKETS
+ * equal buckets, so a value is known to within 1/SUB_BUCKETS (about 6%) of
+ * itself. Recording a value is a few bit operations and an atomic increment.
+ * Reading while values are being recorded gives approximate results.
+ */
+public class LatencyHistogram {
+
+    // Buckets per power of two (must be a power of two)
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Values below SUB_BUCKETS have a bucket each, then SUB_BUCKETS per power of two up to 2^62
+    static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    AtomicLong count = new AtomicLong();
+    AtomicLong sum = new AtomicLong();
+    AtomicLong max = new AtomicLong();
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) break;
+        }
+    }
+
+    public long getCount() { return count.get(); }
+
+    public long getMax() { return max.get(); }
+
+    public double getMean() {
+        long n = count.get();
+        return (n == 0) ? 0.0 : ((double) sum.get()) / n;
+    }
+
+    /**
+     * Return the value below which the given percentage (0-100) of the recorded
+     * values fall, to the precision of the buckets. Return 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long target = (long) Math.ceil((Math.min(100.0, Math.max(0.0, percentile)) / 100.0) * n);
+        if (target < 1) target = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(bucketUpperValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    // Highest value that is counted in the bucket
+    static long bucketUpperValue(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long lower = ((long) (SUB_BUCKETS + subBucket)) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
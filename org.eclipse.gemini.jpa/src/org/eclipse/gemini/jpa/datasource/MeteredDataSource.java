@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.datasource;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * A DataSource that records how long getting a connection from the data source
+ * it wraps takes, how many of its connections are in use and how long they are
+ * held for, in the connection metrics of a p-unit.
+ *
+ * @see ConnectionMetrics
+ */
+public class MeteredDataSource implements DataSource {
+
+    DataSource delegate;
+    ConnectionMetrics metrics;
+
+    public MeteredDataSource(DataSource delegate, ConnectionMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        if (delegate instanceof PoolStatistics)
+            metrics.addPool((PoolStatistics) delegate);
+        if (delegate instanceof StatementCacheStatistics)
+            metrics.addStatementCache((StatementCacheStatistics) delegate);
+    }
+
+    public ConnectionMetrics getMetrics() { return metrics; }
+
+    public DataSource getDelegate() { return delegate; }
+
+    /*======================*/
+    /* DataSource methods   */
+    /*======================*/
+
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return metered(delegate.getConnection(), start);
+        } catch (SQLException sqlEx) {
+            metrics.acquireFailed();
+            throw sqlEx;
+        } catch (RuntimeException rtEx) {
+            metrics.acquireFailed();
+            throw rtEx;
+        }
+    }
+
+    public Connection getConnection(String user, String password) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return metered(delegate.getConnection(user, password), start);
+        } catch (SQLException sqlEx) {
+            metrics.acquireFailed();
+            throw sqlEx;
+        } catch (RuntimeException rtEx) {
+            metrics.acquireFailed();
+            throw rtEx;
+        }
+    }
+
+    public boolean isWrapperFor(Class<?> cls) throws SQLException {
+        return cls.isInstance(delegate) || delegate.isWrapperFor(cls);
+    }
+
+    public <T> T unwrap(Class<T> cls) throws SQLException {
+        return cls.isInstance(delegate) ? cls.cast(delegate) : delegate.unwrap(cls);
+    }
+
+    public PrintWriter getLogWriter() throws SQLException { return delegate.getLogWriter(); }
+
+    public int getLoginTimeout() throws SQLException { return delegate.getLoginTimeout(); }
+
+    public void setLogWriter(PrintWriter writer) throws SQLException { delegate.setLogWriter(writer); }
+
+    public void setLoginTimeout(int timeout) throws SQLException { delegate.setLoginTimeout(timeout); }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return delegate.getParentLogger();
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    protected Connection metered(Connection conn, long start) {
+        long acquired = System.nanoTime();
+        metrics.acquired(acquired - start);
+        return (Connection) Proxy.newProxyInstance(
+                MeteredDataSource.class.getClassLoader(),
+                new Class<?>[] { Connection.class },
+                new MeteredConnection(conn, acquired));
+    }
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    // Handler of the connections handed out, records the hold time when closed
+    class MeteredConnection implements InvocationHandler {
+        Connection conn;
+        long acquired;
+        boolean closed;
+
+        MeteredConnection(Connection conn, long acquired) {
+            this.conn = conn;
+            this.acquired = acquired;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                boolean first;
+                synchronized (this) {
+                    first = !closed;
+                    closed = true;
+                }
+                if (first)
+                    metrics.released(System.nanoTime() - acquired);
+                conn.close();
+                return null;
+            }
+            if (name.equals("hashCode"))
+                return System.identityHashCode(proxy);
+            if (name.equals("equals"))
+                return proxy == args[0];
+            try {
+                return method.invoke(conn, args);
+            } catch (InvocationTargetException itEx) {
+                throw itEx.getCause();
+            }
+        }
+    }
+}
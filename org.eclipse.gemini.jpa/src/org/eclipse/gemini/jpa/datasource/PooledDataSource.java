@@ -0,0 +1,568 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.datasource;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+import static org.osgi.service.jdbc.DataSourceFactory.*;
+
+/**
+ * A DataSource that pools the connections it gets from a JDBC driver (or from a
+ * DataSource obtained from a DataSourceFactory service), so that getting a
+ * connection does not mean a new physical (TCP/auth) connection to the database
+ * each time.
+ *
+ * Connections handed out are proxies that return the physical connection to
+ * the pool when closed. The state of a returned connection (auto-commit, read-only,
+ * transaction isolation, catalog, schema and holdability) is put back to what it
+ * was when the connection was opened, or the connection is discarded if it can't be. Idle connections are validated before being reused if
+ * they have been idle for a while, and are closed by the evictor when they have
+ * been idle for longer than the idle timeout or have reached their max lifetime.
+ *
+ * If the settings ask for it, the statements prepared on each physical connection
+ * are cached for as long as the connection is open.
+ *
+ * Connections asked for with a specific user and password are not pooled.
+ *
+ * @see DataSourceUtil#acquireDataSource(org.eclipse.gemini.jpa.PUnitInfo, java.util.Map)
+ */
+public class PooledDataSource implements DataSource, PoolStatistics, StatementCacheStatistics, AutoCloseable {
+
+    /*==================*/
+    /* Static constants */
+    /*==================*/
+
+    // Idle connections are only validated if they have been idle for longer than this (ms)
+    public static final long VALIDATION_INTERVAL = 1000;
+
+    // Max time (in seconds) to wait for a connection to be validated
+    public static final int VALIDATION_TIMEOUT = 5;
+
+    // Longest time (ms) between evictor runs
+    public static final long MAX_EVICTION_INTERVAL = 30000;
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    Driver driver;
+    // Data source that physical connections are got from instead of the driver
+    DataSource source;
+    Properties properties;
+    String url;
+    Settings settings;
+
+    // Caches the statements of the physical connections (null if not caching)
+    StatementCache statementCache;
+
+    // Pooled connections that are not in use, most recently used first
+    LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<PooledConnection>();
+
+    // One permit for each connection that may be in use (or being created)
+    Semaphore permits;
+
+    // Number of physical connections that are open
+    AtomicInteger openConnections = new AtomicInteger();
+
+    // Evictor run by the Gemini executor (null if not started)
+    ScheduledFuture<?> evictor;
+
+    // Set once the pool is closed
+    volatile boolean closed;
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public PooledDataSource(Driver driver, Properties properties, Settings settings) {
+        this.driver = driver;
+        this.properties = (Properties) properties.clone();
+        this.url = properties.getProperty(JDBC_URL);
+        this.settings = settings;
+        this.permits = new Semaphore(settings.maxSize, true);
+        if (settings.statementCacheSize > 0)
+            this.statementCache = new StatementCache(settings.statementCacheSize);
+    }
+
+    public PooledDataSource(DataSource source, Properties properties, Settings settings) {
+        this((Driver) null, properties, settings);
+        this.source = source;
+    }
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Start the evictor on the given executor.
+     */
+    public void start(ScheduledExecutorService executor) {
+        long interval = Math.max(VALIDATION_INTERVAL,
+                Math.min(MAX_EVICTION_INTERVAL, Math.min(settings.idleTimeout, settings.maxLifetime) / 2));
+        evictor = executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() { evict(); }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        debug("PooledDataSource started for ", url, " ", settings);
+    }
+
+    /**
+     * Close the pool. Idle connections are closed now, connections
+     * in use are closed when they are returned.
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (evictor != null) {
+            evictor.cancel(false);
+            evictor = null;
+        }
+        PooledConnection pc;
+        while ((pc = idleConnections.poll()) != null) {
+            closePhysical(pc);
+        }
+        debug("PooledDataSource closed for ", url);
+    }
+
+    public boolean isClosed() { return closed; }
+
+    public int getOpenConnections() { return openConnections.get(); }
+
+    public int getIdleConnections() { return idleConnections.size(); }
+
+    public Settings getSettings() { return settings; }
+
+    public StatementCache getStatementCache() { return statementCache; }
+
+    public long getStatementCacheHits() { return (statementCache == null) ? 0 : statementCache.getHits(); }
+
+    public long getStatementCacheMisses() { return (statementCache == null) ? 0 : statementCache.getMisses(); }
+
+    /**
+     * Close connections that have been idle too long or have lived too long,
+     * then open connections until there are at least the min number.
+     */
+    public void evict() {
+        if (closed) return;
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> iter = idleConnections.descendingIterator();
+        while (iter.hasNext()) {
+            PooledConnection pc = iter.next();
+            boolean idleTooLong = (now - pc.lastUsed > settings.idleTimeout)
+                                  && (openConnections.get() > settings.minSize);
+            if ((idleTooLong || pc.isExpired(now)) && idleConnections.remove(pc)) {
+                closePhysical(pc);
+            }
+        }
+        fillToMinimum();
+    }
+
+    /*======================*/
+    /* DataSource methods   */
+    /*======================*/
+
+    public Connection getConnection() throws SQLException {
+        if ((source == null) && (url == null)) missingUrlException();
+        if (closed) throw new SQLException("Connection pool for " + url + " is closed");
+        try {
+            if (!permits.tryAcquire(settings.acquireTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out after " + settings.acquireTimeout +
+                                       " ms waiting for a connection to " + url);
+            }
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection to " + url, iEx);
+        }
+        // The permit goes with the connection, unless none is handed out (for whatever reason)
+        PooledConnection pc = null;
+        boolean checkedOut = false;
+        try {
+            pc = borrowIdle();
+            if (pc == null) {
+                pc = openPhysical();
+            }
+            Connection conn = pc.checkout();
+            checkedOut = true;
+            return conn;
+        } finally {
+            if (!checkedOut) {
+                if (pc != null)
+                    closePhysical(pc);
+                permits.release();
+            }
+        }
+    }
+
+    public Connection getConnection(String user, String password) throws SQLException {
+        // Not pooled, since the pool only holds connections for the configured user
+        if (source != null) 
+            return source.getConnection(user, password);
+        if (url == null) missingUrlException();
+        Properties localProps = (Properties) properties.clone();
+        localProps.put(JDBC_USER, user);
+        localProps.put(JDBC_PASSWORD, password);
+        return driver.connect(url, localProps);
+    }
+
+    public boolean isWrapperFor(Class<?> cls) throws SQLException {
+        return cls.isInstance((source != null) ? source : driver);
+    }
+
+    public <T> T unwrap(Class<T> cls) throws SQLException {
+        try {
+            return cls.cast((source != null) ? source : driver);
+        } catch (ClassCastException ccEx) {
+            throw new SQLException("Error casting pooled class", ccEx);
+        }
+    }
+
+    public PrintWriter getLogWriter() throws SQLException { return null; }
+
+    public int getLoginTimeout() throws SQLException { return (int) (settings.acquireTimeout / 1000); }
+
+    // Don't support setting log writer or timeout
+
+    public void setLogWriter(PrintWriter writer) throws SQLException {
+        throw new SQLException("Can't set Log Writer on pooled data source");
+    }
+
+    public void setLoginTimeout(int timeout) throws SQLException {
+        throw new SQLException("Can't set Login Timeout on pooled data source");
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    // Return a usable idle connection, or null if there is none
+    protected PooledConnection borrowIdle() {
+        PooledConnection pc;
+        while ((pc = idleConnections.pollFirst()) != null) {
+            long now = System.currentTimeMillis();
+            if (pc.isExpired(now)) {
+                closePhysical(pc);
+            } else if ((now - pc.lastUsed > VALIDATION_INTERVAL) && !isValid(pc)) {
+                debug("PooledDataSource discarding invalid connection to ", url);
+                closePhysical(pc);
+            } else {
+                return pc;
+            }
+        }
+        return null;
+    }
+
+    protected PooledConnection openPhysical() throws SQLException {
+        Connection conn;
+        if (source != null) {
+            conn = source.getConnection();
+        } else {
+            conn = driver.connect(url, properties);
+            if (conn == null)
+                throw new SQLException("Driver " + driver.getClass().getName() + " does not accept URL " + url);
+        }
+        openConnections.incrementAndGet();
+        if (statementCache != null)
+            conn = statementCache.wrap(conn);
+        PooledConnection pc = new PooledConnection(conn);
+        try {
+            pc.saveState();
+        } catch (SQLException sqlEx) {
+            closePhysical(pc);
+            throw sqlEx;
+        } catch (RuntimeException rtEx) {
+            closePhysical(pc);
+            throw rtEx;
+        }
+        return pc;
+    }
+
+    protected void closePhysical(PooledConnection pc) {
+        openConnections.decrementAndGet();
+        try {
+            pc.physical.close();
+        } catch (SQLException sqlEx) {
+            debug("PooledDataSource error closing connection: ", sqlEx);
+        }
+    }
+
+    // Called when the user closes a connection that was handed out
+    protected void checkin(PooledConnection pc) {
+        try {
+            if (closed || pc.isExpired(System.currentTimeMillis()) || !reset(pc)) {
+                closePhysical(pc);
+            } else {
+                pc.lastUsed = System.currentTimeMillis();
+                idleConnections.offerFirst(pc);
+                // If the pool was closed meanwhile then close() may have drained 
+                // the idle connections before this one was offered
+                if (closed && idleConnections.remove(pc))
+                    closePhysical(pc);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    // Put a connection back into the state it was opened in. Return false if it can't be reused.
+    protected boolean reset(PooledConnection pc) {
+        try {
+            Connection conn = pc.physical;
+            if (conn.isClosed()) return false;
+            if (!conn.getAutoCommit()) 
+                conn.rollback();
+            pc.restoreState();
+            conn.clearWarnings();
+            return true;
+        } catch (SQLException sqlEx) {
+            debug("PooledDataSource could not reset connection: ", sqlEx);
+            return false;
+        } catch (RuntimeException rtEx) {
+            // e.g. an older driver that does not implement a JDBC 4.1 method
+            debug("PooledDataSource could not reset connection: ", rtEx);
+            return false;
+        } catch (AbstractMethodError amError) {
+            debug("PooledDataSource could not reset connection: ", amError);
+            return false;
+        }
+    }
+
+    protected boolean isValid(PooledConnection pc) {
+        try {
+            if (settings.validationQuery == null)
+                return pc.physical.isValid(VALIDATION_TIMEOUT);
+            Statement stmt = pc.physical.createStatement();
+            try {
+                stmt.setQueryTimeout(VALIDATION_TIMEOUT);
+                stmt.execute(settings.validationQuery);
+                return true;
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException sqlEx) {
+            return false;
+        } catch (RuntimeException rtEx) {
+            debug("PooledDataSource could not validate connection: ", rtEx);
+            return false;
+        } catch (AbstractMethodError amError) {
+            // e.g. a pre-JDBC 4 driver without isValid() (a validation query can be used instead)
+            debug("PooledDataSource could not validate connection: ", amError);
+            return false;
+        }
+    }
+
+    // Open connections up to the min pool size (without blocking clients)
+    protected void fillToMinimum() {
+        List<PooledConnection> created = new ArrayList<PooledConnection>();
+        try {
+            while (!closed && (openConnections.get() < settings.minSize) && permits.tryAcquire()) {
+                try {
+                    PooledConnection pc = openPhysical();
+                    pc.lastUsed = System.currentTimeMillis();
+                    created.add(pc);
+                } finally {
+                    permits.release();
+                }
+            }
+        } catch (SQLException sqlEx) {
+            warning("Could not open connection to " + url + ": ", sqlEx);
+        }
+        for (PooledConnection pc : created) {
+            idleConnections.offerLast(pc);
+        }
+    }
+
+    void missingUrlException() throws SQLException {
+        throw new SQLException("URL was not specified");
+    }
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    /**
+     * Pool settings, taken from the Gemini p-unit properties.
+     * @see org.eclipse.gemini.jpa.GeminiPersistenceUnitProperties#CONNECTION_POOL
+     */
+    public static class Settings {
+        public int minSize = 0;
+        public int maxSize = 10;
+        public long acquireTimeout = 30000;
+        public long idleTimeout = 600000;
+        public long maxLifetime = 1800000;
+        public String validationQuery;
+        public int statementCacheSize = 0;
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Settings))
+                return false;
+            Settings other = (Settings) obj;
+            return (minSize == other.minSize)
+                && (maxSize == other.maxSize)
+                && (acquireTimeout == other.acquireTimeout)
+                && (idleTimeout == other.idleTimeout)
+                && (maxLifetime == other.maxLifetime)
+                && Objects.equals(validationQuery, other.validationQuery)
+                && (statementCacheSize == other.statementCacheSize);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(minSize, maxSize, acquireTimeout, idleTimeout, maxLifetime, 
+                                validationQuery, statementCacheSize);
+        }
+
+        @Override
+        public String toString() {
+            return "PoolSettings[min=" + minSize + ", max=" + maxSize +
+                   ", acquireTimeout=" + acquireTimeout + ", idleTimeout=" + idleTimeout +
+                   ", maxLifetime=" + maxLifetime + ", validationQuery=" + validationQuery + 
+                   ", statementCacheSize=" + statementCacheSize + "]";
+        }
+    }
+
+    // A physical connection owned by the pool
+    class PooledConnection {
+        Connection physical;
+        long created = System.currentTimeMillis();
+        long lastUsed = created;
+
+        // State of the connection when it was opened, restored when it is returned
+        boolean autoCommit;
+        boolean readOnly;
+        int transactionIsolation;
+        int holdability;
+        String catalog;
+        String schema;
+        // Whether the driver supports getSchema()/setSchema() (JDBC 4.1)
+        boolean hasSchema;
+
+        PooledConnection(Connection physical) { this.physical = physical; }
+
+        boolean isExpired(long now) {
+            return (now - created) > settings.maxLifetime;
+        }
+
+        void saveState() throws SQLException {
+            autoCommit = physical.getAutoCommit();
+            readOnly = physical.isReadOnly();
+            transactionIsolation = physical.getTransactionIsolation();
+            holdability = physical.getHoldability();
+            catalog = physical.getCatalog();
+            try {
+                schema = physical.getSchema();
+                hasSchema = true;
+            } catch (SQLFeatureNotSupportedException sqlEx) {
+                hasSchema = false;
+            } catch (AbstractMethodError amError) {
+                hasSchema = false;
+            }
+        }
+
+        // Only set what was changed, since some drivers go to the database for each set
+        void restoreState() throws SQLException {
+            if (physical.getAutoCommit() != autoCommit)
+                physical.setAutoCommit(autoCommit);
+            if (physical.isReadOnly() != readOnly)
+                physical.setReadOnly(readOnly);
+            if (physical.getTransactionIsolation() != transactionIsolation)
+                physical.setTransactionIsolation(transactionIsolation);
+            if (physical.getHoldability() != holdability)
+                physical.setHoldability(holdability);
+            if (!equal(physical.getCatalog(), catalog))
+                physical.setCatalog(catalog);
+            if (hasSchema && !equal(physical.getSchema(), schema))
+                physical.setSchema(schema);
+        }
+
+        boolean equal(String s1, String s2) {
+            return (s1 == null) ? (s2 == null) : s1.equals(s2);
+        }
+
+        // Return a new proxy for the connection. A new proxy each time means
+        // that a stale reference held by a previous user can't use the connection.
+        Connection checkout() {
+            return (Connection) Proxy.newProxyInstance(
+                    PooledDataSource.class.getClassLoader(),
+                    new Class<?>[] { Connection.class },
+                    new LogicalConnection(this));
+        }
+    }
+
+    // Handler of the connection proxies handed out to users
+    class LogicalConnection implements InvocationHandler {
+        PooledConnection pc;
+
+        LogicalConnection(PooledConnection pc) { this.pc = pc; }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                PooledConnection toReturn;
+                synchronized (this) {
+                    toReturn = pc;
+                    pc = null;
+                }
+                if (toReturn != null) 
+                    checkin(toReturn);
+                return null;
+            }
+            if (name.equals("isClosed"))
+                return pc == null;
+            if (name.equals("hashCode"))
+                return System.identityHashCode(proxy);
+            if (name.equals("equals"))
+                return proxy == args[0];
+            if (name.equals("toString"))
+                return "PooledConnection[" + ((pc == null) ? "closed" : pc.physical.toString()) + "]";
+            PooledConnection current = pc;
+            if (current == null)
+                throw new SQLException("Connection is closed");
+            try {
+                return method.invoke(current.physical, args);
+            } catch (InvocationTargetException itEx) {
+                throw itEx.getCause();
+            }
+        }
+    }
+}
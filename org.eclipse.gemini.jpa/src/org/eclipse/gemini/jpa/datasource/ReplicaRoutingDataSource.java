@@ -0,0 +1,323 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.datasource;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+/**
+ * A DataSource for a p-unit with read replicas. Connections got from it are
+ * connections to the primary database, and are used for writing. Connections
+ * for reading are got from the data source returned by getReadDataSource(),
+ * which spreads them over the replicas either in round-robin order or by
+ * picking the replica with the fewest connections in use. If a replica can't
+ * be connected to then the next one is tried, and finally the primary.
+ *
+ * A replica that can't be connected to (SQLState class 08, or a connection
+ * exception) is marked down and skipped, so a dead replica does not cost a 
+ * connect attempt on every read. It is tried again by a read after the retry
+ * interval, then after a delay that doubles on every failed try (up to 
+ * MAX_BACKOFF).
+ *
+ * The primary and replica data sources are owned by the p-unit, not by this
+ * data source.
+ *
+ * @see org.eclipse.gemini.jpa.GeminiPersistenceUnitProperties#JDBC_READ_URLS
+ */
+public class ReplicaRoutingDataSource implements DataSource {
+
+    // Longest time (ms) between two tries of a replica that is down
+    static final long MAX_BACKOFF = FailoverDataSource.MAX_BACKOFF;
+
+    DataSource primary;
+    List<DataSource> replicas;
+    boolean leastBusy;
+
+    // Time (ms) after which a replica that is down is first tried again
+    long retryInterval;
+
+    // Whether each replica is up, and when it is next tried if it is not
+    Replica[] states;
+
+    // Round-robin position
+    AtomicInteger next = new AtomicInteger();
+
+    // Number of read connections in use for each replica (only kept for least-busy routing)
+    AtomicInteger[] inUse;
+
+    DataSource readDataSource = new ReadDataSource();
+
+    public ReplicaRoutingDataSource(DataSource primary, List<String> urls, List<DataSource> replicas, 
+                                    boolean leastBusy, long retryInterval) {
+        this.primary = primary;
+        this.replicas = replicas;
+        this.leastBusy = leastBusy;
+        this.retryInterval = Math.max(1, retryInterval);
+        this.inUse = new AtomicInteger[replicas.size()];
+        this.states = new Replica[replicas.size()];
+        for (int i = 0; i < inUse.length; i++) {
+            inUse[i] = new AtomicInteger();
+            states[i] = new Replica(urls.get(i));
+        }
+    }
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Return the data source that read connections should be got from
+     */
+    public DataSource getReadDataSource() { return readDataSource; }
+
+    public DataSource getPrimary() { return primary; }
+
+    public List<DataSource> getReplicas() { return replicas; }
+
+    /**
+     * Return the urls of the replicas that are currently considered to be up
+     */
+    public List<String> getAvailableReadUrls() {
+        List<String> urls = new ArrayList<String>();
+        for (Replica state : states) {
+            if (state.up)
+                urls.add(state.url);
+        }
+        return urls;
+    }
+
+    /*======================*/
+    /* DataSource methods   */
+    /*======================*/
+
+    public Connection getConnection() throws SQLException {
+        return primary.getConnection();
+    }
+
+    public Connection getConnection(String user, String password) throws SQLException {
+        return primary.getConnection(user, password);
+    }
+
+    public boolean isWrapperFor(Class<?> cls) throws SQLException {
+        return cls.isInstance(primary) || primary.isWrapperFor(cls);
+    }
+
+    public <T> T unwrap(Class<T> cls) throws SQLException {
+        return cls.isInstance(primary) ? cls.cast(primary) : primary.unwrap(cls);
+    }
+
+    public PrintWriter getLogWriter() throws SQLException { return primary.getLogWriter(); }
+
+    public int getLoginTimeout() throws SQLException { return primary.getLoginTimeout(); }
+
+    public void setLogWriter(PrintWriter writer) throws SQLException { primary.setLogWriter(writer); }
+
+    public void setLoginTimeout(int timeout) throws SQLException { primary.setLoginTimeout(timeout); }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return primary.getParentLogger();
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    // Return a connection to a replica, or to the primary if no replica can be connected to.
+    // Replicas that are down are skipped, unless they are due to be tried again.
+    protected Connection readConnection(String user, String password) throws SQLException {
+        int count = replicas.size();
+        int first = chooseReplica();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            int index = (first + i) % count;
+            Replica state = states[index];
+            if (!state.up && !state.claimRetry(now))
+                continue;
+            try {
+                Connection conn = (user == null)
+                    ? replicas.get(index).getConnection()
+                    : replicas.get(index).getConnection(user, password);
+                if (!state.up)
+                    state.markUp();
+                return leastBusy ? track(conn, index) : conn;
+            } catch (SQLException sqlEx) {
+                if (FailoverDataSource.isConnectFailure(sqlEx))
+                    state.markDown(System.currentTimeMillis(), sqlEx);
+                else
+                    debug("ReplicaRoutingDataSource could not get a connection from replica ", state.url, ": ", sqlEx);
+            }
+        }
+        debug("ReplicaRoutingDataSource reading from primary");
+        return (user == null) ? primary.getConnection() : primary.getConnection(user, password);
+    }
+
+    protected int chooseReplica() {
+        if (!leastBusy)
+            return (next.getAndIncrement() & Integer.MAX_VALUE) % replicas.size();
+        // Start from the round-robin position so that ties are spread out
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % replicas.size();
+        // Replicas that are down are left for readConnection() to try when they are due
+        int best = -1;
+        for (int i = 0; i < inUse.length; i++) {
+            int index = (start + i) % inUse.length;
+            if (states[index].up && ((best < 0) || (inUse[index].get() < inUse[best].get())))
+                best = index;
+        }
+        return (best < 0) ? start : best;
+    }
+
+    // Count the connection as in use for the replica until it is closed
+    protected Connection track(Connection conn, int index) {
+        inUse[index].incrementAndGet();
+        return (Connection) Proxy.newProxyInstance(
+                ReplicaRoutingDataSource.class.getClassLoader(),
+                new Class<?>[] { Connection.class },
+                new TrackedConnection(conn, inUse[index]));
+    }
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    // The data source that reads are routed through
+    class ReadDataSource implements DataSource {
+
+        public Connection getConnection() throws SQLException {
+            return readConnection(null, null);
+        }
+
+        public Connection getConnection(String user, String password) throws SQLException {
+            return readConnection(user, password);
+        }
+
+        public boolean isWrapperFor(Class<?> cls) throws SQLException {
+            return cls.isInstance(ReplicaRoutingDataSource.this);
+        }
+
+        public <T> T unwrap(Class<T> cls) throws SQLException {
+            try {
+                return cls.cast(ReplicaRoutingDataSource.this);
+            } catch (ClassCastException ccEx) {
+                throw new SQLException("Error casting data source class", ccEx);
+            }
+        }
+
+        public PrintWriter getLogWriter() throws SQLException { return null; }
+
+        public int getLoginTimeout() throws SQLException { return primary.getLoginTimeout(); }
+
+        public void setLogWriter(PrintWriter writer) throws SQLException {
+            throw new SQLException("Can't set Log Writer on read data source");
+        }
+
+        public void setLoginTimeout(int timeout) throws SQLException {
+            throw new SQLException("Can't set Login Timeout on read data source");
+        }
+
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    // One of the replicas, and whether it can be connected to
+    class Replica {
+        String url;
+        volatile boolean up = true;
+
+        // Time (ms) before the next try and when the next try is due (only used while down)
+        volatile long backoff;
+        AtomicLong nextRetry = new AtomicLong();
+
+        Replica(String url) { this.url = url; }
+
+        synchronized void markDown(long now, SQLException sqlEx) {
+            if (up) {
+                warning("ReplicaRoutingDataSource - read replica " + url + " is down: ", sqlEx);
+                up = false;
+                backoff = retryInterval;
+            } else {
+                backoff = Math.min(MAX_BACKOFF, backoff * 2);
+            }
+            nextRetry.set(now + backoff);
+        }
+
+        synchronized void markUp() {
+            if (!up)
+                debug("ReplicaRoutingDataSource - read replica ", url, " is up");
+            up = true;
+            backoff = 0;
+        }
+
+        // Return true if a try is due, in which case no other reader tries until the next one
+        boolean claimRetry(long now) {
+            long due = nextRetry.get();
+            return (due <= now) && nextRetry.compareAndSet(due, now + Math.max(backoff, retryInterval));
+        }
+
+        @Override
+        public String toString() { return url + (up ? "(up)" : "(down)"); }
+    }
+
+    // Handler of read connections that are counted while in use
+    static class TrackedConnection implements InvocationHandler {
+        Connection conn;
+        AtomicInteger counter;
+        boolean closed;
+
+        TrackedConnection(Connection conn, AtomicInteger counter) {
+            this.conn = conn;
+            this.counter = counter;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                synchronized (this) {
+                    if (!closed) {
+                        closed = true;
+                        counter.decrementAndGet();
+                    }
+                }
+                conn.close();
+                return null;
+            }
+            if (name.equals("hashCode"))
+                return System.identityHashCode(proxy);
+            if (name.equals("equals"))
+                return proxy == args[0];
+            try {
+                return method.invoke(conn, args);
+            } catch (InvocationTargetException itEx) {
+                throw itEx.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.datasource;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+
+/**
+ * Prepared statement cache for the connections of a data source. Each connection
+ * wrapped by the cache keeps the statements prepared on it in a bounded LRU map,
+ * keyed by the SQL text and the result set type, concurrency and holdability.
+ * Closing a statement puts it back in the map so that preparing the same SQL
+ * again on that connection reuses it instead of re-preparing it in the database.
+ * The max rows, max field size, query timeout, fetch size and fetch direction of
+ * a statement are set back to what they were when it was prepared, and its batch
+ * and parameters are cleared, before it goes back in the map. The statement is
+ * closed instead if that fails, or if its user changed a setting that can't be
+ * read back (escape processing, poolable, close on completion or cursor name).
+ * The statements are closed when the connection is closed.
+ *
+ * A statement is taken out of the map while it is in use, so two users of the
+ * same SQL on one connection get different statements. The hit and miss counts
+ * are kept for all of the connections of the data source, and are published in
+ * the connection metrics of the p-unit.
+ *
+ * @see org.eclipse.gemini.jpa.metrics.ConnectionMetricsMXBean#getStatementCacheHits()
+ *
+ * @see org.eclipse.gemini.jpa.GeminiPersistenceUnitProperties#STATEMENT_CACHE_SIZE
+ */
+public class StatementCache {
+
+    // Holdability used in the key when none was asked for
+    static final int DEFAULT_HOLDABILITY = -1;
+
+    // Statement methods that change a setting that can't be read back (or, for
+    // setPoolable, ask for the statement not to be pooled), so it is not cached again
+    static final Set<String> UNRESETTABLE_METHODS = new HashSet<String>(Arrays.asList(
+            "setEscapeProcessing", "setPoolable", "closeOnCompletion", "setCursorName"));
+
+    // Max number of statements cached for each connection
+    int maxStatements;
+
+    AtomicLong hits = new AtomicLong();
+    AtomicLong misses = new AtomicLong();
+    AtomicLong evictions = new AtomicLong();
+
+    public StatementCache(int maxStatements) {
+        this.maxStatements = maxStatements;
+    }
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Return a connection that caches the statements prepared on the given one.
+     */
+    public Connection wrap(Connection conn) {
+        return (Connection) Proxy.newProxyInstance(
+                StatementCache.class.getClassLoader(),
+                new Class<?>[] { Connection.class },
+                new CachingConnection(conn));
+    }
+
+    public int getMaxStatements() { return maxStatements; }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    public long getEvictions() { return evictions.get(); }
+
+    @Override
+    public String toString() {
+        return "StatementCache[maxStatements=" + maxStatements + ", hits=" + hits +
+               ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    // Return the key for a prepareStatement/prepareCall call, or null if it is not cacheable
+    static Key keyFor(String name, Object[] args) {
+        boolean call = name.equals("prepareCall");
+        if (!call && !name.equals("prepareStatement"))
+            return null;
+        switch (args.length) {
+            case 1:
+                return new Key(call, (String) args[0], ResultSet.TYPE_FORWARD_ONLY,
+                               ResultSet.CONCUR_READ_ONLY, DEFAULT_HOLDABILITY);
+            case 3:
+                if ((args[1] instanceof Integer) && (args[2] instanceof Integer))
+                    return new Key(call, (String) args[0], (Integer) args[1], (Integer) args[2], DEFAULT_HOLDABILITY);
+                return null;
+            case 4:
+                return new Key(call, (String) args[0], (Integer) args[1], (Integer) args[2], (Integer) args[3]);
+            default:
+                // Generated keys variants are not cached
+                return null;
+        }
+    }
+
+    static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException sqlEx) {
+            debug("StatementCache error closing statement: ", sqlEx);
+        }
+    }
+
+    static Object delegate(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException itEx) {
+            throw itEx.getCause();
+        }
+    }
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    // What a statement is cached by
+    static class Key {
+        boolean call;
+        String sql;
+        int type;
+        int concurrency;
+        int holdability;
+
+        Key(boolean call, String sql, int type, int concurrency, int holdability) {
+            this.call = call;
+            this.sql = sql;
+            this.type = type;
+            this.concurrency = concurrency;
+            this.holdability = holdability;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return (call == other.call) && (type == other.type) && (concurrency == other.concurrency)
+                && (holdability == other.holdability) && sql.equals(other.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((sql.hashCode() * 31 + type) * 31 + concurrency) * 31 + holdability + (call ? 1 : 0);
+        }
+    }
+
+    // Handler of a connection that caches its statements
+    class CachingConnection implements InvocationHandler {
+        Connection conn;
+
+        // Statements that are not in use, least recently used first
+        LinkedHashMap<Key,Prepared> statements =
+            new LinkedHashMap<Key,Prepared>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key,Prepared> eldest) {
+                    if (size() <= maxStatements)
+                        return false;
+                    evictions.incrementAndGet();
+                    closeQuietly(eldest.getValue().stmt);
+                    return true;
+                }
+            };
+
+        boolean closed;
+
+        CachingConnection(Connection conn) { this.conn = conn; }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                closeStatements();
+                conn.close();
+                return null;
+            }
+            if (name.equals("hashCode"))
+                return System.identityHashCode(proxy);
+            if (name.equals("equals"))
+                return proxy == args[0];
+            if (name.equals("toString"))
+                return "CachingConnection[" + conn + "]";
+            if (args != null) {
+                Key key = keyFor(name, args);
+                if (key != null)
+                    return prepare(proxy, key, method, args);
+            }
+            return delegate(conn, method, args);
+        }
+
+        // Return a cached statement for the key, or prepare a new one
+        Object prepare(Object proxy, Key key, Method method, Object[] args) throws Throwable {
+            Prepared prepared;
+            synchronized (this) {
+                prepared = statements.remove(key);
+            }
+            if (prepared != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                PreparedStatement stmt = (PreparedStatement) delegate(conn, method, args);
+                try {
+                    prepared = new Prepared(stmt);
+                } catch (SQLException sqlEx) {
+                    closeQuietly(stmt);
+                    throw sqlEx;
+                }
+            }
+            Class<?> stmtClass = key.call ? CallableStatement.class : PreparedStatement.class;
+            return Proxy.newProxyInstance(
+                    StatementCache.class.getClassLoader(),
+                    new Class<?>[] { stmtClass },
+                    new CachedStatement(this, (Connection) proxy, key, prepared));
+        }
+
+        // Put a statement that was closed by its user back in the cache
+        void checkin(Key key, Prepared prepared) {
+            boolean cached = false;
+            try {
+                PreparedStatement stmt = prepared.stmt;
+                ResultSet rs = stmt.getResultSet();
+                if (rs != null)
+                    rs.close();
+                // A batch left by a user that failed must not be run by the next one
+                try {
+                    stmt.clearBatch();
+                } catch (SQLFeatureNotSupportedException sqlEx) {
+                    // No batches, so nothing to clear
+                }
+                stmt.clearParameters();
+                prepared.reset();
+                stmt.clearWarnings();
+                synchronized (this) {
+                    if (!closed && !prepared.changed && !statements.containsKey(key)) {
+                        statements.put(key, prepared);
+                        cached = true;
+                    }
+                }
+            } catch (SQLException sqlEx) {
+                debug("StatementCache could not reset statement: ", sqlEx);
+            }
+            if (!cached)
+                closeQuietly(prepared.stmt);
+        }
+
+        void closeStatements() {
+            List<Prepared> toClose;
+            synchronized (this) {
+                closed = true;
+                toClose = new ArrayList<Prepared>(statements.values());
+                statements.clear();
+            }
+            for (Prepared prepared : toClose) {
+                closeQuietly(prepared.stmt);
+            }
+        }
+    }
+
+    // A statement and the settings it had when it was prepared
+    static class Prepared {
+        PreparedStatement stmt;
+        int maxRows;
+        int maxFieldSize;
+        int queryTimeout;
+        int fetchSize;
+        int fetchDirection;
+
+        // Set if a user changed a setting that reset() can't set back
+        volatile boolean changed;
+
+        Prepared(PreparedStatement stmt) throws SQLException {
+            this.stmt = stmt;
+            this.maxRows = stmt.getMaxRows();
+            this.maxFieldSize = stmt.getMaxFieldSize();
+            this.queryTimeout = stmt.getQueryTimeout();
+            this.fetchSize = stmt.getFetchSize();
+            this.fetchDirection = stmt.getFetchDirection();
+        }
+
+        // Set back what a user changed, so the next user gets the statement as prepared
+        void reset() throws SQLException {
+            if (stmt.getMaxRows() != maxRows)
+                stmt.setMaxRows(maxRows);
+            if (stmt.getMaxFieldSize() != maxFieldSize)
+                stmt.setMaxFieldSize(maxFieldSize);
+            if (stmt.getQueryTimeout() != queryTimeout)
+                stmt.setQueryTimeout(queryTimeout);
+            if (stmt.getFetchSize() != fetchSize)
+                stmt.setFetchSize(fetchSize);
+            if (stmt.getFetchDirection() != fetchDirection)
+                stmt.setFetchDirection(fetchDirection);
+        }
+    }
+
+    // Handler of a statement handed out by a caching connection
+    static class CachedStatement implements InvocationHandler {
+        CachingConnection owner;
+        Connection connProxy;
+        Key key;
+        Prepared prepared;
+        PreparedStatement stmt;
+
+        CachedStatement(CachingConnection owner, Connection connProxy, Key key, Prepared prepared) {
+            this.owner = owner;
+            this.connProxy = connProxy;
+            this.key = key;
+            this.prepared = prepared;
+            this.stmt = prepared.stmt;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                Prepared toReturn;
+                synchronized (this) {
+                    toReturn = (stmt == null) ? null : prepared;
+                    stmt = null;
+                }
+                if (toReturn != null)
+                    owner.checkin(key, toReturn);
+                return null;
+            }
+            if (name.equals("isClosed"))
+                return stmt == null;
+            if (name.equals("hashCode"))
+                return System.identityHashCode(proxy);
+            if (name.equals("equals"))
+                return proxy == args[0];
+            if (name.equals("toString"))
+                return "CachedStatement[" + key.sql + "]";
+            if (name.equals("getConnection"))
+                return connProxy;
+            PreparedStatement current = stmt;
+            if (current == null)
+                throw new SQLException("Statement is closed");
+            if (UNRESETTABLE_METHODS.contains(name))
+                prepared.changed = true;
+            return delegate(current, method, args);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.datasource;
+
+/**
+ * Statement cache counts of a data source that caches prepared statements.
+ *
+ * @see StatementCache
+ */
+public interface StatementCacheStatistics {
+
+    /** Number of statements that were found in the cache */
+    long getStatementCacheHits();
+
+    /** Number of statements that had to be prepared */
+    long getStatementCacheMisses();
+}
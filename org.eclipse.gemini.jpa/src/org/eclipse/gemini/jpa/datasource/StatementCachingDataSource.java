@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.datasource;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * A DataSource that caches the statements prepared on the connections of a
+ * data source that does not pool its connections. Statements are cached for
+ * as long as the connection they were prepared on is open. (Pooled data
+ * sources cache statements on their physical connections instead, so that
+ * the statements outlive each use of the connection.)
+ *
+ * @see StatementCache
+ */
+public class StatementCachingDataSource implements DataSource, StatementCacheStatistics {
+
+    DataSource delegate;
+    StatementCache statementCache;
+
+    public StatementCachingDataSource(DataSource delegate, StatementCache statementCache) {
+        this.delegate = delegate;
+        this.statementCache = statementCache;
+    }
+
+    public StatementCache getStatementCache() { return statementCache; }
+
+    public long getStatementCacheHits() { return statementCache.getHits(); }
+
+    public long getStatementCacheMisses() { return statementCache.getMisses(); }
+
+    /*======================*/
+    /* DataSource methods   */
+    /*======================*/
+
+    public Connection getConnection() throws SQLException {
+        return statementCache.wrap(delegate.getConnection());
+    }
+
+    public Connection getConnection(String user, String password) throws SQLException {
+        return statementCache.wrap(delegate.getConnection(user, password));
+    }
+
+    public boolean isWrapperFor(Class<?> cls) throws SQLException {
+        return cls.isInstance(delegate) || delegate.isWrapperFor(cls);
+    }
+
+    public <T> T unwrap(Class<T> cls) throws SQLException {
+        return cls.isInstance(delegate) ? cls.cast(delegate) : delegate.unwrap(cls);
+    }
+
+    public PrintWriter getLogWriter() throws SQLException { return delegate.getLogWriter(); }
+
+    public int getLoginTimeout() throws SQLException { return delegate.getLoginTimeout(); }
+
+    public void setLogWriter(PrintWriter writer) throws SQLException { delegate.setLogWriter(writer); }
+
+    public void setLoginTimeout(int timeout) throws SQLException { delegate.setLoginTimeout(timeout); }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return delegate.getParentLogger();
+    }
+}
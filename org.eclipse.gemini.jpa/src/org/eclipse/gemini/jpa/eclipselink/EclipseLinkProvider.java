@@ -14,20 +14,35 @@
  ******************************************************************************/
 package org.eclipse.gemini.jpa.eclipselink;
 
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
+import javax.persistence.EntityManagerFactory;
+
 import org.eclipse.gemini.jpa.GeminiManager;
 import org.eclipse.gemini.jpa.PUnitInfo;
 
 import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.internal.databaseaccess.Accessor;
 import org.eclipse.persistence.internal.jpa.deployment.JPAInitializer;
 import org.eclipse.persistence.internal.jpa.deployment.PersistenceUnitProcessor;
+import org.eclipse.persistence.internal.sessions.AbstractRecord;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.internal.sessions.DatabaseSessionImpl;
+import org.eclipse.persistence.jpa.JpaEntityManagerFactory;
 import org.eclipse.persistence.logging.AbstractSessionLog;
 import org.eclipse.persistence.logging.DefaultSessionLog;
 import org.eclipse.persistence.logging.SessionLog;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.DatabaseRecord;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.ServerSession;
 
 /**
  * We subclass the actual EclipseLink provider so that Gemini JPA has 
@@ -135,4 +150,52 @@ public class EclipseLinkProvider extends org.eclipse.persistence.jpa.Persistence
     public static boolean containsSessionName(Map<?,?> props) {
         return props.containsKey(PersistenceUnitProperties.SESSION_NAME);
     }
+
+    // Function to force an EMF to deploy its session (EclipseLink otherwise 
+    // deploys it lazily, when the first EM is created)
+    public static void deploy(EntityManagerFactory emf) {
+        if (emf instanceof JpaEntityManagerFactory) {
+            ((JpaEntityManagerFactory) emf).getDatabaseSession();
+        } else {
+            emf.getMetamodel();
+        }
+    }
+
+    // Function to get a deployed EMF ready for use: acquire (and release) a first 
+    // connection and optionally prepare all of the named queries
+    public static void prewarm(EntityManagerFactory emf, boolean prepareQueries) {
+        if (!(emf instanceof JpaEntityManagerFactory)) {
+            deploy(emf);
+            return;
+        }
+        DatabaseSessionImpl session = ((JpaEntityManagerFactory) emf).getDatabaseSession();
+        if (session instanceof ServerSession) {
+            ConnectionPool pool = ((ServerSession) session).getDefaultConnectionPool();
+            if (pool != null) {
+                Accessor accessor = pool.acquireConnection();
+                pool.releaseConnection(accessor);
+            }
+        }
+        if (prepareQueries) {
+            prepareNamedQueries(session);
+        }
+    }
+
+    // Prepare the named queries of a session so the first execution does not have to
+    public static int prepareNamedQueries(AbstractSession session) {
+        int prepared = 0;
+        AbstractRecord emptyRow = new DatabaseRecord();
+        for (List<DatabaseQuery> queries : session.getQueries().values()) {
+            for (DatabaseQuery query : queries) {
+                try {
+                    query.checkPrepare(session, emptyRow);
+                    prepared++;
+                } catch (Exception ex) {
+                    warning("Could not prepare named query " + query.getName() + ": ", ex);
+                }
+            }
+        }
+        debug("EclipseLinkProvider prepared ", prepared, " named queries");
+        return prepared;
+    }
 }
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.eclipselink;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+
+import javax.sql.DataSource;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.sessions.DatasourceLogin;
+import org.eclipse.persistence.sessions.JNDIConnector;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.server.ServerSession;
+
+/**
+ * Session customizer that gives the EclipseLink server session a read connection
+ * pool that gets its connections from the read replicas of the p-unit, so that
+ * reads outside of a transaction go to the replicas and everything else goes to
+ * the primary. A session customizer that was specified for the p-unit (as a class
+ * name or as an instance) is run afterwards.
+ *
+ * @see org.eclipse.gemini.jpa.datasource.ReplicaRoutingDataSource
+ */
+public class ReadReplicaSessionCustomizer implements SessionCustomizer {
+
+    DataSource readDataSource;
+
+    // The customizer specified for the p-unit, if any
+    Object userCustomizer;
+
+    // Loader for a customizer specified as a class name
+    ClassLoader loader;
+
+    public ReadReplicaSessionCustomizer(DataSource readDataSource, Object userCustomizer, ClassLoader loader) {
+        this.readDataSource = readDataSource;
+        this.userCustomizer = userCustomizer;
+        this.loader = loader;
+    }
+
+    public void customize(Session session) throws Exception {
+        if (session instanceof ServerSession) {
+            ServerSession serverSession = (ServerSession) session;
+            DatasourceLogin readLogin = (DatasourceLogin) serverSession.getDatasourceLogin().clone();
+            readLogin.setConnector(new JNDIConnector(readDataSource));
+            serverSession.setReadConnectionPool(readLogin);
+            debug("ReadReplicaSessionCustomizer - read connection pool set for session ", session.getName());
+        }
+        if (userCustomizer instanceof SessionCustomizer) {
+            ((SessionCustomizer) userCustomizer).customize(session);
+        } else if (userCustomizer instanceof String) {
+            Class<?> customizerClass = loader.loadClass(((String) userCustomizer).trim());
+            ((SessionCustomizer) customizerClass.getDeclaredConstructor().newInstance()).customize(session);
+        }
+    }
+}
@@ -14,40 +14,123 @@
  ******************************************************************************/
 package org.eclipse.gemini.jpa.jndi;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
 import javax.sql.DataSource;
 
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.jndi.JNDIContextManager;
+
 import org.eclipse.gemini.jpa.GeminiManager;
 
 import static org.eclipse.gemini.jpa.GeminiUtil.debug;
 import static org.eclipse.gemini.jpa.GeminiUtil.fatalError;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
 
 /**
  * Utility class containing functions for JNDI integration
+ * 
+ * The OSGi JNDI service binds a context to the bundle that it was created for, 
+ * and looks up services as that bundle. So the lookups for a p-unit are done 
+ * through a context created for the p-unit bundle (from the JNDIContextManager 
+ * service got through that bundle's context), and the data sources found are 
+ * cached by p-unit bundle and JNDI name. The context of a bundle is kept for its 
+ * later lookups, since creating one searches the service registry for context 
+ * factories, and is closed when the p-units of the bundle are unregistered.
+ * 
+ * The cache is cleared whenever a DataSource service is modified or goes away, 
+ * so a stale data source is never returned for a name.
  */
-public class JndiUtil {
+public class JndiUtil implements ServiceListener {
+
+    // Filter for the services that may back the cached data sources
+    static final String DATA_SOURCE_FILTER = "(objectClass=" + DataSource.class.getName() + ")";
 
     // Pointer back to manager
     GeminiManager mgr;
     
+    // Lookup state of each p-unit bundle, keyed by bundle id
+    Map<Long,BundleLookups> lookups = new ConcurrentHashMap<Long,BundleLookups>();
+    
     public JndiUtil(GeminiManager mgr) {
         this.mgr = mgr;
     }
 
-    /** Do a JNDI lookup for the data source and return the result.
+    /*================*/
+    /* Public methods */
+    /*================*/
+
+    /**
+     * Start listening for changes to the DataSource services so cached data 
+     * sources can be dropped
+     */
+    public void startListening() {
+        debug("JndiUtil.startListening");
+        try {
+            mgr.getBundleContext().addServiceListener(this, DATA_SOURCE_FILTER);
+        } catch (InvalidSyntaxException isEx) {
+            fatalError("Bad filter syntax for DataSource service listener", isEx);
+        }
+    }
+
+    /**
+     * Stop listening for DataSource services and release the caches and the contexts
+     */
+    public void stopListening() {
+        debug("JndiUtil.stopListening");
+        mgr.getBundleContext().removeServiceListener(this);
+        for (BundleLookups bundleLookups : lookups.values()) {
+            bundleLookups.close();
+        }
+        lookups.clear();
+    }
+
+    /**
+     * Release the cached data sources and the context of a p-unit bundle.
+     * Called when the p-units of the bundle are unregistered.
+     */
+    public void release(Bundle bundle) {
+        BundleLookups bundleLookups = lookups.remove(bundle.getBundleId());
+        if (bundleLookups != null) {
+            debug("JndiUtil - releasing JNDI context of bundle ", bundle.getSymbolicName());
+            bundleLookups.close();
+        }
+    }
+
+    /** Do a JNDI lookup for the data source, as the given p-unit bundle, and return the result.
      *  Return the data source if it was found, return null if it was not.
      *  Throw an exception in any other case. 
      */
-    public DataSource lookupDataSource(String nameString) {
+    public DataSource lookupDataSource(Bundle bundle, String nameString) {
+        BundleLookups bundleLookups = lookups.get(bundle.getBundleId());
+        if (bundleLookups == null) {
+            BundleLookups newLookups = new BundleLookups(bundle);
+            bundleLookups = lookups.putIfAbsent(bundle.getBundleId(), newLookups);
+            if (bundleLookups == null) 
+                bundleLookups = newLookups;
+        }
+        DataSource cached = bundleLookups.dataSources.get(nameString);
+        if (cached != null) {
+            debug("JndiUtil.lookupDataSource - Found cached data source for ", nameString);
+            return cached;
+        }
         Object result = null; 
         try {
-            debug("JndiUtil.lookupDataSource - looking up ", nameString);
-            Context ctx = new InitialContext();
-            result = ctx.lookup(nameString);
+            debug("JndiUtil.lookupDataSource - looking up ", nameString, " for bundle ", bundle.getSymbolicName());
+            result = bundleLookups.lookup(nameString);
             if (result instanceof DataSource) {
                 debug("JndiUtil.lookupDataSource - Found data source ", result);
+                bundleLookups.dataSources.put(nameString, (DataSource) result);
                 return (DataSource) result;
             } else if (result instanceof Context) {
                 // servicelist format is not supported
@@ -64,4 +147,102 @@ public class JndiUtil {
         }
         return null; // Unreachable. (The compiler just can't figure this out...)
     }
+
+    /*=========================*/
+    /* ServiceListener methods */
+    /*=========================*/
+
+    public void serviceChanged(ServiceEvent event) {
+        // Any cached data source may be backed by the service, so drop them all
+        if ((event.getType() == ServiceEvent.UNREGISTERING) || 
+                (event.getType() == ServiceEvent.MODIFIED) || 
+                (event.getType() == ServiceEvent.MODIFIED_ENDMATCH)) {
+            for (BundleLookups bundleLookups : lookups.values()) {
+                if (!bundleLookups.dataSources.isEmpty()) {
+                    debug("JndiUtil - DataSource service changed, clearing cached data sources");
+                    bundleLookups.dataSources.clear();
+                }
+            }
+        }
+    }
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    // The context of a p-unit bundle and the data sources found through it
+    class BundleLookups {
+        Bundle bundle;
+
+        // Data sources that have been found, keyed by JNDI name
+        Map<String,DataSource> dataSources = new ConcurrentHashMap<String,DataSource>();
+
+        // Context used for the lookups of the bundle (created on first lookup) and 
+        // the JNDIContextManager service it came from, if any (guarded by this)
+        Context context;
+        BundleContext contextManagerOwner;
+        ServiceReference<JNDIContextManager> contextManagerRef;
+
+        BundleLookups(Bundle bundle) { this.bundle = bundle; }
+
+        // InitialContext is not thread-safe so the lookups on the context are serialized
+        synchronized Object lookup(String nameString) throws NamingException {
+            try {
+                return getContext().lookup(nameString);
+            } catch (NamingException nEx) {
+                // Don't keep a context that may be broken
+                if (!(nEx instanceof NameNotFoundException)) 
+                    close();
+                throw nEx;
+            }
+        }
+
+        // Must be called while holding the lock on this
+        Context getContext() throws NamingException {
+            if (context == null) {
+                debug("JndiUtil - creating initial context for bundle ", bundle.getSymbolicName());
+                BundleContext bundleContext = bundle.getBundleContext();
+                ServiceReference<JNDIContextManager> ref = (bundleContext == null) 
+                        ? null : bundleContext.getServiceReference(JNDIContextManager.class);
+                JNDIContextManager contextManager = (ref == null) ? null : bundleContext.getService(ref);
+                if (contextManager != null) {
+                    try {
+                        context = contextManager.newInitialContext();
+                    } catch (NamingException nEx) {
+                        bundleContext.ungetService(ref);
+                        throw nEx;
+                    }
+                    contextManagerOwner = bundleContext;
+                    contextManagerRef = ref;
+                } else {
+                    // No OSGi JNDI service, or the bundle is not active
+                    debug("JndiUtil - no JNDIContextManager for bundle ", bundle.getSymbolicName(), 
+                          ", using plain initial context");
+                    context = new InitialContext();
+                }
+            }
+            return context;
+        }
+
+        synchronized void close() {
+            dataSources.clear();
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (NamingException nEx) {
+                    warning("JndiUtil - error closing initial context: ", nEx);
+                }
+                context = null;
+            }
+            if (contextManagerRef != null) {
+                try {
+                    contextManagerOwner.ungetService(contextManagerRef);
+                } catch (IllegalStateException isEx) {
+                    // Bundle has already stopped, so the service was released then
+                }
+                contextManagerRef = null;
+                contextManagerOwner = null;
+            }
+        }
+    }
 }
\ No newline at end of file
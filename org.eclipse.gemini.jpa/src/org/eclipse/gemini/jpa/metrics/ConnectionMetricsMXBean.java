@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.metrics;
+
+/**
+ * JDBC connection metrics of a persistence unit. An object of this type is
+ * registered as an OSGi service (with the osgi.unit.name service property of
+ * the unit) and as an MBean named
+ * org.eclipse.gemini.jpa:type=ConnectionMetrics,bundleId=&lt;id&gt;,unit=&lt;name&gt;
+ * for each p-unit that sets the gemini.jpa.punit.metrics property.
+ *
+ * Acquire times are the time taken by getConnection() on the data source that
+ * Gemini JPA gives to EclipseLink, so include waiting for a pooled connection.
+ * Hold times are the time from getConnection() to close().
+ * Statement cache counts are those of the statement caches of the data sources
+ * of the unit (shared data sources count the statements of all of their users).
+ */
+public interface ConnectionMetricsMXBean {
+
+    /** Name of the persistence unit */
+    String getUnitName();
+
+    /** Number of connections acquired */
+    long getAcquireCount();
+
+    /** Number of getConnection() calls that failed */
+    long getAcquireFailures();
+
+    /** Number of connections that have been acquired and not closed */
+    int getActiveConnections();
+
+    /** Number of idle connections in the pools of the unit */
+    int getIdleConnections();
+
+    /** Number of physical connections open in the pools of the unit */
+    int getOpenConnections();
+
+    /** Number of prepared statements found in the statement caches of the unit */
+    long getStatementCacheHits();
+
+    /** Number of statements prepared because they were not in the statement caches of the unit */
+    long getStatementCacheMisses();
+
+    double getAcquireTimeMeanMicros();
+
+    double getAcquireTimeMaxMicros();
+
+    double getAcquireTimeP50Micros();
+
+    double getAcquireTimeP99Micros();
+
+    /** Acquire time (microseconds) below which the given percentage of acquires fall */
+    double getAcquireTimePercentileMicros(double percentile);
+
+    double getHoldTimeMeanMillis();
+
+    double getHoldTimeMaxMillis();
+
+    double getHoldTimeP99Millis();
+
+    /** Clear the counts and histograms (connections still in use stay counted as active) */
+    void reset();
+}
@@ -36,6 +36,9 @@ import org.eclipse.gemini.jpa.eclipselink.EclipseLinkProvider;
 public class EMFBuilderServiceProxyHandler extends EMFServiceProxyHandler
                                            implements InvocationHandler {
 
+    // Builder proxies answer equals() themselves
+    static final int EQUALS_METHOD = GET_PROPERTIES_METHOD + 1;
+
     // Keep around a copy of the props used to create an EMF through the EMF builder
     Map<String,Object> emfProps = new HashMap<String,Object>();
             
@@ -50,15 +53,15 @@ public class EMFBuilderServiceProxyHandler extends EMFServiceProxyHandler
 
     // Will only get calls for the method on the EntityManagerFactoryBuilder interface
     @Override
-    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    public Object invoke(Object proxy, Method method, int methodIndex, Object[] args) throws Throwable {
 
         debug("EMFBuilderProxy invocation on method ", method.getName());
 
-        if (method.getName().equals("hashCode"))
+        if (methodIndex == HASHCODE_METHOD)
             return this.hashCode();
-        if (method.getName().equals("equals"))
+        if (methodIndex == EQUALS_METHOD)
             return this.equals(args[0]);
-        if (method.getName().equals("toString"))
+        if (methodIndex == TOSTRING_METHOD)
             return this.toString();
 
         // Must be a createEntityManagerFactory(Map) call
@@ -122,6 +125,13 @@ public class EMFBuilderServiceProxyHandler extends EMFServiceProxyHandler
     /* Helper methods */
     /*================*/
     
+    @Override
+    protected Map<Method,Integer> buildDispatchTable() {
+        Map<Method,Integer> table = super.buildDispatchTable();
+        table.put(method(Object.class, "equals", Object.class), EQUALS_METHOD);
+        return table;
+    }
+
     public EntityManagerFactory createEMF(Map<String,Object> props) {
 
         emfProps = props;
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.eclipse.gemini.jpa.eclipselink.EclipseLinkProvider;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.*;
+
+/**
+ * Service factory for the EMF future service. The service object is a
+ * CompletionStage that completes with the EMF service object once the
+ * shared EMF has been created and its session deployed, so clients can
+ * compose on the EMF being ready instead of blocking on the EMF service.
+ *
+ * Deployment is started on the Gemini executor the first time a client
+ * gets the service, so units that nobody asks for are not deployed early.
+ * The service is only registered while the EMF service is ready (i.e. its
+ * data source is available), so deployment is never started without one.
+ * It is registered with the EMF_FUTURE service property so that clients can
+ * tell it apart from other CompletionStage services.
+ *
+ * The EMF belongs to the EMF service. If the future is cancelled while it is
+ * being deployed (e.g. because the data source went offline) then the EMF is
+ * left for the EMF service, which clients may have got it through in the
+ * meantime. It is only discarded if the EMF service has gone as well.
+ *
+ * @see org.eclipse.gemini.jpa.GeminiPersistenceUnitProperties#EMF_FUTURE
+ */
+@SuppressWarnings({"rawtypes"})
+public class EMFFutureServiceFactory implements ServiceFactory {
+
+    PUnitInfo pUnitInfo;
+
+    // Handler of the EMF service, shares the EMF with the EMF service
+    EMFServiceProxyHandler emfHandler;
+
+    // The EMF service object that the future completes with
+    Object emfServiceProxy;
+
+    // Runs the deployment
+    Executor executor;
+
+    // Completes when the EMF is ready (cancelled if the unit goes away first)
+    CompletableFuture<Object> future = new CompletableFuture<Object>();
+
+    // What clients get - they can compose on it but not complete it
+    CompletionStage<Object> stage = future.minimalCompletionStage();
+
+    // Set once deployment has been started
+    AtomicBoolean started = new AtomicBoolean();
+
+    public EMFFutureServiceFactory(PUnitInfo pUnitInfo,
+                                   EMFServiceProxyHandler emfHandler,
+                                   Object emfServiceProxy,
+                                   Executor executor) {
+        this.pUnitInfo = pUnitInfo;
+        this.emfHandler = emfHandler;
+        this.emfServiceProxy = emfServiceProxy;
+        this.executor = executor;
+    }
+
+    /*========================*/
+    /* ServiceFactory methods */
+    /*========================*/
+
+    public Object getService(Bundle b, ServiceRegistration serviceReg) {
+        start();
+        return stage;
+    }
+
+    public void ungetService(Bundle b, ServiceRegistration serviceReg, Object obj) {
+        // Deployment is shared, leave it going
+    }
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Start deploying the EMF if it has not already been started.
+     */
+    public void start() {
+        if (started.compareAndSet(false, true)) {
+            debug("EMFFuture starting deployment for punit ", pUnitInfo.getUnitName());
+            try {
+                executor.execute(new Runnable() {
+                    public void run() { deploy(); }
+                });
+            } catch (Exception ex) {
+                // Executor is shut down
+                future.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * Cancel the future. Called when the EMF service goes away.
+     */
+    public void cancel() {
+        future.cancel(false);
+    }
+
+    public CompletableFuture<Object> getFuture() { return future; }
+
+    /**
+     * Return a new factory for the same EMF service, whose future has not been started.
+     * Used when the future of this one is cancelled because the EMF service is no 
+     * longer ready, so that it can be registered again when the service is ready.
+     */
+    public EMFFutureServiceFactory renew() {
+        return new EMFFutureServiceFactory(pUnitInfo, emfHandler, emfServiceProxy, executor);
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    // Create the shared EMF and force the provider to deploy it
+    protected void deploy() {
+        if (future.isDone()) return;
+        try {
+            EntityManagerFactory emf = emfHandler.getOrCreateEMF();
+            EclipseLinkProvider.deploy(emf);
+            if (future.complete(emfServiceProxy)) {
+                debug("EMFFuture deployed EMF for punit ", pUnitInfo.getUnitName());
+            } else if (pUnitInfo.getEmfService() == null) {
+                // The unit went away while we were deploying - don't leave the EMF open
+                // (if the EMF service is still there then it owns the EMF)
+                debug("EMFFuture discarding EMF for unregistered punit ", pUnitInfo.getUnitName());
+                if (emf.isOpen()) emf.close();
+                emfHandler.syncUnsetEMF();
+            }
+        } catch (Throwable t) {
+            warning("EMFFuture could not deploy EMF for punit " + pUnitInfo.getUnitName() + ": ", t);
+            future.completeExceptionally(t);
+        }
+    }
+}
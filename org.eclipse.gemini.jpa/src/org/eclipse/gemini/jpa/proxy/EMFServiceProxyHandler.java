@@ -17,7 +17,9 @@ package org.eclipse.gemini.jpa.proxy;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
 import javax.persistence.EntityManagerFactory;
@@ -27,6 +29,7 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceFactory;
 import org.osgi.framework.ServiceRegistration;
 
+import org.eclipse.gemini.jpa.GeminiSystemProperties;
 import org.eclipse.gemini.jpa.PUnitInfo;
 
 import static org.eclipse.gemini.jpa.GeminiUtil.*;
@@ -37,30 +40,65 @@ import static org.eclipse.gemini.jpa.GeminiUtil.*;
 @SuppressWarnings({"rawtypes"})
 public class EMFServiceProxyHandler implements InvocationHandler, ServiceFactory {
     
+    /*=========================*/
+    /* Method dispatch indices */
+    /*=========================*/
+
+    // Methods that are not just passed through to the EMF
+    static final int OTHER_METHOD = 0;
+    static final int HASHCODE_METHOD = 1;
+    static final int TOSTRING_METHOD = 2;
+    static final int GET_PROPERTIES_METHOD = 3;
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
     PUnitInfo pUnitInfo;
     
-    public EMFServiceProxyHandler(PUnitInfo pUnitInfo) { this.pUnitInfo = pUnitInfo; }
+    // Dispatch index by method, built when the proxy is created. Only used to resolve
+    // each Method object the first time it is seen, not on every call.
+    final Map<Method,Integer> dispatchTable;
+
+    // Dispatch index by the Method objects a dynamic proxy has called with. The proxy
+    // class passes the same Method object on every call of a method, so this is looked 
+    // up by identity. Copied on write, as a new Method object is only seen once.
+    volatile Map<Method,Integer> resolvedIndices = new IdentityHashMap<Method,Integer>();
+
+    // Merged EMF properties, valid only for the EMF and the p-unit version they were taken from
+    volatile CachedProperties cachedProperties;
+
+    public EMFServiceProxyHandler(PUnitInfo pUnitInfo) { 
+        this.pUnitInfo = pUnitInfo; 
+        this.dispatchTable = buildDispatchTable();
+    }
     
     /*=========================*/
     /* InvocationProxy methods */
     /*=========================*/
     
-    // Will only get calls for the methods on the EntityManagerFactory interface
-    @SuppressWarnings({"unchecked"})
+    // Called by a dynamic proxy, resolve the method and dispatch it
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        return invoke(proxy, method, methodIndex(method), args);
+    }
+
+    // Will only get calls for the methods on the EntityManagerFactory interface.
+    // Generated proxies call this directly with the index they resolved when created.
+    public Object invoke(Object proxy, Method method, int methodIndex, Object[] args) throws Throwable {
 
         Object result = null;
         try {
-            debug("EMFProxy invocation on method ", method.getName());
+            if (GeminiSystemProperties.debug())
+                debug("EMFProxy invocation on method ", method.getName());
     
             /* NOTE: Allow close() to pass through in order for users to close the EMF. */
             /* This means that any user that closes an EMF will cause it to be closed   */
             /* for all other service references of the EMF service.                     */
             
             // Invoke these methods on the actual proxy (not the object it's proxying)
-            if (method.getName().equals("hashCode"))
+            if (methodIndex == HASHCODE_METHOD)
                 return this.hashCode();
-            if (method.getName().equals("toString"))
+            if (methodIndex == TOSTRING_METHOD)
                 return this.toString();
                     
             /*===========================================================================*/
@@ -70,23 +108,17 @@ public class EMFServiceProxyHandler implements InvocationHandler, ServiceFactory
             /*===========================================================================*/
     
             // Get the EMF (setting a new one if one does not already exist)
-            EntityManagerFactory emf = syncGetEMFAndSetIfAbsent(false, 
-                                                                new HashMap<String,Object>());
-            // Invoke the EMF method that was called
-            result = method.invoke(emf, args);
-            
+            EntityManagerFactory emf = getOrCreateEMF();
+
             // If it was a getProperties() method then add in a PUnitInfo entry
-            if (method.getName().equals("getProperties")) {
-                Map<String,Object> resultMap = new HashMap<String,Object>();
-                resultMap.putAll((Map<String,Object>)result);
-                resultMap.put("PUnitInfo", pUnitInfo.toMap());
-                result = resultMap;
+            if (methodIndex == GET_PROPERTIES_METHOD) {
+                result = getProperties(emf);
+            } else {
+                // Invoke the EMF method that was called
+                result = method.invoke(emf, args);
             }
             
-            // If the operation was to close the EMF then chuck our reference away
-            if (!emf.isOpen()) {
-                syncUnsetEMF();
-            }
+            afterInvoke(emf);
         // Bug #401944 Catch InvocationTargetEx and get cause. Rethrow exception.
         } catch(InvocationTargetException itEx) {
             warning("EMFProxy invocation on target method " + method.getName() + " failed with cause: ", itEx.getCause());
@@ -116,10 +148,80 @@ public class EMFServiceProxyHandler implements InvocationHandler, ServiceFactory
     /* Helper methods */
     /*================*/
 
+    // Return the dispatch indices of the methods this handler does not pass through
+    protected Map<Method,Integer> buildDispatchTable() {
+        Map<Method,Integer> table = new HashMap<Method,Integer>();
+        table.put(method(Object.class, "hashCode"), HASHCODE_METHOD);
+        table.put(method(Object.class, "toString"), TOSTRING_METHOD);
+        table.put(method(EntityManagerFactory.class, "getProperties"), GET_PROPERTIES_METHOD);
+        return table;
+    }
+
+    // Return the dispatch index of the given proxied method
+    protected int methodIndex(Method method) {
+        Integer index = resolvedIndices.get(method);
+        return (index == null) ? resolveMethodIndex(method) : index;
+    }
+
+    // Look up the dispatch index of a Method object that has not been called with before
+    protected synchronized int resolveMethodIndex(Method method) {
+        Integer index = dispatchTable.get(method);
+        if (index == null)
+            index = OTHER_METHOD;
+        Map<Method,Integer> resolved = new IdentityHashMap<Method,Integer>(resolvedIndices);
+        resolved.put(method, index);
+        resolvedIndices = resolved;
+        return index;
+    }
+
+    // Look up a public method that is known to exist
+    protected static Method method(Class<?> cls, String name, Class<?>... paramTypes) {
+        try {
+            return cls.getMethod(name, paramTypes);
+        } catch (NoSuchMethodException nsmEx) {
+            throw new IllegalStateException(nsmEx);
+        }
+    }
+
+    // Return the shared EMF, creating it if one does not already exist
+    public EntityManagerFactory getOrCreateEMF() {
+        // Common case is that the EMF exists, so don't lock or allocate for it
+        EntityManagerFactory emf = pUnitInfo.getEmf();
+        if (emf != null)
+            return emf;
+        // The provider wrapper copies the props, so no map of our own is needed
+        return syncGetEMFAndSetIfAbsent(false, Collections.<String,Object>emptyMap());
+    }
+
+    // Called after a method has been invoked on the shared EMF
+    public void afterInvoke(EntityManagerFactory emf) {
+        // If the operation was to close the EMF then chuck our reference away
+        if (!emf.isOpen()) {
+            syncUnsetEMF();
+        }
+    }
+
+    // Return the properties of the EMF with a PUnitInfo entry added in. The merged
+    // map is unmodifiable and is cached until the shared EMF or the p-unit changes.
+    public Map<String,Object> getProperties(EntityManagerFactory emf) {
+        CachedProperties cached = cachedProperties;
+        // Read the version before the p-unit so that a concurrent change is not missed
+        int version = pUnitInfo.getVersion();
+        if ((cached != null) && (cached.emf == emf) && (cached.version == version)) 
+            return cached.properties;
+        Map<String,Object> resultMap = new HashMap<String,Object>();
+        resultMap.putAll(emf.getProperties());
+        resultMap.put("PUnitInfo", pUnitInfo.toMap());
+        cached = new CachedProperties(emf, version, Collections.unmodifiableMap(resultMap));
+        cachedProperties = cached;
+        return cached.properties;
+    }
+
     // Return the EMF from the shared PUnitInfo, or null if none exists there
     public EntityManagerFactory syncGetEMFAndSetIfAbsent(boolean setByBuilderService,
                                                          Map<String,Object> props) {
-        debug("EMFProxy - getEMF for punit ", pUnitInfo.getUnitName(), " emf=", pUnitInfo.getEmf());
+        if (GeminiSystemProperties.debug())
+            debug("EMFProxy - getEMF for punit ", pUnitInfo.getUnitName(), " emf=", pUnitInfo.getEmf());
         if (pUnitInfo.getEmf() == null) {
             synchronized(pUnitInfo) {
                 // Check again while holding the mutex
@@ -138,6 +240,7 @@ public class EMFServiceProxyHandler implements InvocationHandler, ServiceFactory
         synchronized(pUnitInfo) {
             EntityManagerFactory emf = pUnitInfo.getEmf(); 
             pUnitInfo.setEmf(null);
+            cachedProperties = null;
             return emf;
         }
     }
@@ -153,4 +256,21 @@ public class EMFServiceProxyHandler implements InvocationHandler, ServiceFactory
             fatalError("Proxy could not create EMF " + unitName + " from provider " + provider, null);
         return result;
     }    
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    // Merged properties along with the EMF and the p-unit version they were taken from
+    static class CachedProperties {
+        final EntityManagerFactory emf;
+        final int version;
+        final Map<String,Object> properties;
+
+        CachedProperties(EntityManagerFactory emf, int version, Map<String,Object> properties) {
+            this.emf = emf;
+            this.version = version;
+            this.properties = properties;
+        }
+    }
 }        
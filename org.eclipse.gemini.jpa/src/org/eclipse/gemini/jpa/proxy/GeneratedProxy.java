@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+
+import javax.persistence.EntityManagerFactory;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+/**
+ * Superclass of the service proxy classes generated by ProxyClassGenerator.
+ * The generated subclasses implement the proxied interfaces and call the
+ * methods below, either to get at the shared EMF and delegate to it directly,
+ * or to dispatch the call to the proxy handler.
+ *
+ * The methods are public (and final) because the generated classes are
+ * defined by a different class loader and are therefore in a different
+ * runtime package.
+ *
+ * Failures behave as they do through a dynamic proxy over the handler: they
+ * are logged, and a checked exception that the proxied method does not
+ * declare is wrapped in an UndeclaredThrowableException.
+ *
+ * @see ProxyClassGenerator
+ */
+public abstract class GeneratedProxy {
+
+    // The handler that manages the EMF being proxied
+    protected final EMFServiceProxyHandler handler;
+
+    // The proxied methods that are dispatched to the handler, by index
+    protected final Method[] methods;
+
+    // The handler dispatch indices of the methods, resolved once when the proxy is created
+    protected final int[] dispatchIndices;
+
+    protected GeneratedProxy(EMFServiceProxyHandler handler, Method[] methods) {
+        this.handler = handler;
+        this.methods = methods;
+        this.dispatchIndices = new int[methods.length];
+        for (int i = 0; i < methods.length; i++)
+            dispatchIndices[i] = handler.methodIndex(methods[i]);
+    }
+
+    public final EMFServiceProxyHandler getHandler() { return handler; }
+
+    /*========================================*/
+    /* Methods called by the generated code   */
+    /*========================================*/
+
+    // Return the shared EMF, creating it if it does not exist yet
+    public final Object proxyTarget() {
+        return handler.getOrCreateEMF();
+    }
+
+    // Called after a method has been invoked on the EMF
+    public final void proxyAfterInvoke(Object emf) {
+        handler.afterInvoke((EntityManagerFactory) emf);
+    }
+
+    // Return the properties of the shared EMF along with the p-unit info
+    public final Object proxyGetProperties() {
+        try {
+            EntityManagerFactory emf = handler.getOrCreateEMF();
+            Object result = handler.getProperties(emf);
+            handler.afterInvoke(emf);
+            return result;
+        } catch (RuntimeException rtEx) {
+            throw (RuntimeException) proxyFailed("getProperties", rtEx);
+        } catch (Error err) {
+            throw (Error) proxyFailed("getProperties", err);
+        }
+    }
+
+    // Log the failure of a method that was delegated directly, as the handler 
+    // would have, and return the exception to be rethrown by the generated code
+    public final Throwable proxyFailed(String methodName, Throwable t) {
+        warning("EMFProxy invocation on method " + methodName + " failed: ", t);
+        return t;
+    }
+
+    // Dispatch a method that is not delegated directly to the handler
+    public final Object proxyInvoke(int methodIndex, Object[] args) throws Throwable {
+        Method method = methods[methodIndex];
+        try {
+            return handler.invoke(this, method, dispatchIndices[methodIndex], args);
+        } catch (RuntimeException rtEx) {
+            throw rtEx;
+        } catch (Error err) {
+            throw err;
+        } catch (Throwable t) {
+            // Same as java.lang.reflect.Proxy for checked exceptions the method does not declare
+            for (Class<?> exType : method.getExceptionTypes()) {
+                if (exType.isInstance(t))
+                    throw t;
+            }
+            throw new UndeclaredThrowableException(t);
+        }
+    }
+
+    /*================*/
+    /* Object methods */
+    /*================*/
+
+    @Override
+    public int hashCode() { return handler.hashCode(); }
+
+    @Override
+    public boolean equals(Object obj) { return this == obj; }
+
+    @Override
+    public String toString() { return handler.toString(); }
+}
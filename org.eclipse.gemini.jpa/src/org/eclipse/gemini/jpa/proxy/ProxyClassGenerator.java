@@ -0,0 +1,400 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.gemini.jpa.classloader.CompositeClassLoader;
+import org.eclipse.persistence.internal.libraries.asm.ClassWriter;
+import org.eclipse.persistence.internal.libraries.asm.Label;
+import org.eclipse.persistence.internal.libraries.asm.MethodVisitor;
+import org.eclipse.persistence.internal.libraries.asm.Opcodes;
+import org.eclipse.persistence.internal.libraries.asm.Type;
+
+/**
+ * Generates concrete service proxy classes as an alternative to
+ * java.lang.reflect.Proxy. A class is generated for each set of proxied
+ * interfaces, as a subclass of GeneratedProxy.
+ *
+ * Methods that are implemented by the target type (the EMF) are compiled
+ * to get the shared EMF from the handler and call the method on it directly,
+ * without reflection or argument arrays. All other methods are dispatched to
+ * the handler, just as a dynamic proxy would. Failures of either kind of
+ * method are logged and rethrown the same way as through a dynamic proxy.
+ *
+ * Generated classes are cached by class loader and interface set.
+ *
+ * @see GeneratedProxy
+ */
+public class ProxyClassGenerator {
+
+    /*==================*/
+    /* Static constants */
+    /*==================*/
+
+    static final String GENERATED_CLASS_PREFIX = "org/eclipse/gemini/jpa/proxy/$GeneratedProxy$";
+    static final String SUPERCLASS = Type.getInternalName(GeneratedProxy.class);
+    static final String OBJECT = Type.getInternalName(Object.class);
+    static final String CONSTRUCTOR_DESC = Type.getMethodDescriptor(Type.VOID_TYPE,
+            Type.getType(EMFServiceProxyHandler.class), Type.getType(Method[].class));
+
+    /*==============*/
+    /* Static state */
+    /*==============*/
+
+    // Counter to make generated class names unique
+    static AtomicInteger classCount = new AtomicInteger();
+
+    // Generated classes, keyed by the loader of the interfaces and then by interface set.
+    // (The classes are weakly referenced since they strongly reference the loader.)
+    static Map<ClassLoader, Map<String, WeakReference<Class<?>>>> generatedClasses =
+        new WeakHashMap<ClassLoader, Map<String, WeakReference<Class<?>>>>();
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Return a new proxy instance that implements the given interfaces.
+     *
+     * @param loader the loader that can see all of the interfaces
+     * @param interfaces the interfaces to implement
+     * @param targetType the type of the object the handler proxies (calls to methods
+     *                   of this type are delegated directly), or null to dispatch all
+     *                   methods to the handler
+     * @param handler the handler of the proxy
+     *
+     * @return the proxy instance
+     *
+     * @throws Exception if the class could not be generated or instantiated
+     */
+    public static Object newProxyInstance(ClassLoader loader,
+                                          Class<?>[] interfaces,
+                                          Class<?> targetType,
+                                          EMFServiceProxyHandler handler) throws Exception {
+        Class<?> proxyClass = proxyClass(loader, interfaces, targetType);
+        return proxyClass
+                .getConstructor(EMFServiceProxyHandler.class, Method[].class)
+                .newInstance(handler, handlerMethods(interfaces, targetType));
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    // Get the generated class for the interface set, generating it if necessary
+    protected static Class<?> proxyClass(ClassLoader loader,
+                                         Class<?>[] interfaces,
+                                         Class<?> targetType) {
+        StringBuilder key = new StringBuilder((targetType == null) ? "" : targetType.getName());
+        for (Class<?> cls : interfaces) key.append(',').append(cls.getName());
+
+        synchronized (generatedClasses) {
+            Map<String, WeakReference<Class<?>>> classes = generatedClasses.get(loader);
+            if (classes == null) {
+                classes = new HashMap<String, WeakReference<Class<?>>>();
+                generatedClasses.put(loader, classes);
+            }
+            WeakReference<Class<?>> ref = classes.get(key.toString());
+            Class<?> generated = (ref == null) ? null : ref.get();
+            if (generated == null) {
+                generated = generateClass(loader, interfaces, targetType);
+                classes.put(key.toString(), new WeakReference<Class<?>>(generated));
+            }
+            return generated;
+        }
+    }
+
+    // Generate and define a class that implements all of the interfaces
+    protected static Class<?> generateClass(ClassLoader loader,
+                                            Class<?>[] interfaces,
+                                            Class<?> targetType) {
+
+        String className = GENERATED_CLASS_PREFIX + classCount.incrementAndGet();
+        debug("ProxyClassGenerator generating ", className);
+
+        String[] interfaceNames = new String[interfaces.length];
+        for (int i=0; i<interfaces.length; i++) {
+            if (!interfaces[i].isInterface())
+                throw new IllegalArgumentException("Not an interface: " + interfaces[i].getName());
+            interfaceNames[i] = Type.getInternalName(interfaces[i]);
+        }
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL + Opcodes.ACC_SUPER,
+                 className, null, SUPERCLASS, interfaceNames);
+
+        // Constructor just passes the arguments along
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", CONSTRUCTOR_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, SUPERCLASS, "<init>", CONSTRUCTOR_DESC, false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        int handlerMethodCount = 0;
+        for (Method m : proxiedMethods(interfaces)) {
+            if (isDelegated(m, targetType)) {
+                if (isGetProperties(m)) {
+                    generateGetProperties(cw, m);
+                } else {
+                    generateDelegatingMethod(cw, m);
+                }
+            } else {
+                // Index must match the array returned by handlerMethods()
+                generateHandlerMethod(cw, m, handlerMethodCount++);
+            }
+        }
+        cw.visitEnd();
+
+        return new GeneratedProxyLoader(loader).define(className.replace('/', '.'), cw.toByteArray());
+    }
+
+    // Return the methods that the generated class dispatches to the handler, in index order
+    protected static Method[] handlerMethods(Class<?>[] interfaces, Class<?> targetType) {
+        List<Method> handlerMethods = new ArrayList<Method>();
+        for (Method m : proxiedMethods(interfaces)) {
+            if (!isDelegated(m, targetType))
+                handlerMethods.add(m);
+        }
+        return handlerMethods.toArray(new Method[handlerMethods.size()]);
+    }
+
+    // Return whether the method is implemented by the target type and can be called on it directly
+    protected static boolean isDelegated(Method m, Class<?> targetType) {
+        return (targetType != null) && m.getDeclaringClass().isAssignableFrom(targetType);
+    }
+
+    // Return the (non-static) methods of the interfaces, one per signature
+    protected static List<Method> proxiedMethods(Class<?>[] interfaces) {
+        Map<String, Method> methods = new LinkedHashMap<String, Method>();
+        for (Class<?> cls : interfaces) {
+            for (Method m : cls.getMethods()) {
+                if (Modifier.isStatic(m.getModifiers())) continue;
+                String signature = m.getName() + Type.getMethodDescriptor(m);
+                if (!methods.containsKey(signature))
+                    methods.put(signature, m);
+            }
+        }
+        return new ArrayList<Method>(methods.values());
+    }
+
+    protected static boolean isGetProperties(Method m) {
+        return m.getName().equals("getProperties") && (m.getParameterTypes().length == 0);
+    }
+
+    protected static MethodVisitor visitMethod(ClassWriter cw, Method m) {
+        Class<?>[] exTypes = m.getExceptionTypes();
+        String[] exceptions = new String[exTypes.length];
+        for (int i=0; i<exTypes.length; i++)
+            exceptions[i] = Type.getInternalName(exTypes[i]);
+        return cw.visitMethod(Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL,
+                              m.getName(), Type.getMethodDescriptor(m), null, exceptions);
+    }
+
+    // getProperties() is handled by the superclass
+    protected static void generateGetProperties(ClassWriter cw, Method m) {
+        MethodVisitor mv = visitMethod(cw, m);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, SUPERCLASS, "proxyGetProperties", "()Ljava/lang/Object;", false);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(m.getReturnType()));
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /*
+     * Generates the equivalent of:
+     *     try {
+     *         Iface target = (Iface) proxyTarget();
+     *         R result = target.m(args);
+     *         proxyAfterInvoke(target);
+     *         return result;
+     *     } catch (Throwable t) {
+     *         throw proxyFailed("m", t);
+     *     }
+     */
+    protected static void generateDelegatingMethod(ClassWriter cw, Method m) {
+        String owner = Type.getInternalName(m.getDeclaringClass());
+        Type[] argTypes = Type.getArgumentTypes(m);
+        Type returnType = Type.getReturnType(m);
+
+        // Locals: this, args, target, result, exception
+        int targetSlot = 1;
+        for (Type t : argTypes) targetSlot += t.getSize();
+        int resultSlot = targetSlot + 1;
+        int exceptionSlot = resultSlot + Math.max(1, returnType.getSize());
+
+        Label tryStart = new Label();
+        Label tryEnd = new Label();
+        Label catchStart = new Label();
+
+        MethodVisitor mv = visitMethod(cw, m);
+        mv.visitCode();
+        mv.visitTryCatchBlock(tryStart, tryEnd, catchStart, "java/lang/Throwable");
+        mv.visitLabel(tryStart);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, SUPERCLASS, "proxyTarget", "()Ljava/lang/Object;", false);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, owner);
+        mv.visitVarInsn(Opcodes.ASTORE, targetSlot);
+
+        mv.visitVarInsn(Opcodes.ALOAD, targetSlot);
+        int slot = 1;
+        for (Type t : argTypes) {
+            mv.visitVarInsn(t.getOpcode(Opcodes.ILOAD), slot);
+            slot += t.getSize();
+        }
+        mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, owner, m.getName(), Type.getMethodDescriptor(m), true);
+        if (returnType.getSort() != Type.VOID)
+            mv.visitVarInsn(returnType.getOpcode(Opcodes.ISTORE), resultSlot);
+
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, targetSlot);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, SUPERCLASS, "proxyAfterInvoke", "(Ljava/lang/Object;)V", false);
+
+        if (returnType.getSort() != Type.VOID)
+            mv.visitVarInsn(returnType.getOpcode(Opcodes.ILOAD), resultSlot);
+        mv.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+        mv.visitLabel(tryEnd);
+
+        mv.visitLabel(catchStart);
+        mv.visitVarInsn(Opcodes.ASTORE, exceptionSlot);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitLdcInsn(m.getName());
+        mv.visitVarInsn(Opcodes.ALOAD, exceptionSlot);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, SUPERCLASS, "proxyFailed", 
+                           "(Ljava/lang/String;Ljava/lang/Throwable;)Ljava/lang/Throwable;", false);
+        mv.visitInsn(Opcodes.ATHROW);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /*
+     * Generates the equivalent of:
+     *     return (R) proxyInvoke(index, new Object[] { args });
+     */
+    protected static void generateHandlerMethod(ClassWriter cw, Method m, int methodIndex) {
+        Type[] argTypes = Type.getArgumentTypes(m);
+        Type returnType = Type.getReturnType(m);
+
+        MethodVisitor mv = visitMethod(cw, m);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitLdcInsn(Integer.valueOf(methodIndex));
+        if (argTypes.length == 0) {
+            mv.visitInsn(Opcodes.ACONST_NULL);
+        } else {
+            mv.visitLdcInsn(Integer.valueOf(argTypes.length));
+            mv.visitTypeInsn(Opcodes.ANEWARRAY, OBJECT);
+            int slot = 1;
+            for (int i=0; i<argTypes.length; i++) {
+                mv.visitInsn(Opcodes.DUP);
+                mv.visitLdcInsn(Integer.valueOf(i));
+                mv.visitVarInsn(argTypes[i].getOpcode(Opcodes.ILOAD), slot);
+                box(mv, argTypes[i]);
+                mv.visitInsn(Opcodes.AASTORE);
+                slot += argTypes[i].getSize();
+            }
+        }
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, SUPERCLASS, "proxyInvoke", "(I[Ljava/lang/Object;)Ljava/lang/Object;", false);
+        if (returnType.getSort() == Type.VOID) {
+            mv.visitInsn(Opcodes.POP);
+        } else {
+            unbox(mv, returnType);
+        }
+        mv.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    // Box the primitive value on the stack (if it is primitive)
+    protected static void box(MethodVisitor mv, Type t) {
+        String wrapper = wrapperType(t);
+        if (wrapper != null) {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, wrapper, "valueOf",
+                               "(" + t.getDescriptor() + ")L" + wrapper + ";", false);
+        }
+    }
+
+    // Cast or unbox the object on the stack to the given type
+    protected static void unbox(MethodVisitor mv, Type t) {
+        String wrapper = wrapperType(t);
+        if (wrapper == null) {
+            mv.visitTypeInsn(Opcodes.CHECKCAST, t.getInternalName());
+        } else {
+            mv.visitTypeInsn(Opcodes.CHECKCAST, wrapper);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, wrapper, t.getClassName() + "Value",
+                               "()" + t.getDescriptor(), false);
+        }
+    }
+
+    // Return the internal name of the wrapper class of a primitive type, or null if not primitive
+    protected static String wrapperType(Type t) {
+        switch (t.getSort()) {
+            case Type.BOOLEAN: return "java/lang/Boolean";
+            case Type.CHAR: return "java/lang/Character";
+            case Type.BYTE: return "java/lang/Byte";
+            case Type.SHORT: return "java/lang/Short";
+            case Type.INT: return "java/lang/Integer";
+            case Type.FLOAT: return "java/lang/Float";
+            case Type.LONG: return "java/lang/Long";
+            case Type.DOUBLE: return "java/lang/Double";
+            default: return null;
+        }
+    }
+
+    /*================*/
+    /* Helper classes */
+    /*================*/
+
+    // Defines a generated class. Classes it refers to are loaded from the loader
+    // of the interfaces, or else from the Gemini loader (for GeneratedProxy).
+    static class GeneratedProxyLoader extends ClassLoader {
+        ClassLoader delegate;
+
+        GeneratedProxyLoader(ClassLoader interfaceLoader) {
+            super(null);
+            ClassLoader geminiLoader = GeneratedProxy.class.getClassLoader();
+            this.delegate = (interfaceLoader == geminiLoader)
+                ? geminiLoader
+                : new CompositeClassLoader(interfaceLoader, geminiLoader);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            Class<?> cls = findLoadedClass(name);
+            return (cls != null) ? cls : delegate.loadClass(name);
+        }
+    }
+}
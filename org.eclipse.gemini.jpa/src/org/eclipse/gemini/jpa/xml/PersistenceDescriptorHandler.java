@@ -22,8 +22,10 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 
+import org.eclipse.gemini.jpa.GeminiPersistenceUnitProperties;
 import org.eclipse.gemini.jpa.GeminiUtil;
 import org.eclipse.gemini.jpa.PUnitInfo;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
 
 import static org.eclipse.gemini.jpa.GeminiUtil.*;
 
@@ -98,6 +100,11 @@ public class PersistenceDescriptorHandler extends DefaultHandler {
                 currentPUnit.setDriverPassword(propValue);
             else if (propName.equals(GeminiUtil.OSGI_JDBC_DRIVER_VERSION_PROPERTY))
                 currentPUnit.setDriverVersion(propValue);
+            else if (propName.startsWith(GeminiPersistenceUnitProperties.PROPERTY_PREFIX))
+                currentPUnit.setDescriptorProperty(propName, propValue);
+            // Keep the session customizer so that one added by Gemini can run it
+            else if (propName.equals(PersistenceUnitProperties.SESSION_CUSTOMIZER))
+                currentPUnit.setDescriptorProperty(propName, propValue);
         }
     }
 